@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A DefaultScoreCache remembers the default scores (see
+ *  {@link QrySop#getDefaultScore}) of one query operator.  When every
+ *  SCORE operator below the operator matches the same field, its
+ *  default score depends only on the length of that field, so it is
+ *  computed once for each length and reused for every document that
+ *  has that length.  Lengths are exact keys, so cached scores are
+ *  identical to computed ones.
+ *  <p>
+ *  A cache belongs to one query, which is evaluated by one thread.
+ *  {@link #get} remembers the length of the document that it looked
+ *  up, and {@link #put} stores the score under that length, so the
+ *  operator computes its score between the two calls.
+ *  </p>
+ */
+public final class DefaultScoreCache {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  Documents that are longer than this aren't cached.
+   */
+  private static final int MAX_LENGTH = 1 << 16;
+
+  private static final int INITIAL_SIZE = 1024;
+
+  private final DocLengthStore docLengths;
+  private final int lengthSlot;
+
+  /**
+   *  The scores, indexed by length; NaN if not computed yet.
+   */
+  private double[] scores = new double[0];
+
+  /**
+   *  The length that get looked up, or -1 if it can't be cached.
+   */
+  private int length = -1;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param docLengths The document lengths of the index.
+   *  @param field The field whose length determines the scores.
+   */
+  public DefaultScoreCache (DocLengthStore docLengths, String field) {
+    this.docLengths = docLengths;
+    this.lengthSlot = docLengths.getFieldSlot (field);
+  }
+
+  /**
+   *  Create an empty cache for the same field.
+   *  @return The cache.
+   */
+  public DefaultScoreCache newEmptyCache () {
+    return new DefaultScoreCache (this.docLengths, this.lengthSlot);
+  }
+
+  private DefaultScoreCache (DocLengthStore docLengths, int lengthSlot) {
+    this.docLengths = docLengths;
+    this.lengthSlot = lengthSlot;
+  }
+
+  /**
+   *  Get the cached default score of a document.
+   *  @param docid The internal document id.
+   *  @return The score, or NaN if it isn't cached.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double get (long docid) throws IOException {
+
+    long length = this.docLengths.getDocLength (this.lengthSlot, (int) docid);
+
+    if (length >= MAX_LENGTH) {
+      this.length = -1;
+      return Double.NaN;
+    }
+
+    this.length = (int) length;
+    return (this.length < this.scores.length) ?
+      this.scores[this.length] : Double.NaN;
+  }
+
+  /**
+   *  Cache the default score of the document that get looked up last.
+   *  @param score The document's default score.
+   *  @return The score.
+   */
+  public double put (double score) {
+
+    if (this.length < 0) {
+      return score;
+    }
+
+    if (this.length >= this.scores.length) {
+      int size = Math.max (INITIAL_SIZE, this.scores.length);
+
+      while (size <= this.length) {
+        size *= 2;
+      }
+
+      int oldSize = this.scores.length;
+      this.scores = Arrays.copyOf (this.scores, Math.min (size, MAX_LENGTH));
+      Arrays.fill (this.scores, oldSize, this.scores.length, Double.NaN);
+    }
+
+    this.scores[this.length] = score;
+    return score;
+  }
+}
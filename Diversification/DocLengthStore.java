@@ -3,20 +3,71 @@
  */
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * In dense mode the lengths of each field are kept in one array that
+ * is indexed by docid.  Each array uses the narrowest of 1, 2, 4 or 8
+ * bytes per length that holds every length in the field exactly.  The
+ * arrays are built from the norms once, saved in a sidecar file in
+ * the index directory, and memory-mapped by later runs.  If the
+ * sidecar file can't be written, the arrays are kept in memory.
+ * </p><p>
+ * Callers that read many lengths from one field should resolve the
+ * field to a slot with {@link #getFieldSlot} once and then call
+ * {@link #getDocLength(int, int)}.
+ * </p><p>
+ * Norms are read from each index segment (leaf) separately, not
+ * through a MultiDocValues view that merges the segments on the fly.
+ * </p>
  */
 public class DocLengthStore  {
 
+  /**
+   * The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.docLengths";
+
+  private static final int MAGIC = 0x51454c44;		// "QELD"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 4;
+
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, Integer> slots = new HashMap<String, Integer>();
+
+  /*
+   * Norms mode.  The norms of each slot in each leaf, which are null
+   * for leaves that don't have the field, and the docBase of each leaf.
+   */
+  private NumericDocValues[][] values = null;
+  private int[] docBases;
+
+  /*
+   * Dense mode.  The sidecar layout after the header is, for each
+   * field:  name length, UTF-8 name, bytes per length, data offset.
+   * The arrays follow the field table.
+   */
+  private int[] widths;
+  private ByteBuffer[] arrays;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
@@ -24,11 +75,222 @@ public class DocLengthStore  {
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
+    List<LeafReaderContext> leaves = reader.leaves();
+    List<NumericDocValues[]> norms = new ArrayList<NumericDocValues[]>();
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      this.slots.put(field, norms.size());
+      norms.add(getLeafNorms(leaves, field));
+    }
+    this.values = norms.toArray(new NumericDocValues[norms.size()][]);
+    this.docBases = new int[leaves.size()];
+    for (int leaf = 0; leaf < leaves.size(); leaf++) {
+      this.docBases[leaf] = leaves.get(leaf).docBase;
     }
   }
 
+  /**
+   * Get the norms of a field in each leaf of an index.  Leaves that
+   * don't have the field have null norms.
+   */
+  private static NumericDocValues[] getLeafNorms(List<LeafReaderContext> leaves,
+                                                 String field)
+    throws IOException {
+    NumericDocValues[] norms = new NumericDocValues[leaves.size()];
+    for (int leaf = 0; leaf < leaves.size(); leaf++) {
+      norms[leaf] = leaves.get(leaf).reader().getNormValues(field);
+    }
+    return norms;
+  }
+
+  /**
+   * Open the document lengths of an index in dense mode, building and
+   * saving the sidecar file if it is missing or out of date.
+   *
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param indexPath The directory that contains the index.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, String indexPath) throws IOException {
+    this.reader = reader;
+
+    long indexVersion = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion() : 0;
+    Path path = Paths.get(indexPath, FILE_NAME);
+
+    if (Files.isReadable(path)) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        ByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if ((mapped.capacity() >= HEADER_LENGTH) &&
+            (mapped.getInt(0) == MAGIC) &&
+            (mapped.getInt(4) == FORMAT_VERSION) &&
+            (mapped.getLong(8) == indexVersion) &&
+            (mapped.getInt(16) == reader.maxDoc())) {
+          this.setBuffer(mapped);
+          return;
+        }
+      }
+    }
+
+    ByteBuffer built = build(reader, indexVersion);
+    this.setBuffer(built);
+
+    try {
+      Path tmp = Paths.get(indexPath, FILE_NAME + ".tmp");
+      try (FileChannel channel =
+             FileChannel.open(tmp, StandardOpenOption.CREATE,
+                              StandardOpenOption.WRITE,
+                              StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer out = built.duplicate();
+        out.clear();
+        while (out.hasRemaining()) {
+          channel.write(out);
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      System.err.println("Warning: Can't save " + path + ": " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Read the norms of every indexed field and build the dense arrays
+   * in memory.
+   */
+  private static ByteBuffer build(IndexReader reader, long indexVersion)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc();
+    List<LeafReaderContext> leaves = reader.leaves();
+    List<String> fields = new ArrayList<String>();
+    List<NumericDocValues[]> norms = new ArrayList<NumericDocValues[]>();
+
+    for (String field : MultiFields.getIndexedFields(reader)) {
+      NumericDocValues[] n = getLeafNorms(leaves, field);
+      for (NumericDocValues leafNorms : n) {
+        if (leafNorms != null) {
+          fields.add(field);
+          norms.add(n);
+          break;
+        }
+      }
+    }
+
+    //  Choose the width of each array.
+
+    int[] widths = new int[fields.size()];
+    long length = HEADER_LENGTH;
+
+    for (int f = 0; f < fields.size(); f++) {
+      long min = 0;
+      long max = 0;
+
+      for (int leaf = 0; leaf < leaves.size(); leaf++) {
+        NumericDocValues n = norms.get(f)[leaf];
+        int leafMaxDoc = leaves.get(leaf).reader().maxDoc();
+        for (int docid = 0; docid < leafMaxDoc; docid++) {
+          long v = (n == null) ? 0 : n.get(docid);
+          min = Math.min(min, v);
+          max = Math.max(max, v);
+        }
+      }
+
+      if (min < 0 || max > Integer.MAX_VALUE) {
+        widths[f] = 8;
+      } else if (max > 0xFFFF) {
+        widths[f] = 4;
+      } else if (max > 0xFF) {
+        widths[f] = 2;
+      } else {
+        widths[f] = 1;
+      }
+
+      length += 4 + fields.get(f).getBytes(StandardCharsets.UTF_8).length + 4 + 8;
+    }
+
+    long[] offsets = new long[fields.size()];
+
+    for (int f = 0; f < fields.size(); f++) {
+      offsets[f] = length;
+      length += (long) widths[f] * maxDoc;
+    }
+
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("The document length table is too large.");
+    }
+
+    ByteBuffer b = ByteBuffer.allocate((int) length);
+    b.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(indexVersion);
+    b.putInt(maxDoc).putInt(fields.size());
+
+    for (int f = 0; f < fields.size(); f++) {
+      byte[] name = fields.get(f).getBytes(StandardCharsets.UTF_8);
+      b.putInt(name.length).put(name).putInt(widths[f]).putLong(offsets[f]);
+    }
+
+    //  Leaves hold consecutive ranges of docids, so each array is
+    //  written in docid order.
+
+    for (int f = 0; f < fields.size(); f++) {
+      for (int leaf = 0; leaf < leaves.size(); leaf++) {
+        NumericDocValues n = norms.get(f)[leaf];
+        int leafMaxDoc = leaves.get(leaf).reader().maxDoc();
+
+        for (int docid = 0; docid < leafMaxDoc; docid++) {
+          long v = (n == null) ? 0 : n.get(docid);
+
+          switch (widths[f]) {
+            case 1:  b.put((byte) v);  break;
+            case 2:  b.putShort((short) v);  break;
+            case 4:  b.putInt((int) v);  break;
+            default:  b.putLong(v);  break;
+          }
+        }
+      }
+    }
+
+    return b;
+  }
+
+  private void setBuffer(ByteBuffer b) {
+    int numFields = b.getInt(20);
+    int p = HEADER_LENGTH;
+
+    this.widths = new int[numFields];
+    this.arrays = new ByteBuffer[numFields];
+
+    for (int f = 0; f < numFields; f++) {
+      byte[] name = new byte[b.getInt(p)];
+      p += 4;
+      for (int i = 0; i < name.length; i++) {
+        name[i] = b.get(p++);
+      }
+      this.widths[f] = b.getInt(p);
+      int offset = (int) b.getLong(p + 4);
+      p += 12;
+
+      ByteBuffer array = b.duplicate();
+      array.limit(offset + this.widths[f] * b.getInt(16));
+      array.position(offset);
+      this.arrays[f] = array.slice();
+      this.slots.put(new String(name, StandardCharsets.UTF_8), f);
+    }
+  }
+
+  /**
+   * Returns the slot of a field, which can be passed to
+   * {@link #getDocLength(int, int)}.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return The slot of the field, or -1 if the field has no lengths.
+   */
+  public int getFieldSlot(String fieldname) {
+    Integer slot = this.slots.get(fieldname);
+    return (slot == null) ? -1 : slot;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -39,6 +301,31 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(this.slots.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the field in a slot in the specified document.
+   *
+   * @param slot A slot returned by {@link #getFieldSlot}.
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getDocLength(int slot, int docid) throws IOException {
+    if (this.values != null) {
+      int leaf = ReaderUtil.subIndex(docid, this.docBases);
+      NumericDocValues n = this.values[slot][leaf];
+      return (n == null) ? 0 : n.get(docid - this.docBases[leaf]);
+    }
+
+    ByteBuffer array = this.arrays[slot];
+
+    switch (this.widths[slot]) {
+      case 1:  return array.get(docid) & 0xFF;
+      case 2:  return array.getShort(docid << 1) & 0xFFFF;
+      case 4:  return array.getInt(docid << 2);
+      default:  return array.getLong(docid << 3);
+    }
   }
 }
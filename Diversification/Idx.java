@@ -2,14 +2,9 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
-import java.nio.file.Paths;
 import java.util.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -31,13 +26,14 @@ public class Idx {
    */
   public static IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  /**
+   *  The context of the current index.  All other static state is
+   *  derived from it.
+   */
+  private static volatile IndexContext CURRENT=null;
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
-  private static String externalIdField = new String ("externalId");
+  private static HashMap<String,IndexContext> openIndexContexts =
+    new HashMap<String,IndexContext> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -50,9 +46,7 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
-
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+    return Idx.CURRENT.getAttribute (attributeName, docid);
   }
 
   /**
@@ -63,7 +57,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CURRENT.getIndexStats ().getFieldStats (fieldName).docCount;
   }
 
   /**
@@ -74,9 +68,19 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+    return Idx.CURRENT.getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id, i.e., its rank
+   *  among all external ids in the index.  Ordinals sort in the same
+   *  order as external ids, so they can be used to break ties
+   *  without string comparisons.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id ordinal
+   */
+  public static int getExternalDocidOrdinal (int iid) {
+    return Idx.CURRENT.getExternalDocidOrdinal (iid);
   }
 
   /**
@@ -88,7 +92,7 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CURRENT.getFieldLength (fieldName, docid);
   }
 
   /**
@@ -101,21 +105,66 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
+    return Idx.CURRENT.getInternalDocid (externalId);
+  }
 
-    BytesRef termBytes = new BytesRef (externalId);
-    Term term = new Term (externalIdField, termBytes);
-    int df = Idx.INDEXREADER.docFreq (term);
+  /**
+   *  Get the internal document ids for a collection of documents
+   *  specified by their external ids.  This is much faster than
+   *  calling getInternalDocid for each external id.  If the index
+   *  has an external id hash, each id is one probe; otherwise the
+   *  ids are sorted and looked up segment by segment with one
+   *  sequential pass over each segment's term dictionary.  If any
+   *  document doesn't exist, throw an exception.
+   *  @param externalIds External docids in the Lucene index.
+   *  @return A map from external docids to internal docids.
+   *  @throws Exception Could not read the internal document ids from the index.
+   */
+  public static Map<String,Integer> getInternalDocids(Collection<String> externalIds)
+    throws Exception {
+    return Idx.CURRENT.getInternalDocids (externalIds);
+  }
 
-    if (df == 0) {
-      throw new Exception ("External id " + externalId + " not found.");
-    } else if (df > 1) {
-      throw new Exception ("Multiple matches for external id " + externalId);
-    }
+  /**
+   *  Get the internal document ids for a collection of documents
+   *  specified by their external ids, as getInternalDocids does, but
+   *  leave documents that don't exist out of the map instead of
+   *  throwing an exception.  Callers that only need some of the ids
+   *  can report a missing document when they use it.
+   *  @param externalIds External docids in the Lucene index.
+   *  @return A map from the external docids that were found to
+   *  internal docids.
+   *  @throws Exception Could not read the internal document ids from the index.
+   */
+  public static Map<String,Integer> findInternalDocids(Collection<String> externalIds)
+    throws Exception {
+    return Idx.CURRENT.findInternalDocids (externalIds);
+  }
+
+  /**
+   *  Get the document length store of the current index.
+   *  @return The document length store.
+   */
+  public static DocLengthStore getDocLengthStore () {
+    return Idx.CURRENT.getDocLengthStore ();
+  }
 
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, externalIdField, termBytes);
-    iList.nextDoc();
-    return (iList.docID());
+  /**
+   *  Get the external id table of the current index.
+   *  @return The external id table.
+   */
+  public static ExternalIdStore getExternalIdStore () {
+    return Idx.CURRENT.getExternalIdStore ();
+  }
+
+  /**
+   *  Get the collection statistics of the current index.  The
+   *  snapshot is immutable; it is replaced when the index is
+   *  reopened.
+   *  @return The collection statistics.
+   */
+  public static IndexStats getIndexStats () {
+    return Idx.CURRENT.getIndexStats ();
   }
 
   /**
@@ -124,7 +173,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CURRENT.getIndexStats ().numDocs;
   }
 
   /**
@@ -137,7 +186,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CURRENT.getIndexStats ().getFieldStats (fieldName).sumOfLengths;
   }
 
 
@@ -152,9 +201,36 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENT.getTotalTermFreq (fieldName, term);
+  }
+
+
+  /**
+   *  Get the context of the current index.  Code that may run while
+   *  another thread changes the current index should get the context
+   *  once and use it instead of the static methods.
+   *  @return The context of the current index.
+   */
+  public static IndexContext getIndexContext () {
+    return Idx.CURRENT;
   }
 
+  /**
+   *  Get the context of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The context of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static synchronized IndexContext getIndexContext (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexContext context = openIndexContexts.get (indexPath);
+
+    if (context == null) {
+      throw new IllegalArgumentException ("The index " + indexPath + " isn't open");
+    }
+    return context;
+  }
 
   /**
    *  Open a Lucene index and the associated DocLengthStore.
@@ -162,41 +238,52 @@ public class Idx {
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static synchronized void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
-    IndexReader indexReader;
-    DocLengthStore docLengthStore;
+    //  Keep track of the open indexes.
 
-    //  Open the Lucene index
+    openIndexContexts.put (indexPath, IndexContext.open (indexPath));
 
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Unable to open the index.");
-    }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
-
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
+    //  The current index defaults to the first open index.
+
+    if (Idx.CURRENT == null) {
+      setCurrentIndex (indexPath);
     }
+  }
 
-    //  Keep track of the open indexes.
+  /**
+   *  Reopen an open Lucene index if it has changed since it was
+   *  opened, e.g., because documents were added.  The auxiliary data
+   *  structures and collection statistics of the old reader are
+   *  discarded and rebuilt for the new reader.  Query operators that
+   *  were initialized with the old reader must be initialized again.
+   *  The old context is closed, so retrieval models should follow the
+   *  current index; a model that was given the old context with
+   *  {@link RetrievalModel#setIndexContext} must be given the new one.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return true if the index was reopened, false if it was unchanged.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error accessing the index.
+   */
+  public static synchronized boolean reopen (String indexPath)
+    throws IllegalArgumentException, IOException {
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    IndexContext oldContext = getIndexContext (indexPath);
+    IndexContext newContext = oldContext.reopen ();
 
-    //  The current index defaults to the first open index.
+    if (newContext == null) {
+      return false;
+    }
+
+    openIndexContexts.put (indexPath, newContext);
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+    if (Idx.CURRENT == oldContext) {
+      setCurrentIndex (indexPath);
     }
+
+    oldContext.close ();
+    return true;
   }
 
   /**
@@ -204,18 +291,17 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexContext context = openIndexContexts.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (context == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CURRENT = context;
+    Idx.INDEXREADER = context.getIndexReader ();
   }
 }
@@ -0,0 +1,140 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  LeafPostings reads the postings of terms one index segment (leaf)
+ *  at a time.  The MultiFields views that Lucene provides merge the
+ *  segments' postings on the fly, which costs a little on every
+ *  posting of a multi-segment index.  Reading each leaf separately
+ *  avoids that, and it lets callers handle leaves independently.
+ *  Postings have leaf docids; add {@link #getDocBase} to get index
+ *  docids.
+ *  <p>
+ *  The TermsEnum of each leaf and field, and one PostingsEnum per
+ *  leaf, are reused from term to term, so an object must be used by
+ *  one thread at a time.  {@link IndexContext#getLeafPostings} keeps
+ *  one object per thread for each index.
+ *  </p>
+ */
+public final class LeafPostings {
+
+  //  --------------- Constants and variables -----------------------
+
+  private final List<LeafReaderContext> leaves;
+
+  /**
+   *  The terms of each field in each leaf, created on first use.
+   *  A leaf that doesn't have the field has a null entry.
+   */
+  private final Map<String, TermsEnum[]> termsEnums =
+    new HashMap<String, TermsEnum[]> ();
+
+  /**
+   *  The PostingsEnum of each leaf that postings reuses.
+   */
+  private final PostingsEnum[] reusable;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Read the postings of an index.
+   *  @param reader The index.
+   */
+  public LeafPostings (IndexReader reader) {
+    this.leaves = reader.leaves ();
+    this.reusable = new PostingsEnum[this.leaves.size ()];
+  }
+
+  /**
+   *  Get the number of leaves in the index.
+   *  @return The number of leaves.
+   */
+  public int size () {
+    return this.leaves.size ();
+  }
+
+  /**
+   *  Get the index docid of the first document of a leaf.
+   *  @param leaf The leaf's index, from 0 to size () - 1.
+   *  @return The docid.
+   */
+  public int getDocBase (int leaf) {
+    return this.leaves.get (leaf).docBase;
+  }
+
+  /**
+   *  Get the postings of a term in a leaf.  The postings object is
+   *  reused by the next call for the same leaf, so the caller must
+   *  be done with it before then.
+   *  @param leaf The leaf's index, from 0 to size () - 1.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term.
+   *  @param flags The PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @return The postings, or null if the leaf doesn't have the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsEnum postings (int leaf, String field, BytesRef term, int flags)
+    throws IOException {
+
+    PostingsEnum p = this.newPostings (leaf, field, term, this.reusable[leaf], flags);
+
+    if (p != null) {
+      this.reusable[leaf] = p;
+    }
+
+    return p;
+  }
+
+  /**
+   *  Get postings of a term in a leaf that the caller owns, e.g., to
+   *  read them while other terms are read.
+   *  @param leaf The leaf's index, from 0 to size () - 1.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term.
+   *  @param reuse A PostingsEnum that may be reused, or null.
+   *  @param flags The PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @return The postings, or null if the leaf doesn't have the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsEnum newPostings (int leaf, String field, BytesRef term,
+                                   PostingsEnum reuse, int flags)
+    throws IOException {
+
+    TermsEnum terms = this.getTermsEnum (leaf, field);
+
+    if ((terms == null) || ! terms.seekExact (term)) {
+      return null;
+    }
+
+    return terms.postings (reuse, flags);
+  }
+
+  /**
+   *  Get the terms of a field in a leaf.
+   *  @return The terms, or null if the leaf doesn't have the field.
+   */
+  private TermsEnum getTermsEnum (int leaf, String field) throws IOException {
+
+    TermsEnum[] enums = this.termsEnums.get (field);
+
+    if (enums == null) {
+      enums = new TermsEnum[this.leaves.size ()];
+
+      for (int i = 0; i < enums.length; i++) {
+        Terms terms = this.leaves.get (i).reader ().terms (field);
+        enums[i] = (terms == null) ? null : terms.iterator ();
+      }
+
+      this.termsEnums.put (field, enums);
+    }
+
+    return enums[leaf];
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A PositionHeap merges the position lists of a document's query
+ *  arguments.  The lists are sorted, and the heap keeps a cursor into
+ *  each one, ordered by the position that the cursor is at, so the
+ *  smallest position of k lists is found in O(log k) time without
+ *  boxing or sorting.  #SYN uses it to union its arguments' positions
+ *  and #WINDOW uses it to find the windows that they match.  One or
+ *  two lists are merged directly, and windows of a few lists are
+ *  found by scanning the cursors, which costs less than maintaining
+ *  a heap when k is small.
+ *  <p>
+ *  A heap is reused from document to document:  {@link #clear} it,
+ *  {@link #add} the lists, then merge them.  The lists aren't copied,
+ *  so they must not change until the merge is done.
+ *  </p>
+ */
+public final class PositionHeap {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  Windows of this many lists or fewer are found by scanning the
+   *  cursors, which is faster than a heap for small k.
+   */
+  private static final int MAX_SCAN_LISTS = 12;
+
+  private int lists = 0;			// Lists added since clear
+  private int[][] positions = new int[4][];
+  private int[] offsets = new int[4];		// Each list's cursor
+  private int[] lengths = new int[4];
+
+  /**
+   *  The heap of cursors.  Each entry is the position that a cursor is
+   *  at in the high 32 bits and its list id in the low 32 bits, so
+   *  entries are ordered by position.
+   */
+  private int size = 0;
+  private long[] heap = new long[4];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Remove the lists.
+   */
+  public void clear () {
+    this.lists = 0;
+    this.size = 0;
+  }
+
+  /**
+   *  Add a list.
+   *  @param positions An array whose first length elements are sorted
+   *  positions.
+   *  @param length The number of positions.
+   */
+  public void add (int[] positions, int length) {
+
+    if (this.lists == this.positions.length) {
+      int n = 2 * this.lists;
+
+      this.positions = Arrays.copyOf (this.positions, n);
+      this.offsets = Arrays.copyOf (this.offsets, n);
+      this.lengths = Arrays.copyOf (this.lengths, n);
+      this.heap = Arrays.copyOf (this.heap, n);
+    }
+
+    this.positions[this.lists] = positions;
+    this.offsets[this.lists] = 0;
+    this.lengths[this.lists] = length;
+    this.lists ++;
+  }
+
+  /**
+   *  Get the total number of positions in the lists.
+   *  @return The number of positions.
+   */
+  public int getTotalLength () {
+
+    int total = 0;
+
+    for (int i = 0; i < this.lists; i++) {
+      total += this.lengths[i];
+    }
+
+    return total;
+  }
+
+  /**
+   *  Get the number of positions in the shortest list.
+   *  @return The number of positions, or 0 if there are no lists.
+   */
+  public int getMinLength () {
+
+    if (this.lists == 0) {
+      return 0;
+    }
+
+    int min = this.lengths[0];
+
+    for (int i = 1; i < this.lists; i++) {
+      min = Math.min (min, this.lengths[i]);
+    }
+
+    return min;
+  }
+
+  /**
+   *  Merge the lists into one sorted list.  Positions that occur in
+   *  several lists occur that many times in the result.
+   *  @param result An array of at least getTotalLength () elements
+   *  that the positions are stored in.
+   *  @return The number of positions.
+   */
+  public int merge (int[] result) {
+
+    if (this.lists == 1) {
+      System.arraycopy (this.positions[0], 0, result, 0, this.lengths[0]);
+      return this.lengths[0];
+    } else if (this.lists == 2) {
+      return this.mergeTwo (result);
+    }
+
+    this.build ();
+
+    int count = 0;
+
+    while (this.size > 0) {
+      result[count++] = (int) (this.heap[0] >>> 32);
+
+      if (! this.advanceMin ()) {
+        this.size --;
+        this.heap[0] = this.heap[this.size];
+      }
+
+      this.siftDown (0);
+    }
+
+    return count;
+  }
+
+  /**
+   *  Find the windows where a position from every list occurs, and
+   *  the positions are less than a distance apart, as #WINDOW does.
+   *  Positions aren't shared by windows.  While the lists' current
+   *  positions span too many words, the smallest one can't be in any
+   *  window, so its cursor is advanced; when they fit, the window is
+   *  recorded and every cursor is advanced.
+   *  @param distance The size of a window.
+   *  @param result An array of at least getMinLength () elements that
+   *  the windows' last positions are stored in.
+   *  @return The number of windows.
+   */
+  public int window (int distance, int[] result) {
+
+    if (this.lists <= MAX_SCAN_LISTS) {
+      return this.windowScan (distance, result);
+    }
+
+    if (! this.build () || (this.size < this.lists)) {
+      return 0;				// A list is empty
+    }
+
+    int count = 0;
+    int max = this.getMaxPosition ();
+
+    while (true) {
+      if (max - (int) (this.heap[0] >>> 32) < distance) {
+        result[count++] = max;
+
+        for (int i = 0; i < this.lists; i++) {
+          if (++ this.offsets[i] >= this.lengths[i]) {
+            return count;
+          }
+        }
+
+        this.build ();
+        max = this.getMaxPosition ();
+      } else {
+        if (! this.advanceMin ()) {
+          return count;
+        }
+
+        max = Math.max (max, (int) (this.heap[0] >>> 32));
+        this.siftDown (0);
+      }
+    }
+  }
+
+  /**
+   *  Merge two lists.
+   */
+  private int mergeTwo (int[] result) {
+
+    int[] a = this.positions[0];
+    int[] b = this.positions[1];
+    int aLength = this.lengths[0];
+    int bLength = this.lengths[1];
+    int i = 0;
+    int j = 0;
+    int count = 0;
+
+    while ((i < aLength) && (j < bLength)) {
+      result[count++] = (a[i] <= b[j]) ? a[i++] : b[j++];
+    }
+
+    while (i < aLength) {
+      result[count++] = a[i++];
+    }
+
+    while (j < bLength) {
+      result[count++] = b[j++];
+    }
+
+    return count;
+  }
+
+  /**
+   *  Find windows, as window does, by scanning every cursor for the
+   *  minimum and maximum positions.
+   */
+  private int windowScan (int distance, int[] result) {
+
+    if (this.getMinLength () == 0) {
+      return 0;
+    }
+
+    int[][] positions = this.positions;
+    int[] offsets = this.offsets;
+    int[] lengths = this.lengths;
+    int lists = this.lists;
+    int count = 0;
+
+    while (true) {
+      int min = Integer.MAX_VALUE;
+      int max = 0;
+      int minList = 0;
+
+      for (int i = 0; i < lists; i++) {
+        int p = positions[i][offsets[i]];
+
+        max = Math.max (max, p);
+
+        if (p < min) {
+          min = p;
+          minList = i;
+        }
+      }
+
+      if (max - min < distance) {
+        result[count++] = max;
+
+        for (int i = 0; i < lists; i++) {
+          if (++ offsets[i] >= lengths[i]) {
+            return count;
+          }
+        }
+      } else if (++ offsets[minList] >= lengths[minList]) {
+        return count;
+      }
+    }
+  }
+
+  /**
+   *  Build the heap from the lists' cursors.  Lists that have no
+   *  positions left aren't in the heap.
+   *  @return True if the heap isn't empty.
+   */
+  private boolean build () {
+
+    this.size = 0;
+
+    for (int i = 0; i < this.lists; i++) {
+      if (this.offsets[i] < this.lengths[i]) {
+        this.heap[this.size++] = entry (this.positions[i][this.offsets[i]], i);
+      }
+    }
+
+    for (int i = this.size / 2 - 1; i >= 0; i--) {
+      this.siftDown (i);
+    }
+
+    return (this.size > 0);
+  }
+
+  /**
+   *  Advance the cursor of the list at the top of the heap, and put
+   *  its new position at the top.  The caller restores the heap.
+   *  @return False if the list has no positions left.
+   */
+  private boolean advanceMin () {
+
+    int id = (int) this.heap[0];
+
+    if (++ this.offsets[id] >= this.lengths[id]) {
+      return false;
+    }
+
+    this.heap[0] = entry (this.positions[id][this.offsets[id]], id);
+    return true;
+  }
+
+  private static long entry (int position, int id) {
+    return ((long) position << 32) | id;
+  }
+
+  private int getMaxPosition () {
+
+    long max = this.heap[0];
+
+    for (int i = 1; i < this.size; i++) {
+      max = Math.max (max, this.heap[i]);
+    }
+
+    return (int) (max >>> 32);
+  }
+
+  private void siftDown (int i) {
+
+    long entry = this.heap[i];
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size) {
+        break;
+      }
+
+      if ((child + 1 < this.size) &&
+          (this.heap[child + 1] < this.heap[child])) {
+        child ++;
+      }
+
+      if (this.heap[child] >= entry) {
+        break;
+      }
+
+      this.heap[i] = this.heap[child];
+      i = child;
+    }
+
+    this.heap[i] = entry;
+  }
+}
@@ -8,6 +8,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -99,11 +100,12 @@ public class QryEval {
         } else {
             initRanking = new HashMap<String, List<DocScore>>();
             Map<String, List<DocScore>> intermediate = null;
-            intermediate = getInitialRanking(queryFile, maxInputLength, model, docIntentScore);
+            QueryBatchExecutor executor = QueryBatchExecutor.fromParameters(parameters);
+            intermediate = getInitialRanking(queryFile, maxInputLength, model, docIntentScore, executor);
             if (intermediate != null && intermediate.size() > 0) {
                 initRanking.putAll(intermediate);
             }
-            intermediate = getInitialRanking(intentFile, maxInputLength, model, docIntentScore, initRanking);
+            intermediate = getInitialRanking(intentFile, maxInputLength, model, docIntentScore, initRanking, executor);
             if (intermediate != null && intermediate.size() > 0) {
                 initRanking.putAll(intermediate);
             }
@@ -141,7 +143,8 @@ public class QryEval {
         
     } else {
       processQueryFile(parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), 
-              parameters.get("trecEvalOutputLength"), model);
+              parameters.get("trecEvalOutputLength"), model,
+              QueryBatchExecutor.fromParameters (parameters));
     }
 
     //  Clean up.
@@ -507,6 +510,16 @@ public class QryEval {
 //      Map<String, List<DocScore>> initRanking = new HashMap<String, List<DocScore>>();
       int max = Integer.parseInt(maxInputLength);
       try {
+          // resolve the external ids of the whole ranking file in one batch
+          List<String> externalIds = new ArrayList<String>();
+          input = new BufferedReader(new FileReader(initRankingFile));
+          String idLine = null;
+          while ((idLine = input.readLine()) != null) {
+              externalIds.add(idLine.split(" +")[2]);
+          }
+          input.close();
+          Map<String, Integer> internalIds = Idx.getInternalDocids(externalIds);
+
           reader = new FileReader(initRankingFile);
           input = new BufferedReader(reader);
           int count = 1;
@@ -533,7 +546,7 @@ public class QryEval {
               }
 //              System.out.println(qid + ", " + max);
               if (count <= max) {
-                  int docId = Idx.getInternalDocid(info[2]);
+                  int docId = internalIds.get(info[2]);
                   double score = Double.parseDouble(info[4]);
                   if (score >= 1) {
                       scaling = true;
@@ -586,6 +599,8 @@ public class QryEval {
       throw new IllegalArgumentException
         ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
     }
+
+    model.setEvaluationOptions (parameters);
       
     return model;
   }
@@ -610,7 +625,7 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query and keep every matching document.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
    * @return Search results
@@ -618,6 +633,20 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, model, 0);
+  }
+
+  /**
+   * Process one query.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return, or 0 to return every
+   *          matching document.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
 
     String defaultOp = model.defaultQrySopName ();
     qString = defaultOp + "(" + qString + ")";
@@ -629,12 +658,33 @@ public class QryEval {
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
+      //  Only the top k documents are kept, unless the caller asks
+      //  for all of them.
+
+      ScoreList r = null;
+      TopKCollector topK = null;
+
+      if (k > 0) {
+        topK = new TopKCollector (model.getIndexContext (), k);
+      } else {
+        r = new ScoreList (model.getIndexContext ());
+      }
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
+        //  Choose the order in which conjunctive operators visit their
+        //  arguments, so that rare arguments drive the iteration.
+
+        QryPlanner.plan (q, model);
         q.initialize (model);
 
+        //  The evaluator may skip documents that can't enter the top k.
+
+        if (topK != null) {
+          QryEvaluator.forQuery (q, model).evaluate ((QrySop) q, model, topK);
+          return topK.getScoreList ();
+        }
+
 //        System.out.println("QryIval processQuery");
         while (q.docIteratorHasMatch (model)) {
           int docid = q.docIteratorGetMatch ();   // QryIop
@@ -644,6 +694,11 @@ public class QryEval {
           q.docIteratorAdvancePast (docid);
         }
       }
+
+      if (topK != null) {
+        return topK.getScoreList ();
+      }
+
       // changed. add sort method.
       r.sort();
 
@@ -653,51 +708,56 @@ public class QryEval {
   }
 
   private static Map<String, List<DocScore>> getInitialRanking(String filePath, String maxInputLength, 
-          RetrievalModel model, Map<Integer, List<IntentScore>> docIntentScore) throws Exception {
-      FileReader reader = null;
-      BufferedReader input = null;
-      Map<String, List<DocScore>> initRanking = new HashMap<String, List<DocScore>>();
-      try {
-          reader = new FileReader(filePath);
-          input = new BufferedReader(reader);
-          String line = null;
-          Map<String, List<DocScore>> tmp = null;
-          while ((line = input.readLine()) != null) {
-              tmp = processQuery(line, model, maxInputLength, docIntentScore);
-              if (tmp != null) {
-                  initRanking.putAll(tmp);
-              }
-          }
-      } catch (Exception e) {
-          e.printStackTrace();
-      } finally {
-          reader.close();
-          input.close();
-      }
-      return initRanking;
+          RetrievalModel model, Map<Integer, List<IntentScore>> docIntentScore,
+          QueryBatchExecutor executor) throws Exception {
+      return getInitialRanking(filePath, maxInputLength, model, docIntentScore, null, executor);
   }
   
+  /**
+   * Retrieve the initial ranking of each query in a file.  If init is
+   * not null, the ranking of an intent (e.g., 1.2) is as long as the
+   * initial ranking of its query.  Queries are evaluated by the
+   * executor; the rankings are collected in input order.
+   */
   private static Map<String, List<DocScore>> getInitialRanking(String filePath, String maxInputLength, 
           RetrievalModel model, Map<Integer, List<IntentScore>> docIntentScore, 
-          Map<String, List<DocScore>> init) throws Exception {
+          Map<String, List<DocScore>> init, QueryBatchExecutor executor) throws Exception {
       FileReader reader = null;
       BufferedReader input = null;
       Map<String, List<DocScore>> initRanking = new HashMap<String, List<DocScore>>();
+      List<String> qids = new ArrayList<String>();
+      List<String> lines = new ArrayList<String>();
+      List<String> maxLengths = new ArrayList<String>();
+      List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
       try {
           reader = new FileReader(filePath);
           input = new BufferedReader(reader);
           String line = null;
-          Map<String, List<DocScore>> tmp = null;
           while ((line = input.readLine()) != null) {
               int index = line.indexOf('.');
-              if (index >= 0) {
+              if (init != null && index >= 0) {
                   maxInputLength = String.valueOf(init.get(line.substring(0, index)).size());
               }
-              tmp = processQuery(line, model, maxInputLength, docIntentScore);
+              int d = line.indexOf(':');
+              if (d < 0) {
+                  throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+              }
+              String query = line.substring(d + 1);
+              qids.add(line.substring(0, d));
+              lines.add(line);
+              maxLengths.add(maxInputLength);
+              int depth = Integer.parseInt(maxInputLength);
+              tasks.add(() -> processQuery(query, model, depth));
+          }
+          executor.run(qids, tasks, (n, r) -> {
+              printMemoryUsage(false);
+              System.out.println("Query " + lines.get(n));
+              Map<String, List<DocScore>> tmp =
+                  addInitialRanking(qids.get(n), r, maxLengths.get(n), docIntentScore);
               if (tmp != null) {
                   initRanking.putAll(tmp);
               }
-          }
+          });
       } catch (Exception e) {
           e.printStackTrace();
       } finally {
@@ -707,20 +767,10 @@ public class QryEval {
       return initRanking;
   }
   
-  private static Map<String, List<DocScore>> processQuery(String line, RetrievalModel model, String maxInputLength,
-          Map<Integer, List<IntentScore>> docIntentScore) throws Exception {
+  private static Map<String, List<DocScore>> addInitialRanking(String qid, ScoreList r, String maxInputLength,
+          Map<Integer, List<IntentScore>> docIntentScore) {
       List<DocScore> list = new LinkedList<DocScore>();
       Map<String, List<DocScore>> map = null;
-      int d = line.indexOf(':');
-      if (d < 0) {
-          throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
-      }
-      printMemoryUsage(false);
-      String qid = line.substring(0, d);
-      String query = line.substring(d + 1);
-      System.out.println("Query " + line);
-      ScoreList r = null;
-      r = processQuery(query, model);
       if (r != null) {
           int max = Integer.parseInt(maxInputLength);
           map = new HashMap<String, List<DocScore>>();
@@ -743,21 +793,26 @@ public class QryEval {
    *  Process the query file.
    *  @param queryFilePath
    *  @param model
+   *  @param executor Evaluates the queries.
    *  @throws IOException Error accessing the Lucene index.
    */
   // changed. The original one is static void processQF(String queryFilePath, RM model)
   static void processQueryFile(String queryFilePath, String trecEvalOutputPath, String trecEvalOutputLength, 
-                               RetrievalModel model)
+                               RetrievalModel model, QueryBatchExecutor executor)
       throws IOException {
 
     BufferedReader input = null;
+    List<String> qids = new ArrayList<String>();
+    List<String> qLines = new ArrayList<String>();
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
+    int outputLength = Integer.parseInt(trecEvalOutputLength);
 
     try {
       String qLine = null;
 
       input = new BufferedReader(new FileReader(queryFilePath));
 
-      //  Each pass of the loop processes one query.
+      //  Each pass of the loop prepares one query.
 
       while ((qLine = input.readLine()) != null) {
         int d = qLine.indexOf(':');
@@ -767,23 +822,27 @@ public class QryEval {
             ("Syntax error:  Missing ':' in query line.");
         }
 
-        printMemoryUsage(false);
-
         String qid = qLine.substring(0, d);
         String query = qLine.substring(d + 1);
 
-        System.out.println("Query " + qLine);
+        qids.add(qid);
+        qLines.add(qLine);
+        tasks.add(() -> processQuery(query, model, outputLength));
+      }
 
-        ScoreList r = null;
+      //  The queries are evaluated by the executor; results are
+      //  printed in input order.
 
-//        System.out.println("query: " + query);
-        r = processQuery(query, model);
+      executor.run(qids, tasks, (n, r) -> {
+        printMemoryUsage(false);
+
+        System.out.println("Query " + qLines.get(n));
 
         if (r != null) {
-          printResults(qid, r, trecEvalOutputLength, trecEvalOutputPath);
+          printResults(qids.get(n), r, trecEvalOutputLength, trecEvalOutputPath);
           System.out.println();
         }
-      }
+      });
     } catch (IOException ex) {
       ex.printStackTrace();
     } finally {
@@ -0,0 +1,215 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  A QryEvaluator finds the top k documents of an initialized query.
+ *  The default evaluator, {@link QryEvaluatorDaat}, scores every
+ *  document that the query matches.  Evaluators that use
+ *  <i>dynamic pruning</i> skip documents whose score bound (see
+ *  {@link QrySop#getMaxScore}) shows that they can't enter the top k;
+ *  they return the same documents, with the same scores, as the
+ *  default evaluator.
+ *  <p>
+ *  The retrieval model's dynamicPruning parameter chooses the
+ *  evaluator.  Pruning is used for BM25 #SUM queries and for Indri
+ *  #AND and #WAND queries, which always use MaxScore; other queries
+ *  are evaluated by the default evaluator, or, if the retrieval
+ *  model's compiledQueries parameter (or Indri's logDomain
+ *  parameter) is true, by {@link QryEvaluatorCompiled}.  Pruning
+ *  takes precedence over compiledQueries.  It doesn't take
+ *  precedence over logDomain, because the pruning evaluator scores
+ *  in the linear domain:  Indri's logDomain parameter turns
+ *  dynamicPruning off when the model is configured.  If the
+ *  intraQueryThreads parameter is more than 1, the default evaluator
+ *  is run on ranges of docids in parallel by {@link QryEvaluatorParallel},
+ *  which also builds #NEAR, #WINDOW and #SYN lists a range at a time.
+ *  Boolean queries are evaluated with set operations by
+ *  {@link QryEvaluatorBoolean} if the booleanBitsets parameter is true.
+ *  If BM25's termAtATime parameter is true, the query planner chooses
+ *  whether short #SUM queries are evaluated by {@link QryEvaluatorTaat},
+ *  which also prunes when dynamicPruning isn't "none".
+ *  </p>
+ */
+public abstract class QryEvaluator {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The docid of an argument that has no more matches.
+   */
+  protected static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   *  Score bounds are sums of doubles that are added in a different
+   *  order than the scores that they bound, so a bound is relaxed by
+   *  this fraction before it is compared with the top-k threshold.
+   */
+  private static final double BOUND_SLACK = 1e-10;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Choose the evaluator for a query.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The evaluator.
+   */
+  public static QryEvaluator forQuery (Qry q, RetrievalModel r) {
+
+    if ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum) &&
+        ((RetrievalModelBM25) r).termAtATime &&
+        QryPlanner.useTermAtATime ((QrySop) q, r)) {
+      return new QryEvaluatorTaat ();
+    }
+
+    return forQueryDocumentAtATime (q, r);
+  }
+
+  /**
+   *  Choose the evaluator for a query, as forQuery does, without
+   *  considering term-at-a-time evaluation.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The evaluator.
+   */
+  protected static QryEvaluator forQueryDocumentAtATime (Qry q, RetrievalModel r) {
+
+    if ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) {
+      if (r.dynamicPruning.equals ("wand")) {
+        return new QryEvaluatorWand ();
+      } else if (r.dynamicPruning.equals ("maxscore")) {
+        return new QryEvaluatorMaxScore ();
+      } else if (r.dynamicPruning.equals ("bmw")) {
+        return new QryEvaluatorBmw ();
+      }
+    }
+
+    //  Indri queries have one pruning evaluator.
+
+    if ((r instanceof RetrievalModelIndri) &&
+        ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd)) &&
+        ! r.dynamicPruning.equals ("none")) {
+      return new QryEvaluatorIndriMaxScore ();
+    }
+
+    //  Boolean queries may be evaluated as sets.
+
+    if (r.booleanBitsets &&
+        ((r instanceof RetrievalModelUnrankedBoolean) ||
+         (r instanceof RetrievalModelRankedBoolean))) {
+      return new QryEvaluatorBoolean ();
+    }
+
+    //  Log-domain Indri scores are computed only by compiled queries.
+
+    if (r.compiledQueries ||
+        ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).logDomain)) {
+      return new QryEvaluatorCompiled ();
+    }
+
+    if (r.intraQueryThreads > 1) {
+      return new QryEvaluatorParallel ();
+    }
+
+    return new QryEvaluatorDaat ();
+  }
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException;
+
+  /**
+   *  True if a document whose score is at most bound can't enter the
+   *  top k.  A document that ties the threshold can still enter the
+   *  top k, so it isn't pruned.
+   *  @param bound An upper bound on the document's score.
+   *  @param threshold The top-k threshold; see {@link TopKCollector#getThreshold}.
+   *  @return True if the document can be skipped.
+   */
+  protected static boolean belowThreshold (double bound, double threshold) {
+    return bound + Math.abs (bound) * BOUND_SLACK < threshold;
+  }
+
+  /**
+   *  Get the docid that a query argument matches now.
+   *  @param q The query argument.
+   *  @param r The retrieval model.
+   *  @return The docid, or NO_MORE_DOCS if the argument has no more matches.
+   */
+  protected static int docid (Qry q, RetrievalModel r) {
+    return q.docIteratorHasMatch (r) ? q.docIteratorGetMatch () : NO_MORE_DOCS;
+  }
+
+  /**
+   *  Get the score bound of each argument of a query.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The bounds, or null if an argument can't bound its scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected static double[] getArgBounds (QrySop q, RetrievalModel r)
+    throws IOException {
+
+    double[] bounds = new double[q.args.size ()];
+
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = ((QrySop) q.args.get (i)).getMaxScore (r);
+
+      if (Double.isInfinite (bounds[i]) || Double.isNaN (bounds[i])) {
+        return null;
+      }
+    }
+
+    return bounds;
+  }
+
+  /**
+   *  Add up the scores of the arguments that match a document, in
+   *  argument order, which is how QrySopSum adds them.
+   *  @param docs The docid that each argument matches.
+   *  @param scores The score of each argument that matches docid.
+   *  @param docid The document.
+   *  @return The document's score.
+   */
+  protected static double sumScores (int[] docs, double[] scores, int docid) {
+
+    double score = 0;
+
+    for (int i = 0; i < docs.length; i++) {
+      if (docs[i] == docid) {
+        score += scores[i];
+      }
+    }
+
+    return score;
+  }
+
+  /**
+   *  Sort arguments by the docid that they match.  Only a few
+   *  arguments move between calls, so an insertion sort is used.
+   *  @param order The arguments, which are sorted in place.
+   *  @param docs The docid that each argument matches.
+   */
+  protected static void sortByDocid (int[] order, int[] docs) {
+
+    for (int i = 1; i < order.length; i++) {
+      int o = order[i];
+      int j = i - 1;
+
+      while ((j >= 0) && (docs[order[j]] > docs[o])) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = o;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  The Block-Max WAND evaluator for #SUM queries.  It finds the pivot
+ *  the way that {@link QryEvaluatorWand} does.  Before the pivot's
+ *  document is considered, the bounds of the blocks that cover it
+ *  are added up (see {@link QrySop#getBlockMaxScores}); if they can't
+ *  reach the top-k threshold, no document up to the end of the
+ *  shortest of those blocks can, so the arguments skip past it.
+ *  Without a block-max table, each argument is a single block and
+ *  the evaluator behaves like WAND.
+ */
+public class QryEvaluatorBmw extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    double[] bounds = getArgBounds (q, r);
+
+    if (bounds == null) {
+      new QryEvaluatorDaat ().evaluate (q, r, topK);
+      return;
+    }
+
+    int n = bounds.length;
+    int[] docs = new int[n];
+    double[] scores = new double[n];
+    int[] order = new int[n];		// Arguments, in docid order
+    BlockMaxScores[] blocks = new BlockMaxScores[n];
+
+    for (int i = 0; i < n; i++) {
+      docs[i] = docid (q.args.get (i), r);
+      order[i] = i;
+      blocks[i] = ((QrySop) q.args.get (i)).getBlockMaxScores (r);
+    }
+
+    sortByDocid (order, docs);
+
+    while (true) {
+
+      //  Find the pivot, and include the arguments after it that
+      //  match the same document.
+
+      double threshold = topK.getThreshold ();
+      double bound = 0;
+      int pivot = -1;
+
+      for (int p = 0; (p < n) && (docs[order[p]] != NO_MORE_DOCS); p++) {
+        bound += bounds[order[p]];
+
+        if (! belowThreshold (bound, threshold)) {
+          pivot = p;
+          break;
+        }
+      }
+
+      if (pivot < 0) {
+        break;				// No document can enter the top k
+      }
+
+      int pivotDoc = docs[order[pivot]];
+
+      while ((pivot + 1 < n) && (docs[order[pivot + 1]] == pivotDoc)) {
+        pivot ++;
+      }
+
+      //  Check the bounds of the blocks that cover pivotDoc.
+
+      double blockBound = 0;
+
+      for (int p = 0; p <= pivot; p++) {
+        blockBound += blocks[order[p]].getMaxScore (pivotDoc);
+      }
+
+      if (! belowThreshold (blockBound, threshold)) {
+        if (docs[order[0]] == pivotDoc) {
+
+          //  Every argument up to the pivot matches pivotDoc, so score it.
+
+          for (int p = 0; p <= pivot; p++) {
+            scores[order[p]] = ((QrySop) q.args.get (order[p])).getScore (r);
+          }
+
+          topK.collect (pivotDoc, sumScores (docs, scores, pivotDoc));
+
+          for (int p = 0; p <= pivot; p++) {
+            Qry q_i = q.args.get (order[p]);
+            q_i.docIteratorAdvancePast (pivotDoc);
+            docs[order[p]] = docid (q_i, r);
+          }
+        } else {
+
+          //  Skip the arguments before the pivot to pivotDoc.
+
+          for (int p = 0; docs[order[p]] < pivotDoc; p++) {
+            Qry q_i = q.args.get (order[p]);
+            q_i.docIteratorAdvanceTo (pivotDoc);
+            docs[order[p]] = docid (q_i, r);
+          }
+        }
+      } else {
+
+        //  A document before the end of the shortest block, and before
+        //  the next argument's document, matches only arguments up to
+        //  the pivot, in the blocks that were just checked.
+
+        long next = (pivot + 1 < n) ? docs[order[pivot + 1]] : NO_MORE_DOCS;
+
+        for (int p = 0; p <= pivot; p++) {
+          next = Math.min (next, (long) blocks[order[p]].getLastDocid () + 1);
+        }
+
+        int target = (int) Math.min (next, NO_MORE_DOCS);
+
+        for (int p = 0; p <= pivot; p++) {
+          if (docs[order[p]] < target) {
+            Qry q_i = q.args.get (order[p]);
+            q_i.docIteratorAdvanceTo (target);
+            docs[order[p]] = docid (q_i, r);
+          }
+        }
+      }
+
+      sortByDocid (order, docs);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The MaxScore evaluator for Indri #AND and #WAND queries.  An Indri
+ *  score is a weighted geometric mean, so bounds are added in the log
+ *  domain.  Each argument has a bound on the score that it gives a
+ *  document that it matches, and a bound on the default score that it
+ *  gives a document that it doesn't match.  The difference of their
+ *  logs, times the argument's weight, is the most that matching the
+ *  argument can raise a document's log score.
+ *  <p>
+ *  The arguments with the smallest gains are <i>non-essential</i>
+ *  while a document that matches only them can't enter the top k.
+ *  Candidates come from the essential arguments, and the
+ *  non-essential arguments are checked, largest gain first, only
+ *  while the candidate can still enter the top k.  Candidates that
+ *  survive are scored by the query operator, so scores are the same
+ *  as when every document is scored.
+ *  </p>
+ */
+public class QryEvaluatorIndriMaxScore extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query, an #AND or #WAND operator.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    int n = q.args.size ();
+    double[] weights = getWeights (q);
+    double[] gains = new double[n];
+    double base = 0;		// Bounds the log score of any document
+
+    for (int i = 0; i < n; i++) {
+      QrySop q_i = (QrySop) q.args.get (i);
+      double maxScore = q_i.getMaxScore (r);
+      double maxDefault = q_i.getMaxDefaultScore (r);
+
+      if (! ((maxScore > 0) && (maxDefault > 0) &&
+             (maxScore < Double.POSITIVE_INFINITY) &&
+             (maxDefault < Double.POSITIVE_INFINITY))) {
+        new QryEvaluatorDaat ().evaluate (q, r, topK);
+        return;
+      }
+
+      double logDefault = Math.log (maxDefault);
+      base += weights[i] * logDefault;
+      gains[i] = weights[i] * Math.max (0, Math.log (maxScore) - logDefault);
+    }
+
+    //  Sort the arguments by gain.  prefix[j] bounds the log score of
+    //  a document that matches only arguments order[0..j].
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, (a, b) -> Double.compare (gains[a], gains[b]));
+
+    int[] order = new int[n];
+    double[] prefix = new double[n];
+    double sum = base;
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      sum += gains[order[j]];
+      prefix[j] = sum;
+    }
+
+    int[] docs = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      docs[i] = docid (q.args.get (i), r);
+    }
+
+    int firstEssential = 0;
+
+    while (true) {
+
+      double threshold = topK.getThreshold ();
+
+      while ((firstEssential < n) &&
+             belowThreshold (Math.exp (prefix[firstEssential]), threshold)) {
+        firstEssential ++;
+      }
+
+      if (firstEssential == n) {
+        break;				// No document can enter the top k
+      }
+
+      //  The candidate is the next document of an essential argument.
+
+      int candidate = NO_MORE_DOCS;
+
+      for (int j = firstEssential; j < n; j++) {
+        candidate = Math.min (candidate, docs[order[j]]);
+      }
+
+      if (candidate == NO_MORE_DOCS) {
+        break;
+      }
+
+      double bound = (firstEssential > 0) ? prefix[firstEssential - 1] : base;
+
+      for (int j = firstEssential; j < n; j++) {
+        if (docs[order[j]] == candidate) {
+          bound += gains[order[j]];
+        }
+      }
+
+      //  Check the non-essential arguments while the candidate can
+      //  still enter the top k.
+
+      boolean competitive = true;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (belowThreshold (Math.exp (bound), threshold)) {
+          competitive = false;
+          break;
+        }
+
+        int i = order[j];
+
+        if (docs[i] < candidate) {
+          Qry q_i = q.args.get (i);
+          q_i.docIteratorAdvanceTo (candidate);
+          docs[i] = docid (q_i, r);
+        }
+
+        if (docs[i] != candidate) {
+          bound -= gains[i];
+        }
+      }
+
+      if (competitive && ! belowThreshold (Math.exp (bound), threshold)) {
+        topK.collect (candidate, q.getScoreOf (r, candidate));
+      }
+
+      for (int j = firstEssential; j < n; j++) {
+        if (docs[order[j]] == candidate) {
+          Qry q_i = q.args.get (order[j]);
+          q_i.docIteratorAdvancePast (candidate);
+          docs[order[j]] = docid (q_i, r);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Get the normalized weight of each argument:  1/n for #AND, and
+   *  weight / (sum of weights) for #WAND.
+   */
+  private static double[] getWeights (QrySop q) {
+
+    int n = q.args.size ();
+    double[] weights;
+
+    if (q instanceof QrySopWAnd) {
+      weights = ((QrySopWAnd) q).getNormalizedWeights ();
+    } else {
+      weights = new double[n];
+      Arrays.fill (weights, 1.0 / n);
+    }
+
+    return weights;
+  }
+}
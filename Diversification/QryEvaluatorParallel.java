@@ -0,0 +1,278 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  An evaluator that splits the docid space into ranges and evaluates
+ *  the ranges in parallel on a ForkJoinPool.  Each range evaluates
+ *  its own copy of the query (see {@link Qry#copyIterators}), starting
+ *  at the first docid of the range and stopping at the end of the
+ *  range, exactly as {@link QryEvaluatorDaat} does, and collects its
+ *  own top k documents.  The ranges' top k documents are merged as
+ *  the tasks join.  Documents get the same scores as they do from the
+ *  default evaluator, and the collector ranks them in the same total
+ *  order, so the results are the same.
+ *  <p>
+ *  The retrieval model's intraQueryThreads parameter sets the number
+ *  of threads.  Queries whose #NEAR, #WINDOW and #SYN operators are
+ *  expensive spend most of their time building those operators'
+ *  inverted lists, which happens when the query is initialized,
+ *  before it is evaluated.  With more than one thread, those lists
+ *  are built the same way, by copies of the operator that each
+ *  merge their arguments' postings for a range of docids (see
+ *  {@link #evaluateList}); the ranges' lists are concatenated in
+ *  docid order.
+ *  </p><p>
+ *  The pools belong to the index context (see
+ *  {@link IndexContext#getForkJoinPool}), so their threads stop when
+ *  the context is closed, e.g., by {@link Idx#reopen}.
+ *  </p>
+ */
+public class QryEvaluatorParallel extends QryEvaluator {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  Each thread evaluates about this many ranges, so that a range
+   *  whose documents are expensive doesn't leave the others idle.
+   */
+  private static final int RANGES_PER_THREAD = 4;
+
+  /**
+   *  Ranges aren't split below this many docids.
+   */
+  private static final int MIN_RANGE_DOCS = 4096;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Evaluates a range of docids, or splits it in half.
+   */
+  private static final class RangeTask extends RecursiveTask<TopKCollector> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final QrySop q;
+    private final RetrievalModel r;
+    private final int k;
+    private final int start;		// First docid of the range
+    private final int end;		// One past the last docid
+    private final int rangeDocs;	// Ranges this size aren't split
+
+    RangeTask (QrySop q, RetrievalModel r, int k,
+               int start, int end, int rangeDocs) {
+      this.q = q;
+      this.r = r;
+      this.k = k;
+      this.start = start;
+      this.end = end;
+      this.rangeDocs = rangeDocs;
+    }
+
+    protected TopKCollector compute () {
+
+      if (this.end - this.start <= this.rangeDocs) {
+        try {
+          return this.evaluate ();
+        } catch (IOException ex) {
+          throw new UncheckedIOException (ex);
+        }
+      }
+
+      int middle = this.start + (this.end - this.start) / 2;
+      RangeTask left =
+        new RangeTask (this.q, this.r, this.k, this.start, middle, this.rangeDocs);
+      RangeTask right =
+        new RangeTask (this.q, this.r, this.k, middle, this.end, this.rangeDocs);
+
+      left.fork ();
+
+      TopKCollector topK = right.compute ();
+      TopKCollector leftTopK = left.join ();
+
+      if (leftTopK.size () > topK.size ()) {
+        leftTopK.collectAll (topK);
+        return leftTopK;
+      }
+
+      topK.collectAll (leftTopK);
+      return topK;
+    }
+
+    /**
+     *  Evaluate a copy of the query on the range.
+     */
+    private TopKCollector evaluate () throws IOException {
+
+      TopKCollector topK = new TopKCollector (this.r.getIndexContext (), this.k);
+      QrySop copy = (QrySop) this.q.copyIterators ();
+
+      copy.docIteratorAdvanceTo (this.start);
+
+      while (copy.docIteratorHasMatch (this.r)) {
+        int docid = copy.docIteratorGetMatch ();
+
+        if (docid >= this.end) {
+          break;
+        }
+
+        topK.collect (docid, copy.getScore (this.r));
+        copy.docIteratorAdvancePast (docid);
+      }
+
+      return topK;
+    }
+  }
+
+  /**
+   *  Builds the inverted list of a copy of an operator for a range of
+   *  docids.
+   */
+  private static final class ListTask implements Callable<InvList> {
+
+    private final QryIop q;
+    private final int start;		// First docid of the range
+    private final int end;		// One past the last docid
+
+    ListTask (QryIop q, int start, int end) {
+      this.q = q;
+      this.start = start;
+      this.end = end;
+    }
+
+    public InvList call () throws IOException {
+      return ((QryIop) this.q.copyIterators ()).evaluateRange (this.start, this.end);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  The query's own iterators aren't moved.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    int maxDoc = r.getIndexStats ().maxDoc;
+    int rangeDocs = getRangeDocs (r, maxDoc);
+
+    if (maxDoc <= rangeDocs) {
+      new QryEvaluatorDaat ().evaluate (q, r, topK);
+      return;
+    }
+
+    try {
+      topK.collectAll (
+        getPool (r).invoke (
+          new RangeTask (q, r, topK.getK (), 0, maxDoc, rangeDocs)));
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause ();
+    }
+  }
+
+  /**
+   *  Build the inverted list of an operator whose arguments are
+   *  initialized, a range of docids at a time, in parallel.  The
+   *  arguments' own iterators aren't moved.
+   *  @param q The operator.
+   *  @param r The retrieval model.
+   *  @return The operator's inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList evaluateList (QryIop q, RetrievalModel r)
+    throws IOException {
+
+    int maxDoc = r.getIndexStats ().maxDoc;
+    int rangeDocs = getRangeDocs (r, maxDoc);
+
+    if (maxDoc <= rangeDocs) {
+      return q.evaluateRange (0, Integer.MAX_VALUE);
+    }
+
+    List<ListTask> tasks = new ArrayList<ListTask> ();
+
+    for (int start = 0; start < maxDoc; start += rangeDocs) {
+      tasks.add (new ListTask (q, start, Math.min (start + rangeDocs, maxDoc)));
+    }
+
+    InvList list = null;
+
+    for (Future<InvList> range : getPool (r).invokeAll (tasks)) {
+      if (list == null) {
+        list = get (range);
+      } else {
+        list.appendList (get (range));
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   *  Initialize the arguments of an operator in parallel, one task
+   *  per argument, e.g., to read their inverted lists.  Streaming
+   *  arguments read their postings with the initializing thread's
+   *  index iterators, so they must be initialized by the caller.
+   *  @param q The operator.
+   *  @param r The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void initializeArgs (Qry q, RetrievalModel r)
+    throws IOException {
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>> ();
+
+    for (Qry q_i: q.args) {
+      tasks.add (() -> { q_i.initialize (r); return null; });
+    }
+
+    for (Future<Void> arg : getPool (r).invokeAll (tasks)) {
+      get (arg);
+    }
+  }
+
+  /**
+   *  Get the result of a task, rethrowing its exception.
+   */
+  private static <T> T get (Future<T> task) throws IOException {
+    try {
+      return task.get ();
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while evaluating a query.");
+    } catch (ExecutionException ex) {
+      if (ex.getCause () instanceof IOException) {
+        throw (IOException) ex.getCause ();
+      } else if (ex.getCause () instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause ();
+      }
+      throw new IllegalStateException (ex.getCause ());
+    }
+  }
+
+  /**
+   *  Get the number of docids in a range.  Each thread gets about
+   *  RANGES_PER_THREAD ranges.
+   */
+  private static int getRangeDocs (RetrievalModel r, int maxDoc) {
+    int ranges = r.intraQueryThreads * RANGES_PER_THREAD;
+    return Math.max (MIN_RANGE_DOCS, (maxDoc + ranges - 1) / ranges);
+  }
+
+  /**
+   *  Get the index context's pool of the retrieval model's number of
+   *  threads.
+   */
+  private static ForkJoinPool getPool (RetrievalModel r) {
+    return r.getIndexContext ().getForkJoinPool (r.intraQueryThreads);
+  }
+}
@@ -25,6 +25,19 @@ import java.util.*;
  *  The QryIop.locIterator is initialized automatically each time
  *  Qry.docIteratorHasMatch finds a match; no additional initialization
  *  is required.
+ *  </p><p>
+ *  Some operators can also run in <i>streaming</i> mode, in which the
+ *  docIterator reads postings directly from their source as it
+ *  advances instead of from a cached inverted list.  Streaming
+ *  operators implement streamAdvanceTo and streamGetPositions, and
+ *  must set the df and ctf statistics when they are evaluated.
+ *  Positional operators (#NEAR, #WINDOW) can't know their statistics
+ *  until they have found every match, so they stream only when no
+ *  caller needs them, and set them to -1.
+ *  </p><p>
+ *  An operator whose locations nobody reads (see setPositionsNeeded)
+ *  doesn't read or store positions, which saves decoding them.
+ *  </p>
  */
 public abstract class QryIop extends Qry {
 
@@ -41,6 +54,11 @@ public abstract class QryIop extends Qry {
    */
   private static final int INVALID_ITERATOR_INDEX = -1;
 
+  /**
+   *  The streamDocid of a streaming operator that has no more postings.
+   */
+  protected static final int STREAM_EXHAUSTED = Integer.MAX_VALUE;
+
   /**
    *  The document field that the query operator applies to; this is
    *  inferred from query operator arguments.
@@ -63,6 +81,81 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  Positions of the posting that the docIterator points to, decoded
+   *  from the inverted list the first time that they are needed.
+   */
+  private int[] locBuffer = new int[16];
+
+  /**
+   *  The docIterator index (or, in streaming mode, the docid) whose
+   *  positions are in locBuffer.
+   */
+  private int locBufferIndex = QryIop.INVALID_ITERATOR_INDEX;
+
+  /**
+   *  True if the docIterator reads postings on demand via
+   *  streamAdvanceTo instead of from a cached inverted list.
+   */
+  protected boolean streaming = false;
+
+  /**
+   *  In streaming mode, the docid of the current posting, or
+   *  STREAM_EXHAUSTED if there are no more postings.
+   */
+  protected int streamDocid = QryIop.STREAM_EXHAUSTED;
+
+  /**
+   *  In streaming mode, the term frequency of the current posting.
+   */
+  protected int streamTf = 0;
+
+  /**
+   *  In streaming mode, the document frequency of the operator.
+   */
+  protected int streamDf = 0;
+
+  /**
+   *  In streaming mode, the collection term frequency of the operator.
+   */
+  protected int streamCtf = 0;
+
+  /**
+   *  True if the operator is an argument of another QryIop operator,
+   *  which reads its postings but not its df and ctf.
+   */
+  protected boolean nestedArgument = false;
+
+  /**
+   *  False if nothing reads the operator's locations, so that it may
+   *  store only docids and term frequencies.  The query planner
+   *  decides (see {@link #setPositionsNeeded}).
+   */
+  protected boolean positionsNeeded = true;
+
+  /**
+   *  Copy an initialized query operator whose iterators haven't
+   *  moved.  The copy shares the inverted list.  A streaming copy
+   *  reads its postings from its own index iterators, which belong
+   *  to the thread that made the copy; it is positioned before its
+   *  first posting, so it must be moved with docIteratorAdvanceTo
+   *  before it is read.
+   *  @return The copy.
+   */
+  public Qry copyIterators () {
+
+    QryIop copy = (QryIop) super.copyIterators ();
+
+    copy.locBuffer = new int[this.locBuffer.length];
+    copy.locBufferIndex = QryIop.INVALID_ITERATOR_INDEX;
+
+    if (this.streaming) {
+      copy.streamDocid = -1;
+    }
+
+    return copy;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,10 +163,19 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (this.streaming) {
+      if (docid == Integer.MAX_VALUE) {
+        this.streamDocid = QryIop.STREAM_EXHAUSTED;
+      } else if (this.streamDocid <= docid) {
+        this.streamAdvance (docid + 1);
+      }
+      this.locIteratorIndex = 0;
+      return;
     }
+
+    this.docIteratorIndex = (docid == Integer.MAX_VALUE) ?
+      this.invertedList.df :
+      this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
            
     this.locIteratorIndex = 0;
   }
@@ -85,10 +187,16 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    if (this.streaming) {
+      if (this.streamDocid < docid) {
+        this.streamAdvance (docid);
+      }
+      this.locIteratorIndex = 0;
+      return;
     }
+
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +206,11 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    if (this.streaming) {
+      this.streamDocid = QryIop.STREAM_EXHAUSTED;
+    } else {
+      this.docIteratorIndex = this.invertedList.df;
+    }
   }
 
   /**
@@ -109,16 +221,49 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
+    if (this.streaming) {
+      return this.streamDocid;
+    }
     return this.invertedList.getDocid (this.docIteratorIndex);
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the positions for the document that the docIterator points
+   *  to now.  Only the first docIteratorGetMatchTf elements are valid,
+   *  and the array is reused, so callers must not modify or keep it.
+   *  @return The positions of the current document.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    if (this.streaming) {
+      if (this.locBufferIndex != this.streamDocid) {
+        try {
+          this.locBuffer = this.streamGetPositions (this.locBuffer);
+        } catch (IOException ex) {
+          throw new UncheckedIOException (ex);
+        }
+        this.locBufferIndex = this.streamDocid;
+      }
+      return this.locBuffer;
+    }
+
+    if (this.locBufferIndex != this.docIteratorIndex) {
+      this.locBuffer =
+        this.invertedList.getPositions (this.docIteratorIndex, this.locBuffer);
+      this.locBufferIndex = this.docIteratorIndex;
+    }
+    return this.locBuffer;
+  }
+
+  /**
+   *  Return the term frequency for the document that the docIterator
+   *  points to now.
+   *  @return The term frequency of the current document.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    if (this.streaming) {
+      return this.streamTf;
+    }
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -127,6 +272,9 @@ public abstract class QryIop extends Qry {
    *  @return True if the query matches a document, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.streaming) {
+      return (this.streamDocid != QryIop.STREAM_EXHAUSTED);
+    }
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
@@ -137,6 +285,9 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
+    if (this.streaming) {
+      return this.streamCtf;
+    }
     return this.invertedList.ctf;
   }
 
@@ -147,9 +298,37 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
+    if (this.streaming) {
+      return this.streamDf;
+    }
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the impact statistics of the operator's postings, which
+   *  bound the scores of documents that it matches.
+   *  @param context The index that the operator was initialized with.
+   *  @return The impact statistics, or null if they aren't known.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ImpactStats getImpactStats (IndexContext context) throws IOException {
+    if (this.streaming) {
+      return null;
+    }
+    return ImpactStats.of (this.invertedList, context.getDocLengthStore (),
+                           this.field);
+  }
+
+  /**
+   *  Get the blocks of the operator's postings in the index's
+   *  block-max table.  Only terms have blocks.
+   *  @param context The index that the operator was initialized with.
+   *  @return The blocks, or null if the postings are a single block.
+   */
+  public BlockMaxIndex.TermBlocks getTermBlocks (IndexContext context) {
+    return null;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -158,13 +337,82 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Tell the operator whether anything reads its locations.  If
+   *  not, it doesn't read or store positions, and its locIterator
+   *  can't be used.  Call it before the operator is initialized.
+   *  @param needed False if only docids and term frequencies are read.
+   */
+  public void setPositionsNeeded (boolean needed) {
+    this.positionsNeeded = needed;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  In
+   *  streaming mode, evaluate prepares the postings source and sets
+   *  the df and ctf statistics instead.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Evaluate the query operator for the documents in a range of
+   *  docids.  Its arguments' docIterators are advanced to the start
+   *  of the range, so they must not be past it.  Ranges are evaluated
+   *  in parallel by copies of the operator (see
+   *  {@link QryEvaluatorParallel#evaluateList}).
+   *  Operators that have arguments must override this method.
+   *  @param start The first docid of the range.
+   *  @param end One past the last docid of the range.
+   *  @return An inverted list of the range's postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected InvList evaluateRange (int start, int end) throws IOException {
+    throw new UnsupportedOperationException
+      (this.getClass().getName() + " can't be evaluated by ranges.");
+  }
+
+  /**
+   *  Advance a streaming operator to its first posting whose docid
+   *  is at least the specified docid, converting index errors into
+   *  unchecked exceptions for the docIterator interface.
+   *  @param docid The document's internal document id
+   */
+  private void streamAdvance (int docid) {
+    try {
+      this.streamAdvanceTo (docid);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  In streaming mode, move to the first posting whose docid is at
+   *  least the specified docid, and set streamDocid and streamTf.
+   *  Operators that support streaming must override this method.
+   *  @param docid The document's internal document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void streamAdvanceTo (int docid) throws IOException {
+    throw new UnsupportedOperationException
+      (this.getClass().getName() + " doesn't support streaming.");
+  }
+
+  /**
+   *  In streaming mode, read the positions of the current posting.
+   *  This is called at most once per posting, and only if a
+   *  locIterator is used.  Operators that support streaming must
+   *  override this method.
+   *  @param buffer An array that may be used to hold the positions.
+   *  @return An array whose first streamTf elements are the positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected int[] streamGetPositions (int[] buffer) throws IOException {
+    throw new UnsupportedOperationException
+      (this.getClass().getName() + " doesn't support streaming.");
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
@@ -173,20 +421,38 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  Initialize the query arguments (if any), in parallel if the
+    //  retrieval model allows it and their lists are cached.
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).nestedArgument = true;
+    }
+
+    if ((this.args.size () > 1) && (r != null) &&
+        (r.intraQueryThreads > 1) && ! r.streamingPostings) {
+      QryEvaluatorParallel.initializeArgs (this, r);
+    } else {
+      for (Qry q_i: this.args) {
+        q_i.initialize (r);
+      }
     }
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+    //  Evaluate the operator.  An operator that merges its arguments'
+    //  postings into a cached list may build it a range of docids at
+    //  a time, in parallel.
+
+    if (! this.streaming && (this.args.size () > 0) &&
+        (r != null) && (r.intraQueryThreads > 1)) {
+      this.invertedList = QryEvaluatorParallel.evaluateList (this, r);
+    } else {
+      this.evaluate ();
+    }
 
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.locBufferIndex = QryIop.INVALID_ITERATOR_INDEX;
   }
   
  /**
@@ -203,11 +469,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.docIteratorGetMatchTf ();
+    int[] positions = this.docIteratorGetMatchPositions ();
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (positions[this.locIteratorIndex] <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -217,8 +483,7 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+    this.locIteratorIndex = this.docIteratorGetMatchTf ();
   }
 
   /**
@@ -229,8 +494,7 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.docIteratorGetMatchPositions ()[this.locIteratorIndex];
   }
 
   /**
@@ -239,8 +503,7 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
-    return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+    return (this.locIteratorIndex < this.docIteratorGetMatchTf ());
   }
 
 }
@@ -1,196 +1,244 @@
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
 import java.util.Vector;
 
 public class QryIopNear extends QryIop {
     
     protected int distance = 0;
+
+    /**
+     *  The locations that matchLocations found in the current document.
+     */
+    private int[] locations = new int[16];
     
     public QryIopNear(int distance) {
         this.distance = distance;
     }
 
+    /**
+     *  Initialize the operator and its arguments.  With streaming
+     *  postings, the operator finds its matches lazily, one document
+     *  at a time, if nothing needs its df and ctf:  it is an argument
+     *  of another QryIop operator, or the retrieval model doesn't use
+     *  term statistics.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        this.streaming = (r != null) && r.streamingPostings &&
+            (this.nestedArgument || !r.usesTermStatistics());
+        super.initialize(r);
+    }
+
     @Override
     protected void evaluate() throws IOException {
         // TODO Auto-generated method stub
 
+        if (this.streaming) {
+            this.streamDf = -1;         // Unknown
+            this.streamCtf = -1;
+            this.streamDocid = -1;
+            this.streamAdvanceTo(0);
+            return;
+        }
+
+        this.invertedList = this.evaluateRange(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     *  Evaluate the operator for the documents in a range of docids.
+     *  @param start The first docid of the range.
+     *  @param end One past the last docid of the range.
+     *  @return An inverted list of the range's postings.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    protected InvList evaluateRange(int start, int end) throws IOException {
+
         //  Create an empty inverted list.  If there are no query arguments,
         //  that's the final result.
         
-        this.invertedList = new InvList (this.getField());
+        InvList result = new InvList (this.getField());
 
         if (args.size () == 0) {
-          return;
+          return result;
         }
         
+        for (Qry q_i : this.args) {
+            q_i.docIteratorAdvanceTo(start);
+        }
 
         //  Each pass of the loop adds 1 document to result inverted list
-        //  until all of the argument inverted lists are depleted.
+        //  until all of the argument inverted lists are depleted, or
+        //  reach the end of the range.
 
         while (true) {
 
-          //  Find the minimum next document id.  If there is none, we're done.
+          //  Find the next document that every argument matches.  The
+          //  arguments are checked in the order that the planner chose,
+          //  which lets a rare argument skip over a frequent one's list.
 
-          int minDocid = Qry.INVALID_DOCID;
+          int minDocid = this.docIteratorFindMatchAll (null);
 
-          for (Qry q_i: this.args) {
-            if (q_i.docIteratorHasMatch (null)) {
-              int q_iDocid = q_i.docIteratorGetMatch ();
-              
-              if ((minDocid > q_iDocid) ||
-                  (minDocid == Qry.INVALID_DOCID)) {
-                minDocid = q_iDocid;
-              }
-            }
-          }
-//          System.out.println("minDocid is: " + minDocid);
+          if ((minDocid == Qry.INVALID_DOCID) || (minDocid >= end))
+            break;              // No more documents match.  Done.
 
-          if (minDocid == Qry.INVALID_DOCID)
-            break;              // All docids have been processed.  Done.
-          
-          // check whether all terms are matched in the same document.
-          boolean isSameDoc = true;
-          int minQueryIndex = Integer.MIN_VALUE;
-          for (int i = 0; i < this.args.size(); i++) {
-              if (((QryIop)this.args.get(i)).docIteratorHasMatch(null)) {
-//                  System.out.println("this args is: " + i +"  " + this.args.get(i) + " " + this.args.get(i).docIteratorGetMatch());
-                  if (this.args.get(i).docIteratorGetMatch() != minDocid) {
-                      isSameDoc = false;
-                  } else {
-                      minQueryIndex = i;
-//                      System.out.println("in the for loop, minQueryIndex is: " + minQueryIndex);
-                  }
-              } else {
-                  // there is no more document matched for current term.
-                  isSameDoc = false;
-                  break;
-              }
-          }
-//          System.out.println("isSameDoc is: " + isSameDoc);
-          if (minQueryIndex == Integer.MIN_VALUE) {
-              break;
+          int count = this.matchLocations();
+
+          if (count > 0) {
+              result.appendPosting(minDocid, this.locations, count);
           }
           
-          if (!isSameDoc) {
-              this.args.get(minQueryIndex).docIteratorAdvancePast(minDocid);
-//              if (((QryIop)this.args.get(minQueryIndex)).docIteratorHasMatch(null)) {
-//                  System.out.println("different doc, the smallest one advanced to: " + this.args.get(minQueryIndex).docIteratorGetMatch());
-//              } else {
-//                  System.out.println("end of list");
-//              }
-              
-          } else {
-              //  Create a new posting that is the union of the posting lists
-              //  that match the minDocid.  Save it.
-              //  Note:  This implementation assumes that a location will not appear
-              //  in two or more arguments.  #SYN (apple apple) would break it
-              List<Integer> positions = new ArrayList<Integer>();
-              boolean isEnd = false;
-              while (!isEnd) {
+          for (Qry q_i : this.args) {
+              ((QryIop)q_i).docIteratorAdvancePast(minDocid);
+          }
+        }
+
+        return result;
+    }
+
+    /**
+     *  Copy an initialized operator whose iterators haven't moved.
+     *  The copy finds locations in its own buffer.
+     *  @return The copy.
+     */
+    @Override
+    public Qry copyIterators() {
+        QryIopNear copy = (QryIopNear) super.copyIterators();
+        copy.locations = new int[this.locations.length];
+        return copy;
+    }
+
+    /**
+     *  In streaming mode, find the next document that every argument
+     *  matches within the distance, starting at the specified docid.
+     *  @param docid The document's internal document id
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    protected void streamAdvanceTo(int docid) throws IOException {
+        if (this.args.size() == 0) {
+            this.streamDocid = QryIop.STREAM_EXHAUSTED;
+            return;
+        }
+        for (Qry q_i : this.args) {
+            q_i.docIteratorAdvanceTo(docid);
+        }
+        while (true) {
+            int minDocid = this.docIteratorFindMatchAll(null);
+            if (minDocid == Qry.INVALID_DOCID) {
+                this.streamDocid = QryIop.STREAM_EXHAUSTED;
+                return;
+            }
+            int count = this.matchLocations();
+            if (count > 0) {
+                this.streamDocid = minDocid;
+                this.streamTf = count;
+                return;
+            }
+            for (Qry q_i : this.args) {
+                q_i.docIteratorAdvancePast(minDocid);
+            }
+        }
+    }
+
+    /**
+     *  In streaming mode, get the locations of the current document,
+     *  which matchLocations found when the document was matched.
+     *  @param buffer An array that may be used to hold the positions.
+     *  @return An array whose first streamTf elements are the positions.
+     */
+    @Override
+    protected int[] streamGetPositions(int[] buffer) {
+        if (buffer.length < this.streamTf) {
+            buffer = new int[this.locations.length];
+        }
+        System.arraycopy(this.locations, 0, buffer, 0, this.streamTf);
+        return buffer;
+    }
+
+    /**
+     *  Find the locations where the arguments match within the
+     *  distance in the document that every argument matches now.  The
+     *  arguments' locIterators are consumed.
+     *  @return The number of locations, which are stored in locations.
+     */
+    private int matchLocations() {
+
+        //  Note:  This implementation assumes that a location will not appear
+        //  in two or more arguments.  #SYN (apple apple) would break it
+        int count = 0;
+        boolean isEnd = false;
+        while (!isEnd) {
 //                  positions = new ArrayList<Integer>();
-                  boolean isMatched = false;
-                  int currentLoc;
-                  if (((QryIop)this.args.get(0)).locIteratorHasMatch()) {
-                      currentLoc = ((QryIop)this.args.get(0)).locIteratorGetMatch();
+            boolean isMatched = false;
+            int currentLoc;
+            if (((QryIop)this.args.get(0)).locIteratorHasMatch()) {
+                currentLoc = ((QryIop)this.args.get(0)).locIteratorGetMatch();
 //                      System.out.println("args 0 is: " + ((QryIop)this.args.get(0)).toString() + "  position is: " + currentLoc);
-                  } else {
-                      break;
-                  }
-                  
-                  for (int i = 1; i < this.args.size(); i++) {
-                      QryIop query = (QryIop)this.args.get(i);
-                      if (query.locIteratorHasMatch()) {
-                          int position = query.locIteratorGetMatch();
+            } else {
+                break;
+            }
+            
+            for (int i = 1; i < this.args.size(); i++) {
+                QryIop query = (QryIop)this.args.get(i);
+                if (query.locIteratorHasMatch()) {
+                    int position = query.locIteratorGetMatch();
 //                          System.out.println(query.toString() + " current location is: " + currentLoc + "  position is: " + position);
-                          // if position is smaller than current location, advance the position past current location.
-                          // update the position. if there is no larger available position, there is no match, break the for loop.
-                          if (currentLoc > position) {
-                              query.locIteratorAdvancePast(currentLoc);
-                              if (!query.locIteratorHasMatch()) {
-                                  isEnd = true;
-                                  isMatched = false;
-                                  break;
-                              } else {
-                                  // position must be greater than currentLoc, there is no need to check in the following step.
-                                  position = query.locIteratorGetMatch();
-                              }
+                    // if position is smaller than current location, advance the position past current location.
+                    // update the position. if there is no larger available position, there is no match, break the for loop.
+                    if (currentLoc > position) {
+                        query.locIteratorAdvancePast(currentLoc);
+                        if (!query.locIteratorHasMatch()) {
+                            isEnd = true;
+                            isMatched = false;
+                            break;
+                        } else {
+                            // position must be greater than currentLoc, there is no need to check in the following step.
+                            position = query.locIteratorGetMatch();
+                        }
 //                              System.out.println("position is smaller. is end? " + isEnd);
-                          }
-                          if (position - currentLoc > distance) {
-                              // do not match. advance the first term location iterator.
-                              ((QryIop)this.args.get(0)).locIteratorAdvance();
-                              if (!((QryIop)this.args.get(0)).locIteratorHasMatch()) {
-                                  isEnd = true;
-                              }
-                              isMatched = false;
-                              break;
-                          } else {
-                              // match.
-                              currentLoc = position;
-                              isMatched = true;
-                          }
-                          
+                    }
+                    if (position - currentLoc > distance) {
+                        // do not match. advance the first term location iterator.
+                        ((QryIop)this.args.get(0)).locIteratorAdvance();
+                        if (!((QryIop)this.args.get(0)).locIteratorHasMatch()) {
+                            isEnd = true;
+                        }
+                        isMatched = false;
+                        break;
+                    } else {
+                        // match.
+                        currentLoc = position;
+                        isMatched = true;
+                    }
+                    
 //                          if (!query.locIteratorHasMatch() || !((QryIop)this.args.get(0)).locIteratorHasMatch()) {
 //                              isEnd = true;
 //                          }
-                      } else {
-                          isEnd = true;
-                          isMatched = false;
-                      }
-                  }
+                } else {
+                    isEnd = true;
+                    isMatched = false;
+                }
+            }
 //                  System.out.println("out of the for loop. is matched? " + isMatched + "  is end? " + isEnd);
-                  if (isMatched) {
-                      positions.add(currentLoc);
-                      for (Qry q_i : this.args) {
-                          ((QryIop)q_i).locIteratorAdvance();
-                          if (!((QryIop)q_i).locIteratorHasMatch()) {
-                              isEnd = true;
-                          }
-                      }
-                  }
+            if (isMatched) {
+                if (count == this.locations.length) {
+                    this.locations = Arrays.copyOf(this.locations, 2 * count);
+                }
+                this.locations[count++] = currentLoc;
+                for (Qry q_i : this.args) {
+                    ((QryIop)q_i).locIteratorAdvance();
+                    if (!((QryIop)q_i).locIteratorHasMatch()) {
+                        isEnd = true;
+                    }
+                }
+            }
 //                  System.out.println("positions are: " + Arrays.toString(positions.toArray()));
-                   
-              }
-              if (!positions.isEmpty()) {
-                  this.invertedList.appendPosting(minDocid, positions);
-              }
-              
-              for (Qry q_i : this.args) {
-                  ((QryIop)q_i).docIteratorAdvancePast(minDocid);
-              }
-//              System.out.println();
-//                  for (Qry q_i : this.args) {
-//                      if (((QryIop)q_i).locIteratorHasMatch()) {
-//                          int position = ((QryIop)q_i).locIteratorGetMatch();
-//                          System.out.println(((QryIop)q_i).toString() + " current location is: " + currentLoc + "  position is: " + position);
-//                          if (position < currentLoc) {
-//                              ((QryIop)q_i).locIteratorAdvancePast(currentLoc);
-//                              isMatched = false;
-//                              if (!((QryIop)q_i).locIteratorHasMatch()) {
-//                                  isEnd = true;
-//                                  isMatched = false;
-//                              }
-//                              System.out.println("position is smaller. is end? " + isEnd);
-//                          } else if (position - currentLoc >= 0 && position - currentLoc <= distance) {
-//                              currentLoc = position;
-//                              isMatched = true;
-//                              System.out.println("match. current location is: " + currentLoc);
-//                          } else {
-//                              ((QryIop)this.args.get(0)).locIteratorAdvance();
-//                              isMatched = false;
-//                              if (!((QryIop)this.args.get(0)).locIteratorHasMatch()) {
-//                                  isEnd = true;
-//                              }
-//                              System.out.println("do not match. is End? " + isEnd);
-//                          }
-//                      }
-//                  }
-                  
-              
-          }
+             
         }
+        return count;
     }
 }
@@ -15,18 +15,38 @@ public class QryIopSyn extends QryIop {
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
+    this.invertedList = this.evaluateRange (0, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Evaluate the query operator for the documents in a range of
+   *  docids.
+   *  @param start The first docid of the range.
+   *  @param end One past the last docid of the range.
+   *  @return An inverted list of the range's postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected InvList evaluateRange (int start, int end) throws IOException {
 
     //  Create an empty inverted list.  If there are no query arguments,
     //  that's the final result.
     
-    this.invertedList = new InvList (this.getField());
+    InvList result = new InvList (this.getField(), this.positionsNeeded);
 
     if (args.size () == 0) {
-      return;
+      return result;
+    }
+
+    for (Qry q_i: this.args) {
+      q_i.docIteratorAdvanceTo (start);
     }
 
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  until all of the argument inverted lists are depleted, or
+    //  reach the end of the range.
+
+    int[] positions = new int[16];
+    PositionHeap heap = new PositionHeap ();
 
     while (true) {
 
@@ -45,29 +65,57 @@ public class QryIopSyn extends QryIop {
         }
       }
 
-      if (minDocid == Qry.INVALID_DOCID)
+      if ((minDocid == Qry.INVALID_DOCID) || (minDocid >= end))
         break;				// All docids have been processed.  Done.
       
       //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
+      //  that match the minDocid, merging their sorted positions.
+      //  Save it.  The arguments are advanced after the merge, which
+      //  reads their position arrays.  If nothing reads this
+      //  operator's positions, its arguments don't have any, and the
+      //  posting's tf is the sum of theirs.
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      heap.clear ();
+
+      int count = 0;
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+          QryIop iop_i = (QryIop) q_i;
+
+          if (this.positionsNeeded) {
+            heap.add (iop_i.docIteratorGetMatchPositions (),
+                      iop_i.docIteratorGetMatchTf ());
+          } else {
+            count += iop_i.docIteratorGetMatchTf ();
+          }
+        }
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      if (this.positionsNeeded) {
+        int total = heap.getTotalLength ();
+
+        if (positions.length < total) {
+          positions = new int[2 * total];
+        }
+
+        count = heap.merge (positions);
+      }
+
+      result.appendPosting (minDocid, positions, count);
+
+      for (Qry q_i: this.args) {
+        if (q_i.docIteratorHasMatch (null) &&
+            (q_i.docIteratorGetMatch () == minDocid)) {
+          q_i.docIteratorAdvancePast (minDocid);
+        }
+      }
     }
+
+    return result;
   }
 
 }
@@ -0,0 +1,267 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  QryPlanner chooses the order in which conjunctive query operators
+ *  visit their arguments when they look for a document that every
+ *  argument matches (see {@link Qry#docIteratorFindMatchAll}).  The
+ *  first argument drives the iteration and the others skip to its
+ *  documents, so the cheapest order starts with the rarest argument.
+ *  <p>
+ *  The planner runs after the query is parsed and optimized and
+ *  before it is initialized, so no inverted lists exist yet.  Costs
+ *  are estimated from the df and ctf of each term in the term
+ *  dictionary:
+ *  </p>
+ *  <ul>
+ *    <li>#SYN and other operators that combine their arguments' lists
+ *        match at most the sum of their arguments' df and ctf;</li>
+ *    <li>#NEAR and #WINDOW match at most the smallest df and ctf of
+ *        their arguments;</li>
+ *    <li>#AND and #WAND match at most the smallest df of their
+ *        arguments when every argument must match, and at most the
+ *        sum otherwise (e.g., Indri);</li>
+ *    <li>other score operators match at most the sum.</li>
+ *  </ul>
+ *  <p>
+ *  Conjunctive operators (#AND and #WAND when every argument must
+ *  match, #NEAR and #WINDOW) visit their arguments in ascending order
+ *  of estimated df, and ctf breaks ties.  The arguments themselves
+ *  aren't reordered:  #NEAR and #WINDOW still match locations in
+ *  query order, and scores are still combined in argument order, so
+ *  planning never changes the results.
+ *  </p>
+ *  <p>
+ *  The planner also decides which QryIop operators must read
+ *  positions.  #NEAR and #WINDOW read their arguments' locations, and
+ *  #SYN reads them only if something reads its own; score operators
+ *  read only term frequencies.  Terms whose positions aren't read
+ *  open frequency-only postings, which is the common case for
+ *  bag-of-words queries.
+ *  </p>
+ *  <p>
+ *  Finally, the planner chooses whether a short BM25 #SUM query is
+ *  evaluated term-at-a-time (see {@link #useTermAtATime}).
+ *  </p>
+ */
+public class QryPlanner {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The numbers of terms that a query that is evaluated
+   *  term-at-a-time may have.  Longer queries need more passes over
+   *  the accumulators to prune.
+   */
+  private static final int MIN_TAAT_TERMS = 2;
+  private static final int MAX_TAAT_TERMS = 4;
+
+  /**
+   *  A query is evaluated term-at-a-time if its terms have at least
+   *  one posting per TAAT_DOCS_PER_POSTING docids.  Scanning a 64-bit
+   *  word of the accumulators' bitmap costs much less than moving a
+   *  document-at-a-time evaluator to the next document, so even
+   *  short postings pay for the scan.
+   */
+  private static final int TAAT_DOCS_PER_POSTING = 1024;
+
+  /**
+   *  A query that would have to allocate its accumulators (see
+   *  {@link AccumulatorPool}) is evaluated term-at-a-time only if its
+   *  terms have at least one posting per TAAT_ALLOC_DOCS_PER_POSTING
+   *  docids.  Allocating and zeroing an accumulator costs about 0.3
+   *  to 3.5 ns per docid, depending on its size, and term-at-a-time
+   *  evaluation saves about 15 ns per posting, so the allocation pays
+   *  for itself only if the postings are a large part of the index.
+   */
+  private static final int TAAT_ALLOC_DOCS_PER_POSTING = 4;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The estimated df and ctf of a query operator.
+   */
+  private static final class Cost {
+
+    final long df;
+    final long ctf;
+
+    Cost (long df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+
+    int compareTo (Cost that) {
+      return (this.df != that.df) ?
+        Long.compare (this.df, that.df) : Long.compare (this.ctf, that.ctf);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Choose the argument order of each conjunctive operator in a
+   *  query.  Call it after the query is parsed and before it is
+   *  initialized.
+   *  @param q The query.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void plan (Qry q, RetrievalModel r) throws IOException {
+    plan (q, r, r.getIndexContext ());
+    planPositions (q, false);
+  }
+
+  /**
+   *  Tell each QryIop operator in a query operator's subtree whether
+   *  its locations are read.
+   *  @param q The query operator.
+   *  @param needed True if q's parent reads q's locations.
+   */
+  private static void planPositions (Qry q, boolean needed) {
+
+    boolean argsNeeded = false;
+
+    if (q instanceof QryIop) {
+      ((QryIop) q).setPositionsNeeded (needed);
+      argsNeeded = (q instanceof QryIopSyn) ? needed : true;
+    }
+
+    for (Qry q_i : q.args) {
+      planPositions (q_i, argsNeeded);
+    }
+  }
+
+  /**
+   *  Choose the argument orders of a query operator and its
+   *  descendants, and estimate its cost.
+   *  @return The estimated df and ctf of the query operator.
+   */
+  private static Cost plan (Qry q, RetrievalModel r, IndexContext context)
+    throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+      long df = context.getDocFreq (t.getField (), t.getTerm ());
+      long ctf = context.getTotalTermFreq (t.getField (), t.getTerm ());
+      return new Cost (df, (ctf < 0) ? df : ctf);	// -1 if unknown
+    }
+
+    Cost[] costs = new Cost[q.args.size ()];
+
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = plan (q.args.get (i), r, context);
+    }
+
+    if (q instanceof QrySopScore) {
+      return costs[0];
+    }
+
+    if (! isConjunctive (q, r)) {
+      long df = 0;
+      long ctf = 0;
+
+      for (Cost c : costs) {
+        df += c.df;
+        ctf += c.ctf;
+      }
+
+      return new Cost (df, ctf);
+    }
+
+    //  Visit the cheapest arguments first.  The sort is stable, so
+    //  arguments that cost the same keep their query order.
+
+    Integer[] order = new Integer[costs.length];
+
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+
+    Arrays.sort (order, (a, b) -> costs[a].compareTo (costs[b]));
+
+    int[] argOrder = new int[order.length];
+    long ctf = Long.MAX_VALUE;
+
+    for (int i = 0; i < order.length; i++) {
+      argOrder[i] = order[i];
+      ctf = Math.min (ctf, costs[i].ctf);
+    }
+
+    q.setArgOrder (argOrder);
+
+    //  A positional operator can't match more locations than its
+    //  rarest argument has, but a Boolean one matches whole documents.
+
+    return new Cost (costs[order[0]].df,
+                     (q instanceof QryIop) ? ctf : costs[order[0]].df);
+  }
+
+  /**
+   *  Choose whether a BM25 #SUM query is evaluated term-at-a-time by
+   *  {@link QryEvaluatorTaat} or document-at-a-time.  Term-at-a-time
+   *  evaluation is chosen for bag-of-words queries that have a few
+   *  terms whose postings are long, relative to the size of the
+   *  index, because the evaluator's cost is the postings plus a scan
+   *  of one bit per docid, without the per-document work of finding
+   *  the next document that an argument matches.  The accumulators
+   *  have an entry for every docid, so if none is idle in the index's
+   *  pool, the postings must also pay for allocating one, and if the
+   *  pool is full, the query is evaluated document-at-a-time.
+   *  @param q The initialized query.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return True if the query should be evaluated term-at-a-time.
+   */
+  public static boolean useTermAtATime (QrySop q, RetrievalModel r) {
+
+    if (! ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) ||
+        (q.args.size () < MIN_TAAT_TERMS) ||
+        (q.args.size () > MAX_TAAT_TERMS)) {
+      return false;
+    }
+
+    long postings = 0;
+
+    for (Qry q_i : q.args) {
+      if (! ((q_i instanceof QrySopScore) &&
+             (q_i.args.get (0) instanceof QryIopTerm))) {
+        return false;
+      }
+
+      postings += ((QryIop) q_i.args.get (0)).getDf ();
+    }
+
+    long maxDoc = r.getIndexStats ().maxDoc;
+    AccumulatorPool pool = r.getIndexContext ().getAccumulatorPool ();
+
+    if (pool.hasIdle ()) {
+      return (postings * TAAT_DOCS_PER_POSTING >= maxDoc);
+    }
+
+    return (pool.canAllocate () &&
+            (postings * TAAT_ALLOC_DOCS_PER_POSTING >= maxDoc));
+  }
+
+  /**
+   *  True if a query operator matches only the documents that all of
+   *  its arguments match.
+   *  @param q The query operator.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return True if the operator is conjunctive.
+   */
+  private static boolean isConjunctive (Qry q, RetrievalModel r) {
+
+    if ((q instanceof QryIopNear) || (q instanceof QryIopWindow)) {
+      return true;
+    }
+
+    //  Indri #AND and #WAND match documents that any argument matches.
+
+    return ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd)) &&
+      ! (r instanceof RetrievalModelIndri);
+  }
+}
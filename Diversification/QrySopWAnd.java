@@ -2,6 +2,39 @@ import java.io.IOException;
 
 public class QrySopWAnd extends QrySop {
 
+    /**
+     *  The weights divided by their sum, computed by initialize.
+     */
+    private double[] normalizedWeights;
+
+    /**
+     *  Initialize the query operator and its arguments, and normalize
+     *  the weights so that scoring doesn't re-sum them.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        double sumWeights = 0.0;
+        for (int i = 0; i < this.args.size(); i++) {
+            sumWeights += this.weights.get(i);
+        }
+        this.normalizedWeights = new double[this.args.size()];
+        for (int i = 0; i < this.args.size(); i++) {
+            this.normalizedWeights[i] = this.weights.get(i) / sumWeights;
+        }
+    }
+
+    /**
+     *  Get the weights divided by their sum.  It is an error to call
+     *  this method before the object's initialize method is called.
+     *  @return The normalized weights, which must not be modified.
+     */
+    public double[] getNormalizedWeights() {
+        return this.normalizedWeights;
+    }
+
     @Override
     public double getScore(RetrievalModel r) throws IOException {
         // TODO Auto-generated method stub
@@ -17,19 +50,49 @@ public class QrySopWAnd extends QrySop {
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
         // TODO Auto-generated method stub
         if (r instanceof RetrievalModelIndri) {
-            double sumWeights = 0.0;
+            double score = this.getCachedDefaultScore(docid);
+            if (!Double.isNaN(score)) {
+                return score;
+            }
+            score = 1.0;
             for (int i = 0; i < this.args.size(); i++) {
-                sumWeights += this.weights.get(i);
+                Qry q_i = this.args.get(i);
+                double weight = this.normalizedWeights[i];
+                score *= Math.pow(((QrySop)q_i).getDefaultScore(r, docid), weight);
             }
+            return this.cacheDefaultScore(score);
+        }
+        return 0.0;
+    }
+
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        // The score when each argument has its larger bound.
+        if (r instanceof RetrievalModelIndri) {
             double score = 1.0;
             for (int i = 0; i < this.args.size(); i++) {
-                Qry q_i = this.args.get(i);
-                double weight = this.weights.get(i);
-                score *= Math.pow(((QrySop)q_i).getDefaultScore(r, docid), weight / sumWeights);
+                QrySop q_i = (QrySop)this.args.get(i);
+                double weight = this.normalizedWeights[i];
+                score *= Math.pow(Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r)),
+                                  weight);
             }
             return score;
         }
-        return 0.0;
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double score = 1.0;
+            for (int i = 0; i < this.args.size(); i++) {
+                QrySop q_i = (QrySop)this.args.get(i);
+                double weight = this.normalizedWeights[i];
+                score *= Math.pow(q_i.getMaxDefaultScore(r), weight);
+            }
+            return score;
+        }
+        return Double.POSITIVE_INFINITY;
     }
 
     @Override
@@ -45,27 +108,38 @@ public class QrySopWAnd extends QrySop {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;
         } else {
-            double sumWeights = 0.0;
-            for (int i = 0; i < this.args.size(); i++) {
-                sumWeights += this.weights.get(i);
-            }
-//            System.out.println("sum weights: " + sumWeights);
-            int docId = this.docIteratorGetMatch();
+            return this.getScoreOf(r, this.docIteratorGetMatch());
+        }
+    }
+
+    /**
+     *  Get the Indri score of a document whose arguments' docIterators
+     *  are at or beyond it.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docId The internal document id.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getScoreOf(RetrievalModel r, int docId) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return super.getScoreOf(r, docId);
+        } else {
             double score = 1.0;
    
             for (int i = 0; i < this.args.size(); i++) {
                 Qry q_i = this.args.get(i);
-                double weight = this.weights.get(i);
+                double weight = this.normalizedWeights[i];
                 double currScore = 0.0;
                 if (!q_i.docIteratorHasMatchCache()) {
 //                  System.out.println("get default score");
-                    currScore = Math.pow(((QrySop)q_i).getDefaultScore(r, docId), weight / sumWeights);
+                    currScore = Math.pow(((QrySop)q_i).getDefaultScore(r, docId), weight);
                 } else if (q_i.docIteratorGetMatch() == docId){
     //                  System.out.println("get score");
-                    currScore = Math.pow(((QrySop)q_i).getScore(r), weight / sumWeights);
+                    currScore = Math.pow(((QrySop)q_i).getScore(r), weight);
                 } else {
     //                  System.out.println("get default score");
-                    currScore = Math.pow(((QrySop)q_i).getDefaultScore(r, docId), weight / sumWeights);
+                    currScore = Math.pow(((QrySop)q_i).getDefaultScore(r, docId), weight);
                 }
                 score *= currScore;
             }
@@ -1,8 +1,16 @@
 
+import java.util.Map;
+
 public class RetrievalModelIndri extends RetrievalModel {
 
     protected double mu;
     protected double lambda;
+
+    /**
+     *  If true, queries are scored in the log domain; see
+     *  {@link CompiledQuery}.
+     */
+    protected boolean logDomain = false;
     
     RetrievalModelIndri(double mu, double lambda) {
         this.mu = mu;
@@ -15,4 +23,33 @@ public class RetrievalModelIndri extends RetrievalModel {
         return new String("#and");
     }
 
+    /**
+     *  Set the evaluation options, including Indri:logDomain.  Only
+     *  compiled queries score in the log domain, and the pruning
+     *  evaluator doesn't, so logDomain turns dynamicPruning off, with
+     *  a warning.
+     *  @param parameters The parameters, in &lt;key, value&gt; format.
+     */
+    @Override
+    public void setEvaluationOptions(Map<String, String> parameters) {
+        super.setEvaluationOptions(parameters);
+        if (parameters.containsKey("Indri:logDomain")) {
+            this.logDomain = Boolean.parseBoolean(parameters.get("Indri:logDomain"));
+        }
+        if (this.logDomain && !this.dynamicPruning.equals("none")) {
+            System.err.println("Warning: Indri:logDomain=true disables dynamicPruning=" +
+                               this.dynamicPruning + ".");
+            this.dynamicPruning = "none";
+        }
+    }
+
+    @Override
+    public TermScorer newTermScorer(QryIop q, IndexContext context) {
+        IndexStats stats = context.getIndexStats();
+        return new TermScorer.Indri(context.getDocLengthStore(), q.getField(),
+                                    q.getCtf(),
+                                    stats.getFieldStats(q.getField()).sumOfLengths,
+                                    this.mu, this.lambda);
+    }
+
 }
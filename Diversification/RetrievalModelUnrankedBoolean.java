@@ -13,4 +13,12 @@ public class RetrievalModelUnrankedBoolean extends RetrievalModel {
     return new String ("#or");
   }
 
+  public TermScorer newTermScorer (QryIop q, IndexContext context) {
+    return new TermScorer.UnrankedBoolean (context.getDocLengthStore (), q.getField ());
+  }
+
+  public boolean usesTermStatistics () {
+    return false;
+  }
+
 }
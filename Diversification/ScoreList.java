@@ -10,27 +10,41 @@ import java.util.*;
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  A utility class to create a <internalDocid, externalDocidOrdinal,
+  //  score> object.  The ordinal sorts like the external docid.
 
   private class ScoreListEntry {
     private int docid;
-    private String externalId;
+    private int externalIdOrdinal;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
-
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
+      this.externalIdOrdinal = context.getExternalDocidOrdinal (this.docid);
     }
   }
 
+  /**
+   *  The index that the docids refer to.
+   */
+  private final IndexContext context;
+
+  /**
+   *  An empty score list for the current index.
+   */
+  public ScoreList() {
+    this(Idx.getIndexContext());
+  }
+
+  /**
+   *  An empty score list for an index.
+   *  @param context The index that the docids refer to.
+   */
+  public ScoreList(IndexContext context) {
+    this.context = context;
+  }
+
   /**
    *  A list of document ids and scores. 
    */
@@ -94,7 +108,7 @@ public class ScoreList {
 	if (s1.score < s2.score)
 	    return 1;
 	else
-	    return s1.externalId.compareTo(s2.externalId);
+	    return Integer.compare(s1.externalIdOrdinal, s2.externalIdOrdinal);
 //	  if (s1.docid > s2.docid)
 //	    return 1;
 //	  else
@@ -0,0 +1,238 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  A TermScorer scores the documents that one query argument (a term,
+ *  or a #SYN, #NEAR, etc) matches.  A retrieval model creates one for
+ *  each SCORE operator when the query is initialized (see
+ *  {@link RetrievalModel#newTermScorer}).  Everything that is the same
+ *  for every document, e.g., the RSJ weight of BM25 or the collection
+ *  probability of Indri, is computed then, so scoring a document just
+ *  combines its tf and length with a few constants.
+ *  <p>
+ *  Scorers also compute the score bounds that dynamic pruning uses
+ *  (see {@link QryEvaluator}) from the statistics that
+ *  {@link ImpactStats} and {@link BlockMaxIndex} record.
+ *  </p>
+ */
+public abstract class TermScorer {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The document lengths, and the slot of the argument's field.
+   */
+  protected final DocLengthStore docLengths;
+  protected final int lengthSlot;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param docLengths The document lengths of the index.
+   *  @param field The field that the argument matches.
+   */
+  protected TermScorer (DocLengthStore docLengths, String field) {
+    this.docLengths = docLengths;
+    this.lengthSlot = docLengths.getFieldSlot (field);
+  }
+
+  /**
+   *  Get the score of a document that the argument matches.
+   *  @param docid The internal document id.
+   *  @param tf The argument's term frequency in the document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract double getScore (int docid, int tf) throws IOException;
+
+  /**
+   *  Get the score of a document that the argument doesn't match.
+   *  Only retrieval models that have default scores (e.g., Indri)
+   *  override it.
+   *  @param docid The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getDefaultScore (int docid) throws IOException {
+    return 0.0;
+  }
+
+  /**
+   *  Get the natural log of getScore.
+   *  @param docid The internal document id.
+   *  @param tf The argument's term frequency in the document.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getLogScore (int docid, int tf) throws IOException {
+    return Math.log (this.getScore (docid, tf));
+  }
+
+  /**
+   *  Get the natural log of getDefaultScore.
+   *  @param docid The internal document id.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getLogDefaultScore (int docid) throws IOException {
+    return Math.log (this.getDefaultScore (docid));
+  }
+
+  /**
+   *  Get an upper bound on the score of any posting in a group of
+   *  postings, e.g., the whole inverted list or one block of it.
+   *  @param maxTf The largest tf in the group.
+   *  @param maxTfRatio The largest tf / field length in the group.
+   *  @param minLength The smallest field length in the group.
+   *  @return The bound, or +Infinity if the model can't bound its scores.
+   */
+  public double getMaxScore (int maxTf, double maxTfRatio, int minLength) {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the default score of any document.
+   *  @return The bound, or +Infinity if the model can't bound its scores.
+   */
+  public double getMaxDefaultScore () {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  //  --------------- Scorers ---------------------------------------
+
+  /**
+   *  The unranked Boolean score:  1 for every matching document.
+   */
+  static final class UnrankedBoolean extends TermScorer {
+
+    UnrankedBoolean (DocLengthStore docLengths, String field) {
+      super (docLengths, field);
+    }
+
+    public double getScore (int docid, int tf) {
+      return 1.0;
+    }
+  }
+
+  /**
+   *  The ranked Boolean score:  the term frequency.
+   */
+  static final class RankedBoolean extends TermScorer {
+
+    RankedBoolean (DocLengthStore docLengths, String field) {
+      super (docLengths, field);
+    }
+
+    public double getScore (int docid, int tf) {
+      return tf;
+    }
+  }
+
+  /**
+   *  The BM25 score, with qtf = 1:
+   *  RSJ * tf / (tf + k1 * ((1 - b) + b * doclen / avg_doclen)).
+   */
+  static final class BM25 extends TermScorer {
+
+    private final double rsjWeight;
+    private final double k1;
+    private final double b;
+    private final double oneMinusB;
+    private final double avgLength;
+
+    /**
+     *  @param docLengths The document lengths of the index.
+     *  @param field The field that the argument matches.
+     *  @param numDocs The number of documents in the corpus (N).
+     *  @param df The argument's document frequency.
+     *  @param avgLength The average length of the field.
+     *  @param k1 The k1 parameter.
+     *  @param b The b parameter.
+     */
+    BM25 (DocLengthStore docLengths, String field, double numDocs, double df,
+          double avgLength, double k1, double b) {
+      super (docLengths, field);
+      this.rsjWeight =
+        Math.max (0, Math.log ((numDocs - df + 0.5) / (df + 0.5)));
+      this.k1 = k1;
+      this.b = b;
+      this.oneMinusB = 1 - b;
+      this.avgLength = avgLength;
+    }
+
+    public double getScore (int docid, int tf) throws IOException {
+      double doclen = (double) this.docLengths.getDocLength (this.lengthSlot, docid);
+      double tfWeight =
+        tf / (tf + this.k1 * (this.oneMinusB + this.b * doclen / this.avgLength));
+      return this.rsjWeight * tfWeight;
+    }
+
+    public double getMaxScore (int maxTf, double maxTfRatio, int minLength) {
+      return this.rsjWeight *
+        ImpactStats.bm25TfWeightBound (maxTf, maxTfRatio, this.k1, this.b,
+                                       this.avgLength);
+    }
+  }
+
+  /**
+   *  The Indri score, with two-stage smoothing:
+   *  (1 - lambda) * (tf + mu * p(t|C)) / (doclen + mu) + lambda * p(t|C).
+   */
+  static final class Indri extends TermScorer {
+
+    private final double mu;
+    private final double muPMLEc;		// mu * p(t|C)
+    private final double oneMinusLambda;
+    private final double lambdaPMLEc;		// lambda * p(t|C)
+
+    /**
+     *  @param docLengths The document lengths of the index.
+     *  @param field The field that the argument matches.
+     *  @param ctf The argument's collection term frequency.
+     *  @param collectionLength The sum of the lengths of the field.
+     *  @param mu The mu parameter.
+     *  @param lambda The lambda parameter.
+     */
+    Indri (DocLengthStore docLengths, String field, double ctf,
+           double collectionLength, double mu, double lambda) {
+      super (docLengths, field);
+
+      double pMLEc = ctf / collectionLength;
+
+      this.mu = mu;
+      this.muPMLEc = mu * pMLEc;
+      this.oneMinusLambda = 1 - lambda;
+      this.lambdaPMLEc = lambda * pMLEc;
+    }
+
+    public double getScore (int docid, int tf) throws IOException {
+      double docLen = (double) this.docLengths.getDocLength (this.lengthSlot, docid);
+      return this.getScore ((double) tf, docLen);
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      double docLen = (double) this.docLengths.getDocLength (this.lengthSlot, docid);
+      return this.getScore (0.0, docLen);
+    }
+
+    public double getMaxScore (int maxTf, double maxTfRatio, int minLength) {
+
+      //  The smoothed probability grows with tf and shrinks with the
+      //  document length.
+
+      return this.getScore ((double) maxTf, (double) minLength);
+    }
+
+    public double getMaxDefaultScore () {
+      return this.getScore (0.0, 0.0);		// An empty document
+    }
+
+    private double getScore (double tf, double docLen) {
+      double bayesSmooth = (tf + this.muPMLEc) / (docLen + this.mu);
+      return this.oneMinusLambda * bayesSmooth + this.lambdaPMLEc;
+    }
+  }
+}
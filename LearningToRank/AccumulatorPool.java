@@ -0,0 +1,134 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A bounded pool of the score accumulators that
+ *  {@link QryEvaluatorTaat} uses.  An accumulator has an entry for
+ *  every docid, so it costs about 8 bytes per document to allocate
+ *  and zero; the pool lets queries reuse them instead.  Each index
+ *  context owns a pool, so accumulators are dropped with the context,
+ *  and the pool never holds more than one accumulator per processor,
+ *  nor more than 1/MAX_HEAP_FRACTION of the heap.
+ *  <p>
+ *  A query takes an accumulator, and returns it, cleared, when it is
+ *  done.  If every accumulator is in use and no more may be
+ *  allocated, take returns null, and the query is evaluated
+ *  document-at-a-time instead, so concurrent queries (e.g., one
+ *  virtual thread per query) never allocate more.
+ *  </p>
+ */
+public final class AccumulatorPool {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The pool's accumulators use at most this fraction of the heap.
+   */
+  private static final int MAX_HEAP_FRACTION = 8;
+
+  private final int maxDoc;
+  private final int maxAccumulators;
+  private int allocated = 0;
+  private final Deque<Accumulators> idle = new ArrayDeque<Accumulators> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A score for every docid, and a bitmap of the docids that have
+   *  scores.  An accumulator is returned to the pool cleared, which a
+   *  query does by clearing only the entries that it used.
+   */
+  public static final class Accumulators {
+
+    final double[] scores;
+    final long[] words;
+
+    private Accumulators (int maxDoc) {
+      this.scores = new double[maxDoc];
+      this.words = new long[(maxDoc + 63) >>> 6];
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty pool.  Accumulators are allocated when they are
+   *  first needed.
+   *  @param maxDoc The number of docids in the index.
+   */
+  public AccumulatorPool (int maxDoc) {
+
+    long bytes = bytesPerAccumulator (maxDoc);
+    long budget = Runtime.getRuntime ().maxMemory () / MAX_HEAP_FRACTION;
+
+    this.maxDoc = maxDoc;
+    this.maxAccumulators =
+      (int) Math.min (Runtime.getRuntime ().availableProcessors (),
+                      budget / Math.max (1, bytes));
+  }
+
+  /**
+   *  Is there an accumulator that a query can take without allocating
+   *  one?
+   *  @return True if an accumulator is idle.
+   */
+  public synchronized boolean hasIdle () {
+    return ! this.idle.isEmpty ();
+  }
+
+  /**
+   *  Can another accumulator be allocated?
+   *  @return True if the pool isn't full.
+   */
+  public synchronized boolean canAllocate () {
+    return (this.allocated < this.maxAccumulators);
+  }
+
+  /**
+   *  Take an idle accumulator, or allocate one if the pool isn't full.
+   *  @return A cleared accumulator, or null if there is none.
+   */
+  public Accumulators take () {
+
+    synchronized (this) {
+      if (! this.idle.isEmpty ()) {
+        return this.idle.pop ();
+      }
+
+      if (this.allocated >= this.maxAccumulators) {
+        return null;
+      }
+
+      this.allocated ++;
+    }
+
+    return new Accumulators (this.maxDoc);	// Outside the lock
+  }
+
+  /**
+   *  Return a cleared accumulator to the pool.
+   *  @param acc The accumulator.
+   */
+  public synchronized void release (Accumulators acc) {
+    this.idle.push (acc);
+  }
+
+  /**
+   *  Drop an accumulator that wasn't cleared, e.g., because its query
+   *  failed, so that another may be allocated in its place.
+   *  @param acc The accumulator.
+   */
+  public synchronized void discard (Accumulators acc) {
+    this.allocated --;
+  }
+
+  /**
+   *  Get the memory that an accumulator uses.
+   */
+  private static long bytesPerAccumulator (int maxDoc) {
+    return 8L * maxDoc + 8L * ((maxDoc + 63) >>> 6);
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  BlockMaxIndex is an optional, memory-mapped table of per-block
+ *  score statistics for long inverted lists.  It is built offline
+ *  and saved in a sidecar file in the index directory:
+ *  <pre>
+ *    java BlockMaxIndex indexPath [blockSize]
+ *  </pre>
+ *  <p>
+ *  The postings of each term that has more than blockSize postings
+ *  are divided into blocks of blockSize postings (128 by default).
+ *  Each block records its last docid and the statistics that bound
+ *  the score of any posting in it:  the largest tf, the largest
+ *  tf / field length, and the smallest field length.  BM25 and Indri
+ *  bounds are computed from these statistics when a query is
+ *  evaluated, so one sidecar file works for any model parameters.
+ *  Shorter lists are a single block, whose statistics are the
+ *  term's {@link ImpactStats}.
+ *  </p><p>
+ *  If the sidecar file exists when {@link IndexContext} opens the
+ *  index, the Block-Max WAND evaluator ({@link QryEvaluatorBmw}) uses
+ *  it to skip whole blocks.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The blocks of one term.  This is a view of the sidecar file.
+   */
+  public static final class TermBlocks {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int numBlocks;
+
+    private TermBlocks (ByteBuffer buffer, int offset, int numBlocks) {
+      this.buffer = buffer;
+      this.offset = offset;
+      this.numBlocks = numBlocks;
+    }
+
+    /**
+     *  Get the number of blocks.
+     *  @return The number of blocks.
+     */
+    public int size () {
+      return this.numBlocks;
+    }
+
+    /**
+     *  Get the docid of the last posting in a block.
+     *  @param block The index of the block.
+     *  @return The internal document id.
+     */
+    public int getLastDocid (int block) {
+      return this.buffer.getInt (this.offset + BLOCK_LENGTH * block);
+    }
+
+    /**
+     *  Get the largest tf of a block.
+     *  @param block The index of the block.
+     *  @return The largest term frequency.
+     */
+    public int getMaxTf (int block) {
+      return this.buffer.getInt (this.offset + BLOCK_LENGTH * block + 4);
+    }
+
+    /**
+     *  Get the largest tf / field length of a block.
+     *  @param block The index of the block.
+     *  @return The largest ratio.
+     */
+    public double getMaxTfRatio (int block) {
+      return this.buffer.getDouble (this.offset + BLOCK_LENGTH * block + 8);
+    }
+
+    /**
+     *  Get the smallest field length of a block.
+     *  @param block The index of the block.
+     *  @return The smallest field length.
+     */
+    public int getMinLength (int block) {
+      return this.buffer.getInt (this.offset + BLOCK_LENGTH * block + 16);
+    }
+  }
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.blockMax";
+
+  /**
+   *  The default number of postings per block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x5145424d;		// "QEBM"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 4 + 4 + 8;
+
+  /*
+   *  Each block is:  int last docid, int max tf, double max tf ratio,
+   *  int min length.
+   */
+  private static final int BLOCK_LENGTH = 4 + 4 + 8 + 4;
+
+  /*
+   *  Layout after the header:  the blocks of every term, then the
+   *  term table.  Each entry of the term table is:  field length,
+   *  UTF-8 field, term length, UTF-8 term, number of blocks, offset.
+   */
+  private final int blockSize;
+  private final Map<String, TermBlocks> terms = new HashMap<String, TermBlocks> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  private BlockMaxIndex (ByteBuffer b) {
+    this.blockSize = b.getInt (20);
+
+    int numTerms = b.getInt (24);
+    int p = (int) b.getLong (28);
+
+    for (int i = 0; i < numTerms; i++) {
+      String field = readString (b, p);
+      p += 4 + b.getInt (p);
+      String term = readString (b, p);
+      p += 4 + b.getInt (p);
+      int numBlocks = b.getInt (p);
+      int offset = (int) b.getLong (p + 4);
+      p += 12;
+
+      this.terms.put (key (field, term), new TermBlocks (b, offset, numBlocks));
+    }
+  }
+
+  /**
+   *  Build the sidecar file for an index.
+   *  @param args The index path, and optionally the block size.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if ((args.length < 1) || (args.length > 2)) {
+      System.err.println ("Usage:  java BlockMaxIndex indexPath [blockSize]");
+      System.exit (1);
+    }
+
+    int blockSize =
+      (args.length > 1) ? Integer.parseInt (args[1]) : DEFAULT_BLOCK_SIZE;
+
+    Idx.open (args[0]);
+    build (Idx.INDEXREADER, args[0], Idx.getIndexContext ().getDocLengthStore (),
+           blockSize);
+    System.out.println ("Wrote " + Paths.get (args[0], FILE_NAME));
+  }
+
+  /**
+   *  Build the block table for an index and save it in the index
+   *  directory.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @param lengths The document lengths of the index.
+   *  @param blockSize The number of postings per block.
+   *  @throws IOException Error accessing or writing the index.
+   */
+  public static void build (IndexReader reader, String indexPath,
+                            DocLengthStore lengths, int blockSize)
+    throws IOException {
+
+    if (blockSize < 1) {
+      throw new IllegalArgumentException ("blockSize must be at least 1");
+    }
+
+    long indexVersion = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+    Path tmp = Paths.get (indexPath, FILE_NAME + ".tmp");
+
+    try (FileChannel channel =
+           FileChannel.open (tmp, StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+
+      //  The blocks are written as they are computed; the term table
+      //  is kept in memory and written last.
+
+      ByteArrayOutputStream table = new ByteArrayOutputStream ();
+      DataOutputStream tableOut = new DataOutputStream (table);
+      ByteBuffer out = ByteBuffer.allocate (BLOCK_LENGTH * 1024);
+      long position = HEADER_LENGTH;
+      int numTerms = 0;
+
+      channel.position (HEADER_LENGTH);
+
+      for (String field : MultiFields.getIndexedFields (reader)) {
+        Terms fieldTerms = MultiFields.getTerms (reader, field);
+        int slot = lengths.getFieldSlot (field);
+
+        if ((fieldTerms == null) || (slot < 0)) {
+          continue;
+        }
+
+        TermsEnum termsEnum = fieldTerms.iterator ();
+        PostingsEnum postings = null;
+        BytesRef termBytes;
+
+        while ((termBytes = termsEnum.next ()) != null) {
+          if (termsEnum.docFreq () <= blockSize) {
+            continue;
+          }
+
+          postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+          int numBlocks = 0;
+          int count = 0;
+          int lastDocid = 0;
+          int maxTf = 0;
+          double maxTfRatio = 0.0;
+          int minLength = Integer.MAX_VALUE;
+
+          while (true) {
+            int docid = postings.nextDoc ();
+
+            if ((docid == DocIdSetIterator.NO_MORE_DOCS) || (count == blockSize)) {
+              if (! out.hasRemaining ()) {
+                flush (channel, out);
+              }
+              out.putInt (lastDocid).putInt (maxTf).putDouble (maxTfRatio);
+              out.putInt (minLength);
+              numBlocks ++;
+              count = 0;
+              maxTf = 0;
+              maxTfRatio = 0.0;
+              minLength = Integer.MAX_VALUE;
+            }
+
+            if (docid == DocIdSetIterator.NO_MORE_DOCS) {
+              break;
+            }
+
+            int tf = postings.freq ();
+            long length = lengths.getDocLength (slot, docid);
+
+            lastDocid = docid;
+            maxTf = Math.max (maxTf, tf);
+            maxTfRatio = Math.max (maxTfRatio, (double) tf / (double) length);
+            minLength = (int) Math.min (minLength, length);
+            count ++;
+          }
+
+          byte[] fieldName = field.getBytes (StandardCharsets.UTF_8);
+          byte[] term = Arrays.copyOfRange (termBytes.bytes, termBytes.offset,
+                                            termBytes.offset + termBytes.length);
+
+          tableOut.writeInt (fieldName.length);
+          tableOut.write (fieldName);
+          tableOut.writeInt (term.length);
+          tableOut.write (term);
+          tableOut.writeInt (numBlocks);
+          tableOut.writeLong (position);
+
+          position += (long) BLOCK_LENGTH * numBlocks;
+          numTerms ++;
+        }
+      }
+
+      flush (channel, out);
+
+      if (position + table.size () > Integer.MAX_VALUE) {
+        throw new IOException ("The block table is too large.");
+      }
+
+      ByteBuffer t = ByteBuffer.wrap (table.toByteArray ());
+      while (t.hasRemaining ()) {
+        channel.write (t);
+      }
+
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+      header.putInt (MAGIC).putInt (FORMAT_VERSION).putLong (indexVersion);
+      header.putInt (reader.maxDoc ()).putInt (blockSize).putInt (numTerms);
+      header.putLong (position);
+      header.flip ();
+      channel.position (0);
+      while (header.hasRemaining ()) {
+        channel.write (header);
+      }
+    }
+
+    Files.move (tmp, Paths.get (indexPath, FILE_NAME),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   *  Write the blocks in a buffer and empty it.
+   */
+  private static void flush (FileChannel channel, ByteBuffer out)
+    throws IOException {
+    out.flip ();
+    while (out.hasRemaining ()) {
+      channel.write (out);
+    }
+    out.clear ();
+  }
+
+  /**
+   *  Open the sidecar file of an index, if it exists and matches the
+   *  index.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The block table, or null if there is no usable sidecar file.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static BlockMaxIndex open (IndexReader reader, String indexPath)
+    throws IOException {
+
+    Path path = Paths.get (indexPath, FILE_NAME);
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    long indexVersion = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      ByteBuffer mapped =
+        channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((mapped.capacity () < HEADER_LENGTH) ||
+          (mapped.getInt (0) != MAGIC) ||
+          (mapped.getInt (4) != FORMAT_VERSION) ||
+          (mapped.getLong (8) != indexVersion) ||
+          (mapped.getInt (16) != reader.maxDoc ())) {
+        return null;
+      }
+
+      return new BlockMaxIndex (mapped);
+    }
+  }
+
+  /**
+   *  Get the number of postings per block.
+   *  @return The block size.
+   */
+  public int getBlockSize () {
+    return this.blockSize;
+  }
+
+  /**
+   *  Get the blocks of a term.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The blocks, or null if the term's list is a single block.
+   */
+  public TermBlocks getTermBlocks (String field, String term) {
+    return this.terms.get (key (field, term));
+  }
+
+  private static String key (String field, String term) {
+    return field + '\u0000' + term;
+  }
+
+  private static String readString (ByteBuffer b, int p) {
+    byte[] bytes = new byte[b.getInt (p)];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = b.get (p + 4 + i);
+    }
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+}
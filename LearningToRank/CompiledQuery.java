@@ -0,0 +1,590 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  A CompiledQuery is a flattened form of an initialized query tree
+ *  that scores documents without the generic Qry machinery:  no
+ *  recursive docIteratorHasMatch calls, no match caches, and no
+ *  instanceof tests or casts per document.
+ *  <p>
+ *  A query is compiled in two parts.  The <i>shape</i> is a tree of
+ *  small final node classes, one per score operator, that records
+ *  only the query's structure; it is immutable and is cached by
+ *  structure, so a batch of queries that have the same structure
+ *  (e.g., every PRF query #WAND (#AND (...) #WAND (...)) that has the
+ *  same number of terms) builds it once.  The <i>bindings</i> are the
+ *  query's own arguments:  the inverted lists of its SCORE operators,
+ *  their {@link TermScorer}s, and the normalized weights.  Each query
+ *  binds them into a new CompiledQuery, which also holds the state of
+ *  one evaluation.
+ *  </p><p>
+ *  Shapes exist for the operators whose documents are the union of
+ *  their arguments' documents:  Indri #AND, #WAND and #WSUM, and BM25
+ *  #SUM, over SCORE operators.  Their nodes do the same arithmetic,
+ *  in the same order, as the query operators, so a compiled query
+ *  returns the same scores.  Other queries aren't compiled.
+ *  </p><p>
+ *  If the Indri model's logDomain option is set, Indri shapes are
+ *  built from <i>log-domain</i> nodes, which compute the log of the
+ *  score:  #AND and #WAND are weighted sums of their arguments' log
+ *  scores, with the 1/n or weight / (sum of weights) normalization
+ *  folded into the weights, so no Math.pow is needed, and products
+ *  of many small probabilities can't underflow.  The score of a
+ *  document is exp of its log score, which ranks documents the same
+ *  way but may differ from the usual score in the last bits.
+ *  </p>
+ */
+public final class CompiledQuery {
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A node of a shape.  The leaves of its subtree (its SCORE
+   *  operators) are the leaves firstLeaf to endLeaf - 1 of the query.
+   */
+  private static abstract class Node {
+
+    final int firstLeaf;
+    final int endLeaf;
+
+    Node (int firstLeaf, int endLeaf) {
+      this.firstLeaf = firstLeaf;
+      this.endLeaf = endLeaf;
+    }
+
+    /**
+     *  True if a leaf of the subtree matches the document.
+     */
+    final boolean matches (CompiledQuery c, int docid) {
+      for (int i = this.firstLeaf; i < this.endLeaf; i++) {
+        if (c.docs[i] == docid) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     *  The score of a document that the node matches.
+     */
+    abstract double score (CompiledQuery c, int docid) throws IOException;
+
+    /**
+     *  The score of a document that the node doesn't match.
+     */
+    abstract double defaultScore (CompiledQuery c, int docid) throws IOException;
+
+    final double scoreOrDefault (CompiledQuery c, int docid) throws IOException {
+      return this.matches (c, docid) ?
+        this.score (c, docid) : this.defaultScore (c, docid);
+    }
+  }
+
+  /**
+   *  A SCORE operator.
+   */
+  private static final class Leaf extends Node {
+
+    Leaf (int leaf) {
+      super (leaf, leaf + 1);
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      return c.scorers[this.firstLeaf].getScore
+        (docid, c.leaves[this.firstLeaf].docIteratorGetMatchTf ());
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      return c.scorers[this.firstLeaf].getDefaultScore (docid);
+    }
+  }
+
+  /**
+   *  Indri #AND:  the geometric mean of the arguments' scores.
+   */
+  private static final class IndriAnd extends Node {
+
+    final Node[] args;
+    final double exponent;
+
+    IndriAnd (Node[] args, int firstLeaf, int endLeaf) {
+      super (firstLeaf, endLeaf);
+      this.args = args;
+      this.exponent = 1 / (double) args.length;
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      double score = 1.0;
+      for (Node q_i : this.args) {
+        score = score * q_i.scoreOrDefault (c, docid);
+      }
+      return Math.pow (score, this.exponent);
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      double score = 1.0;
+      for (Node q_i : this.args) {
+        score = score * q_i.defaultScore (c, docid);
+      }
+      return Math.pow (score, this.exponent);
+    }
+  }
+
+  /**
+   *  Indri #WAND:  the weighted geometric mean of the arguments'
+   *  scores.  The weights are c.weights[firstWeight ...].
+   */
+  private static final class IndriWAnd extends Node {
+
+    final Node[] args;
+    final int firstWeight;
+
+    IndriWAnd (Node[] args, int firstWeight, int firstLeaf, int endLeaf) {
+      super (firstLeaf, endLeaf);
+      this.args = args;
+      this.firstWeight = firstWeight;
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      double score = 1.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score *= Math.pow (this.args[i].scoreOrDefault (c, docid),
+                           c.weights[this.firstWeight + i]);
+      }
+      return score;
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      double score = 1.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score *= Math.pow (this.args[i].defaultScore (c, docid),
+                           c.weights[this.firstWeight + i]);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  Indri #WSUM:  the weighted mean of the arguments' scores.  The
+   *  weights are c.weights[firstWeight ...].
+   */
+  private static final class IndriWSum extends Node {
+
+    final Node[] args;
+    final int firstWeight;
+
+    IndriWSum (Node[] args, int firstWeight, int firstLeaf, int endLeaf) {
+      super (firstLeaf, endLeaf);
+      this.args = args;
+      this.firstWeight = firstWeight;
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score += c.weights[this.firstWeight + i] *
+          this.args[i].scoreOrDefault (c, docid);
+      }
+      return score;
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score += c.weights[this.firstWeight + i] *
+          this.args[i].defaultScore (c, docid);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  A SCORE operator, in the log domain.
+   */
+  private static final class LogLeaf extends Node {
+
+    LogLeaf (int leaf) {
+      super (leaf, leaf + 1);
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      return c.scorers[this.firstLeaf].getLogScore
+        (docid, c.leaves[this.firstLeaf].docIteratorGetMatchTf ());
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      return c.scorers[this.firstLeaf].getLogDefaultScore (docid);
+    }
+  }
+
+  /**
+   *  Indri #AND and #WAND, in the log domain:  the weighted sum of the
+   *  arguments' log scores.  The weights are c.weights[firstWeight
+   *  ...]; #AND's are 1/n.
+   */
+  private static final class LogIndriWAnd extends Node {
+
+    final Node[] args;
+    final int firstWeight;
+
+    LogIndriWAnd (Node[] args, int firstWeight, int firstLeaf, int endLeaf) {
+      super (firstLeaf, endLeaf);
+      this.args = args;
+      this.firstWeight = firstWeight;
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score += c.weights[this.firstWeight + i] *
+          this.args[i].scoreOrDefault (c, docid);
+      }
+      return score;
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score += c.weights[this.firstWeight + i] *
+          this.args[i].defaultScore (c, docid);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  Indri #WSUM, in the log domain:  the log of the weighted sum of
+   *  the arguments' scores.  The sum is kept relative to the largest
+   *  log score so far, so that exp doesn't underflow.
+   */
+  private static final class LogIndriWSum extends Node {
+
+    final Node[] args;
+    final int firstWeight;
+
+    LogIndriWSum (Node[] args, int firstWeight, int firstLeaf, int endLeaf) {
+      super (firstLeaf, endLeaf);
+      this.args = args;
+      this.firstWeight = firstWeight;
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      double max = Double.NEGATIVE_INFINITY;
+      double sum = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        double logScore = this.args[i].scoreOrDefault (c, docid);
+        double weight = c.weights[this.firstWeight + i];
+
+        if (logScore == Double.NEGATIVE_INFINITY) {
+          continue;				// A score of 0
+        } else if (logScore <= max) {
+          sum += weight * Math.exp (logScore - max);
+        } else {
+          sum = sum * Math.exp (max - logScore) + weight;
+          max = logScore;
+        }
+      }
+      return (max == Double.NEGATIVE_INFINITY) ? max : max + Math.log (sum);
+    }
+
+    double defaultScore (CompiledQuery c, int docid) throws IOException {
+      double max = Double.NEGATIVE_INFINITY;
+      double sum = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        double logScore = this.args[i].defaultScore (c, docid);
+        double weight = c.weights[this.firstWeight + i];
+
+        if (logScore == Double.NEGATIVE_INFINITY) {
+          continue;				// A score of 0
+        } else if (logScore <= max) {
+          sum += weight * Math.exp (logScore - max);
+        } else {
+          sum = sum * Math.exp (max - logScore) + weight;
+          max = logScore;
+        }
+      }
+      return (max == Double.NEGATIVE_INFINITY) ? max : max + Math.log (sum);
+    }
+  }
+
+  /**
+   *  BM25 #SUM:  the sum of the scores of the arguments that match.
+   */
+  private static final class BM25Sum extends Node {
+
+    final Node[] args;
+
+    BM25Sum (Node[] args, int firstLeaf, int endLeaf) {
+      super (firstLeaf, endLeaf);
+      this.args = args;
+    }
+
+    double score (CompiledQuery c, int docid) throws IOException {
+      double score = 0;
+      for (Node q_i : this.args) {
+        if (q_i.matches (c, docid)) {
+          score += q_i.score (c, docid);
+        }
+      }
+      return score;
+    }
+
+    double defaultScore (CompiledQuery c, int docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  A compiled shape, and the number of bindings that it needs.
+   */
+  private static final class Shape {
+
+    final Node root;
+    final int numLeaves;
+    final int numWeights;
+    final boolean logDomain;		// The root computes log scores
+
+    Shape (Node root, int numLeaves, int numWeights, boolean logDomain) {
+      this.root = root;
+      this.numLeaves = numLeaves;
+      this.numWeights = numWeights;
+      this.logDomain = logDomain;
+    }
+  }
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The docid of a leaf that has no more matches.
+   */
+  private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   *  The shape cache holds at most this many shapes.  Later shapes
+   *  are compiled for each query.
+   */
+  private static final int MAX_SHAPES = 1024;
+
+  private static final Map<String, Shape> shapes =
+    new ConcurrentHashMap<String, Shape> ();
+
+  private final Shape shape;
+
+  /*
+   *  The bindings.  Leaves and weights are in depth-first order.
+   */
+  private final QryIop[] leaves;
+  private final TermScorer[] scorers;
+  private final double[] weights;
+
+  /*
+   *  The docid that each leaf matches now.
+   */
+  private final int[] docs;
+
+  //  --------------- Methods ---------------------------------------
+
+  private CompiledQuery (Shape shape) {
+    this.shape = shape;
+    this.leaves = new QryIop[shape.numLeaves];
+    this.scorers = new TermScorer[shape.numLeaves];
+    this.weights = new double[shape.numWeights];
+    this.docs = new int[shape.numLeaves];
+  }
+
+  /**
+   *  Compile an initialized query.
+   *  @param q The query.
+   *  @param r The retrieval model that the query was initialized with.
+   *  @return The compiled query, or null if the query can't be compiled.
+   */
+  public static CompiledQuery compile (Qry q, RetrievalModel r) {
+
+    boolean logDomain = (r instanceof RetrievalModelIndri) &&
+      ((RetrievalModelIndri) r).logDomain;
+    StringBuilder key = new StringBuilder (r.getClass ().getName ());
+
+    key.append (logDomain ? ":log:" : ":");
+
+    if (! appendShapeKey (q, r, key)) {
+      return null;
+    }
+
+    Shape shape = shapes.get (key.toString ());
+
+    if (shape == null) {
+      int[] counts = new int[2];		// Leaves, weights
+      Node root = build (q, logDomain, counts);
+      shape = new Shape (root, counts[0], counts[1], logDomain);
+
+      if (shapes.size () < MAX_SHAPES) {
+        shapes.put (key.toString (), shape);
+      }
+    }
+
+    CompiledQuery c = new CompiledQuery (shape);
+    c.bind (q, new int[2]);
+    return c;
+  }
+
+  /**
+   *  Describe the structure of a query, or return false if it has an
+   *  operator that can't be compiled.
+   */
+  private static boolean appendShapeKey (Qry q, RetrievalModel r,
+                                         StringBuilder key) {
+
+    if (q instanceof QrySopScore) {
+      key.append ('s');
+      return true;
+    }
+
+    if (r instanceof RetrievalModelIndri) {
+      if (q instanceof QrySopAnd) {
+        key.append ("and(");
+      } else if (q instanceof QrySopWAnd) {
+        key.append ("wand(");
+      } else if (q instanceof QrySopWSum) {
+        key.append ("wsum(");
+      } else {
+        return false;
+      }
+    } else if ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) {
+      key.append ("sum(");
+    } else {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! appendShapeKey (q_i, r, key)) {
+        return false;
+      }
+      key.append (' ');
+    }
+
+    key.append (')');
+    return true;
+  }
+
+  /**
+   *  Build the shape of a query that appendShapeKey accepted.
+   *  @param logDomain True if the nodes compute log scores.
+   *  @param counts The number of leaves and weights so far.
+   */
+  private static Node build (Qry q, boolean logDomain, int[] counts) {
+
+    if (q instanceof QrySopScore) {
+      return logDomain ? new LogLeaf (counts[0]++) : new Leaf (counts[0]++);
+    }
+
+    int firstLeaf = counts[0];
+    int firstWeight = counts[1];
+    Node[] args = new Node[q.args.size ()];
+
+    if ((q instanceof QrySopWAnd) || (q instanceof QrySopWSum) ||
+        (logDomain && (q instanceof QrySopAnd))) {
+      counts[1] += args.length;
+    }
+
+    for (int i = 0; i < args.length; i++) {
+      args[i] = build (q.args.get (i), logDomain, counts);
+    }
+
+    if (logDomain) {
+      if (q instanceof QrySopWSum) {
+        return new LogIndriWSum (args, firstWeight, firstLeaf, counts[0]);
+      }
+      return new LogIndriWAnd (args, firstWeight, firstLeaf, counts[0]);
+    }
+
+    if (q instanceof QrySopAnd) {
+      return new IndriAnd (args, firstLeaf, counts[0]);
+    } else if (q instanceof QrySopWAnd) {
+      return new IndriWAnd (args, firstWeight, firstLeaf, counts[0]);
+    } else if (q instanceof QrySopWSum) {
+      return new IndriWSum (args, firstWeight, firstLeaf, counts[0]);
+    } else {
+      return new BM25Sum (args, firstLeaf, counts[0]);
+    }
+  }
+
+  /**
+   *  Copy a query's bindings, in the order that build numbered them.
+   *  @param counts The number of leaves and weights so far.
+   */
+  private void bind (Qry q, int[] counts) {
+
+    if (q instanceof QrySopScore) {
+      this.leaves[counts[0]] = q.getArg (0);
+      this.scorers[counts[0]] = ((QrySopScore) q).getTermScorer ();
+      counts[0]++;
+      return;
+    }
+
+    double[] w = null;
+
+    if (q instanceof QrySopWAnd) {
+      w = ((QrySopWAnd) q).getNormalizedWeights ();
+    } else if (q instanceof QrySopWSum) {
+      w = ((QrySopWSum) q).getNormalizedWeights ();
+    } else if (this.shape.logDomain && (q instanceof QrySopAnd)) {
+      w = new double[q.args.size ()];
+      Arrays.fill (w, 1 / (double) w.length);
+    }
+
+    if (w != null) {
+      System.arraycopy (w, 0, this.weights, counts[1], w.length);
+      counts[1] += w.length;
+    }
+
+    for (Qry q_i : q.args) {
+      this.bind (q_i, counts);
+    }
+  }
+
+  /**
+   *  Score every document that the query matches.  The query's
+   *  iterators are consumed, as they are by other evaluators.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (TopKCollector topK) throws IOException {
+
+    int n = this.leaves.length;
+
+    for (int i = 0; i < n; i++) {
+      this.docs[i] = this.leaves[i].docIteratorHasMatch (null) ?
+        this.leaves[i].docIteratorGetMatch () : NO_MORE_DOCS;
+    }
+
+    while (true) {
+      int docid = NO_MORE_DOCS;
+
+      for (int i = 0; i < n; i++) {
+        docid = Math.min (docid, this.docs[i]);
+      }
+
+      if (docid == NO_MORE_DOCS) {
+        break;
+      }
+
+      double score = this.shape.root.score (this, docid);
+
+      topK.collect (docid, this.shape.logDomain ? Math.exp (score) : score);
+
+      for (int i = 0; i < n; i++) {
+        if (this.docs[i] == docid) {
+          QryIop q_i = this.leaves[i];
+          q_i.docIteratorAdvancePast (docid);
+          this.docs[i] = q_i.docIteratorHasMatch (null) ?
+            q_i.docIteratorGetMatch () : NO_MORE_DOCS;
+        }
+      }
+    }
+  }
+}
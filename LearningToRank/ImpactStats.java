@@ -0,0 +1,173 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  ImpactStats summarizes the postings of a term (or of an inverted
+ *  list) with the values that bound its BM25 and Indri scores in any
+ *  document:  the largest term frequency, the largest ratio of term
+ *  frequency to field length, and the smallest field length.  None
+ *  of them depends on the retrieval model's parameters, so the statistics of a term can be
+ *  shared by every query that is evaluated against an index; see
+ *  {@link IndexContext#getImpactStats}.
+ */
+public final class ImpactStats {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The statistics of a term that doesn't occur.
+   */
+  public static final ImpactStats EMPTY = new ImpactStats (0, 0.0, 0);
+
+  /**
+   *  The largest term frequency in any posting.
+   */
+  public final int maxTf;
+
+  /**
+   *  The largest tf / field length in any posting.  This is infinite
+   *  if a posting has a field length of 0.
+   */
+  public final double maxTfRatio;
+
+  /**
+   *  The smallest field length in any posting.
+   */
+  public final int minLength;
+
+  //  --------------- Methods ---------------------------------------
+
+  private ImpactStats (int maxTf, double maxTfRatio, int minLength) {
+    this.maxTf = maxTf;
+    this.maxTfRatio = maxTfRatio;
+    this.minLength = minLength;
+  }
+
+  /**
+   *  Read the statistics of a term from the index.
+   *  @param leaves The postings of the index.
+   *  @param lengths The document lengths of the index.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The statistics of the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ImpactStats of (LeafPostings leaves, DocLengthStore lengths,
+                                String field, String term)
+    throws IOException {
+
+    BytesRef termBytes = new BytesRef (term);
+    int slot = lengths.getFieldSlot (field);
+    int maxTf = 0;
+    double maxTfRatio = 0.0;
+    long minLength = Integer.MAX_VALUE;
+    boolean found = false;
+
+    for (int leaf = 0; leaf < leaves.size (); leaf++) {
+      PostingsEnum postings =
+        leaves.postings (leaf, field, termBytes, PostingsEnum.FREQS);
+
+      if (postings == null) {
+        continue;
+      }
+
+      int docBase = leaves.getDocBase (leaf);
+      found = true;
+
+      while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        int tf = postings.freq ();
+        long length = lengths.getDocLength (slot, docBase + postings.docID ());
+        maxTf = Math.max (maxTf, tf);
+        maxTfRatio = Math.max (maxTfRatio, (double) tf / (double) length);
+        minLength = Math.min (minLength, length);
+      }
+    }
+
+    if (! found) {
+      return EMPTY;
+    }
+
+    return new ImpactStats (maxTf, maxTfRatio, (int) minLength);
+  }
+
+  /**
+   *  Compute the statistics of an inverted list, e.g., the result of
+   *  a #NEAR or #SYN operator.
+   *  @param list The inverted list.
+   *  @param lengths The document lengths of the index.
+   *  @param field The field that the inverted list covers.
+   *  @return The statistics of the inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ImpactStats of (InvList list, DocLengthStore lengths,
+                                String field)
+    throws IOException {
+
+    if (list.df == 0) {
+      return EMPTY;
+    }
+
+    int slot = lengths.getFieldSlot (field);
+    int maxTf = 0;
+    double maxTfRatio = 0.0;
+    long minLength = Integer.MAX_VALUE;
+
+    for (int i = 0; i < list.df; i++) {
+      int tf = list.getTf (i);
+      long length = lengths.getDocLength (slot, list.getDocid (i));
+      maxTf = Math.max (maxTf, tf);
+      maxTfRatio = Math.max (maxTfRatio, (double) tf / (double) length);
+      minLength = Math.min (minLength, length);
+    }
+
+    return new ImpactStats (maxTf, maxTfRatio, (int) minLength);
+  }
+
+  /**
+   *  Get an upper bound on the BM25 term weight,
+   *  tf / (tf + k1 * (1 - b + b * doclen / avg_doclen)), of any
+   *  posting.  Dividing by tf shows that the weight grows with tf and
+   *  with tf / doclen, so the largest of each bound it.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average length of the field.
+   *  @return The bound, or +Infinity if the parameters are outside the
+   *          range where the bound holds.
+   */
+  public double getBM25TfWeightBound (double k1, double b, double avgLength) {
+    return bm25TfWeightBound (this.maxTf, this.maxTfRatio, k1, b, avgLength);
+  }
+
+  /**
+   *  Get an upper bound on the BM25 term weight of a set of postings;
+   *  see {@link #getBM25TfWeightBound}.
+   *  @param maxTf The largest tf of the postings.
+   *  @param maxTfRatio The largest tf / field length of the postings.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param avgLength The average length of the field.
+   *  @return The bound, or +Infinity if the parameters are outside the
+   *          range where the bound holds.
+   */
+  public static double bm25TfWeightBound (int maxTf, double maxTfRatio,
+                                          double k1, double b, double avgLength) {
+
+    if (maxTf == 0) {
+      return 0.0;
+    }
+
+    if ((k1 < 0) || (b < 0) || (b > 1)) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    return 1.0 / (1.0 + k1 * (1 - b) / maxTf
+                      + k1 * b / (avgLength * maxTfRatio));
+  }
+}
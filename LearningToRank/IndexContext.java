@@ -0,0 +1,473 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IndexContext is an open Lucene index together with its auxiliary
+ *  data structures:  the document length store, the external id
+ *  table and hash, the block-max table, and the collection statistics.
+ *  <p>
+ *  A context is immutable, apart from caches of values that are
+ *  derived from the index, and every data structure that it holds
+ *  can be read by several threads at once, so one context can be
+ *  shared by queries that are evaluated concurrently.  Query
+ *  operators get the context from the retrieval model when they are
+ *  initialized; see {@link RetrievalModel#getIndexContext}.  Several
+ *  contexts can be open at once, e.g., to search two indexes.
+ *  </p><p>
+ *  {@link Idx} is a static facade over the <i>current</i> context,
+ *  kept for code that doesn't pass contexts around.
+ *  </p>
+ */
+public final class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  private final String indexPath;
+  private final IndexReader reader;
+  private final DocLengthStore docLengthStore;
+  private final ExternalIdStore externalIdStore;
+  private final ExternalIdHash externalIdHash;
+  private final IndexStats indexStats;
+  private final BlockMaxIndex blockMaxIndex;
+
+  /**
+   *  The score accumulators of term-at-a-time queries; see
+   *  QryEvaluatorTaat.
+   */
+  private final AccumulatorPool accumulatorPool;
+
+  /**
+   *  The pools that evaluate queries in parallel, by number of
+   *  threads; see QryEvaluatorParallel.  They are created when
+   *  queries first need them and shut down when the context is
+   *  closed.
+   */
+  private final Map<Integer, ForkJoinPool> forkJoinPools =
+    new ConcurrentHashMap<Integer, ForkJoinPool> ();
+
+  /**
+   *  The LeafPostings that each thread reads the index with.  It is
+   *  dropped when the context is closed, so that the threads'
+   *  objects, which hold the reader's segments, can be collected.
+   */
+  private ThreadLocal<LeafPostings> leafPostings;
+
+  /**
+   *  ImpactStats of the terms that queries have used, by field and term.
+   */
+  private final Map<String, ImpactStats> impactStats =
+    new ConcurrentHashMap<String, ImpactStats> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  private IndexContext (String indexPath, IndexReader reader)
+    throws IOException {
+
+    this.indexPath = indexPath;
+    this.reader = reader;
+
+    //  Lucene doesn't store field lengths the way that we want them,
+    //  so we have our own document length store.  Its dense arrays
+    //  are saved next to the index.
+
+    this.docLengthStore = new DocLengthStore (reader, indexPath);
+
+    //  Reading external ids from stored documents is slow, so they
+    //  are kept in a table that is saved next to the index.
+
+    this.externalIdStore =
+      new ExternalIdStore (reader, indexPath, EXTERNAL_ID_FIELD);
+
+    //  An external id hash is optional; see ExternalIdHash.
+
+    this.externalIdHash = ExternalIdHash.open (reader, indexPath);
+
+    //  Collection statistics don't change while the reader is open,
+    //  so they are read once.
+
+    this.indexStats = new IndexStats (reader);
+
+    //  A block-max table is optional; see BlockMaxIndex.
+
+    this.blockMaxIndex = BlockMaxIndex.open (reader, indexPath);
+
+    //  Accumulators are allocated when queries first need them.
+
+    this.accumulatorPool = new AccumulatorPool (reader.maxDoc ());
+
+    this.leafPostings = ThreadLocal.withInitial (() -> new LeafPostings (reader));
+  }
+
+  /**
+   *  Open a Lucene index and its auxiliary data structures.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The index context.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static IndexContext open (String indexPath)
+    throws IllegalArgumentException, IOException {
+
+    IndexReader reader =
+      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
+
+    if (reader == null) {
+      throw new IllegalArgumentException ("Unable to open the index.");
+    }
+
+    return new IndexContext (indexPath, reader);
+  }
+
+  /**
+   *  Open a new context if the index has changed since this context
+   *  was opened, e.g., because documents were added.  This context is
+   *  not changed or closed.
+   *  @return A new context, or null if the index is unchanged.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext reopen () throws IOException {
+
+    IndexReader newReader =
+      DirectoryReader.openIfChanged ((DirectoryReader) this.reader);
+
+    return (newReader == null) ? null : new IndexContext (this.indexPath, newReader);
+  }
+
+  /**
+   *  Close the index and shut down its thread pools.  Queries that
+   *  use this context must be finished.
+   *  @throws IOException Error closing the index.
+   */
+  public void close () throws IOException {
+
+    for (ForkJoinPool pool : this.forkJoinPools.values ()) {
+      pool.shutdown ();
+    }
+
+    this.leafPostings.remove ();
+    this.leafPostings = null;
+    this.reader.close ();
+  }
+
+  /**
+   *  Get the pool of score accumulators that term-at-a-time queries
+   *  use.
+   *  @return The pool.
+   */
+  public AccumulatorPool getAccumulatorPool () {
+    return this.accumulatorPool;
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.reader.document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the block-max table of the index.
+   *  @return The block-max table, or null if the index doesn't have one.
+   */
+  public BlockMaxIndex getBlockMaxIndex () {
+    return this.blockMaxIndex;
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term in the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocFreq (String fieldName, String term)
+    throws IOException {
+    return this.reader.docFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Get the document length store.
+   *  @return The document length store.
+   */
+  public DocLengthStore getDocLengthStore () {
+    return this.docLengthStore;
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   */
+  public String getExternalDocid (int iid) {
+    return this.externalIdStore.getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id, i.e., its rank
+   *  among all external ids in the index.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id ordinal
+   */
+  public int getExternalDocidOrdinal (int iid) {
+    return this.externalIdStore.getOrdinal (iid);
+  }
+
+  /**
+   *  Get the external id table.
+   *  @return The external id table.
+   */
+  public ExternalIdStore getExternalIdStore () {
+    return this.externalIdStore;
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (String fieldName, int docid)
+    throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the pool that evaluates queries on a number of threads.
+   *  Pools are shared by the queries that use this context.
+   *  @param threads The number of threads.
+   *  @return The pool.
+   */
+  public ForkJoinPool getForkJoinPool (int threads) {
+    return this.forkJoinPools.computeIfAbsent (threads, n -> new ForkJoinPool (n));
+  }
+
+  /**
+   *  Get the impact statistics of a term, which bound its scores.
+   *  They are read from the postings the first time that a term is
+   *  used and cached for later queries.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The impact statistics of the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ImpactStats getImpactStats (String fieldName, String term)
+    throws IOException {
+
+    String key = fieldName + '\u0000' + term;
+    ImpactStats stats = this.impactStats.get (key);
+
+    if (stats == null) {
+      stats = ImpactStats.of (this.getLeafPostings (), this.docLengthStore,
+                              fieldName, term);
+      this.impactStats.put (key, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the collection statistics.
+   *  @return The collection statistics.
+   */
+  public IndexStats getIndexStats () {
+    return this.indexStats;
+  }
+
+  /**
+   *  Get the directory that contains the index.
+   *  @return The index path.
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return The index reader.
+   */
+  public IndexReader getIndexReader () {
+    return this.reader;
+  }
+
+  /**
+   *  Get the internal document id for a document specified by its
+   *  external id.  If no such document exists, throw an exception.
+   *  @param externalId The external docid in the Lucene index.
+   *  @return internal docid.
+   *  @throws Exception Could not read the internal document id from the index.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    //  If the index has an external id hash, a lookup is one probe.
+
+    if (this.externalIdHash != null) {
+      int docid = this.externalIdHash.getCandidateDocid (externalId);
+
+      if ((docid < 0) ||
+          ! this.externalIdStore.getExternalDocid (docid).equals (externalId)) {
+        throw new Exception ("External id " + externalId + " not found.");
+      }
+      return docid;
+    }
+
+    BytesRef termBytes = new BytesRef (externalId);
+    Term term = new Term (EXTERNAL_ID_FIELD, termBytes);
+    int df = this.reader.docFreq (term);
+
+    if (df == 0) {
+      throw new Exception ("External id " + externalId + " not found.");
+    } else if (df > 1) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    LeafPostings leaves = this.getLeafPostings ();
+
+    for (int leaf = 0; leaf < leaves.size (); leaf++) {
+      PostingsEnum iList =
+        leaves.postings (leaf, EXTERNAL_ID_FIELD, termBytes, PostingsEnum.NONE);
+
+      if ((iList != null) &&
+          (iList.nextDoc () != DocIdSetIterator.NO_MORE_DOCS)) {
+        return leaves.getDocBase (leaf) + iList.docID ();
+      }
+    }
+
+    throw new Exception ("External id " + externalId + " not found.");
+  }
+
+  /**
+   *  Get the internal document ids for a collection of documents
+   *  specified by their external ids.  See {@link Idx#getInternalDocids}.
+   *  @param externalIds External docids in the Lucene index.
+   *  @return A map from external docids to internal docids.
+   *  @throws Exception Could not read the internal document ids from the index.
+   */
+  public Map<String,Integer> getInternalDocids (Collection<String> externalIds)
+    throws Exception {
+
+    Map<String,Integer> docids = findInternalDocids (externalIds);
+
+    for (String externalId : externalIds) {
+      if (! docids.containsKey (externalId)) {
+        throw new Exception ("External id " + externalId + " not found.");
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Get the internal document ids for a collection of documents
+   *  specified by their external ids, leaving out documents that
+   *  don't exist.  See {@link Idx#findInternalDocids}.
+   *  @param externalIds External docids in the Lucene index.
+   *  @return A map from the external docids that were found to
+   *  internal docids.
+   *  @throws Exception Could not read the internal document ids from the index.
+   */
+  public Map<String,Integer> findInternalDocids (Collection<String> externalIds)
+    throws Exception {
+
+    Map<String,Integer> docids = new HashMap<String,Integer> ();
+
+    if (this.externalIdHash != null) {
+      for (String externalId : externalIds) {
+        if (docids.containsKey (externalId)) {
+          continue;
+        }
+
+        int docid = this.externalIdHash.getCandidateDocid (externalId);
+
+        if ((docid >= 0) &&
+            this.externalIdStore.getExternalDocid (docid).equals (externalId)) {
+          docids.put (externalId, docid);
+        }
+      }
+      return docids;
+    }
+
+    //  Sort in term dictionary (UTF-8 byte) order.
+
+    TreeSet<BytesRef> sorted = new TreeSet<BytesRef> ();
+
+    for (String externalId : externalIds) {
+      sorted.add (new BytesRef (externalId));
+    }
+
+    PostingsEnum postings = null;
+
+    for (LeafReaderContext leaf : this.reader.leaves ()) {
+      Terms terms = leaf.reader ().terms (EXTERNAL_ID_FIELD);
+
+      if (terms == null) {
+        continue;
+      }
+
+      TermsEnum termsEnum = terms.iterator ();
+
+      for (BytesRef termBytes : sorted) {
+        if (! termsEnum.seekExact (termBytes)) {
+          continue;
+        }
+
+        postings = termsEnum.postings (postings, PostingsEnum.NONE);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          String externalId = termBytes.utf8ToString ();
+
+          if (docids.put (externalId, leaf.docBase + postings.docID ()) != null) {
+            throw new Exception ("Multiple matches for external id " + externalId);
+          }
+        }
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Get the calling thread's LeafPostings for the index.  A
+   *  LeafPostings must be used by one thread at a time, so each
+   *  thread has its own.
+   *  @return The LeafPostings.
+   */
+  public LeafPostings getLeafPostings () {
+    return this.leafPostings.get ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return this.reader.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+}
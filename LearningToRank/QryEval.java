@@ -9,6 +9,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -72,6 +74,7 @@ public class QryEval {
 
         
         RetrievalModel model = initializeRetrievalModel (parameters);
+        QueryBatchExecutor executor = QueryBatchExecutor.fromParameters (parameters);
 
         //  Perform experiments.
         // if feedback(fb) is missing from the parameter file or fb is set to false, use
@@ -82,7 +85,7 @@ public class QryEval {
 //              LearningToRank(parameters);
 //            } else {
               processQueryFile(parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), 
-                    parameters.get("trecEvalOutputLength"), model);
+                    parameters.get("trecEvalOutputLength"), model, executor);
 //            }
         } else {
             // query expansion.
@@ -104,7 +107,7 @@ public class QryEval {
             int fbMu = Integer.parseInt(parameters.get("fbMu"));
             ArrayList<String> expandedQuery = queryExpansion(fbExpansionQueryFile, fbTerms, fbMu, fbOrigWeight, initialDocs, queryID);
             processExpandedQuery(parameters.get("queryFilePath"), expandedQuery, parameters.get("trecEvalOutputPath"), 
-                    parameters.get("trecEvalOutputLength"), model, fbOrigWeight);
+                    parameters.get("trecEvalOutputLength"), model, fbOrigWeight, executor);
         }
     }
     //  Clean up.
@@ -160,6 +163,13 @@ private static void reRankDocs(String testingDocScores, String trecEvalOutputPat
           String line = null;
           String prev = null;
           int index = 0;
+          // resolve the external ids of all reranked documents in one batch;
+          // a missing document is reported when its score is read
+          List<String> externalIds = new ArrayList<String>();
+          for (FeatureVector vector : features) {
+              externalIds.add(vector.docId);
+          }
+          Map<String, Integer> internalIds = Idx.findInternalDocids(externalIds);
           // read scores from svm classification file
 //           System.out.println("size of feature: " + features.size());
           while ((line = input.readLine()) != null && index < features.size()) {
@@ -174,7 +184,10 @@ private static void reRankDocs(String testingDocScores, String trecEvalOutputPat
               }
               String externalDocId = vector.docId;
 //              System.out.println("reRankDocs:: external doc id is: " + externalDocId);
-              int internalDocId = Idx.getInternalDocid(externalDocId);
+              Integer internalDocId = internalIds.get(externalDocId);
+              if (internalDocId == null) {
+                  throw new Exception("External id " + externalDocId + " not found.");
+              }
               specDocScores.add(new DocScore(internalDocId, score));
               index++;
           }
@@ -309,10 +322,29 @@ private static void reRankDocs(String testingDocScores, String trecEvalOutputPat
           // read from the training query file
           reader = new FileReader(trainingQueryFile);
           input = new BufferedReader(reader);
-          String trainQueryLine = null;
+          String line = null;
+          List<String> trainQueryLines = new ArrayList<String>();
+          while((line = input.readLine()) != null) {
+              trainQueryLines.add(line);
+          }
+          
+          // resolve the external ids of the training queries' judged
+          // documents in one batch; a missing document is reported when
+          // its features are calculated
+          List<String> externalIds = new ArrayList<String>();
+          for (String trainQueryLine : trainQueryLines) {
+              int index = trainQueryLine.indexOf(':');
+              List<String> judges = (index < 0) ? null : relJudges.get(trainQueryLine.substring(0, index));
+              if (judges != null) {
+                  for (String judge : judges) {
+                      externalIds.add(judge.split(" +")[1]);
+                  }
+              }
+          }
+          Map<String, Integer> internalIds = Idx.findInternalDocids(externalIds);
           
           // while a training query q is available
-          while((trainQueryLine = input.readLine()) != null) {
+          for (String trainQueryLine : trainQueryLines) {
                int index = trainQueryLine.indexOf(':');
                if (index < 0) {
                    throw new IllegalArgumentException("Syntax error: missing ':' in query line.\n");
@@ -339,7 +371,12 @@ private static void reRankDocs(String testingDocScores, String trecEvalOutputPat
                        String[] columns = judge.split(" +");
 //                       System.out.println("relevance judgments columns: " + Arrays.toString(columns));
                        
-                       features = calculateScores(columns, parameters, queryTerms, qid);
+                       Integer internalId = internalIds.get(columns[1]);
+                       if (internalId == null) {
+                           throw new Exception("External id " + columns[1] + " not found.");
+                       }
+                       features = calculateScores(columns, parameters, queryTerms, qid,
+                               internalId);
                        originalFeatures.add(features);
                    }
                    
@@ -441,15 +478,15 @@ private static List<FeatureVector> normalizeFeatures(List<FeatureVector> origina
  * @param columns  relevance judgment for the document d retrieved from the query q.
  * @param parameters   input parameters
  * @param queryTerms   query terms after tokenizing the query
+ * @param internalId   internal document id of the document
  * @return  feature vector for the document
  * @throws Exception error when accessing term vector
  */
 private static FeatureVector calculateScores(String[] columns, Map<String, String> parameters, 
-        String[] queryTerms, String qid) throws Exception {
+        String[] queryTerms, String qid, int internalId) throws Exception {
     FeatureVector features = new FeatureVector();
     String exId = columns[1];
     String relevance = columns[2];
-    int internalId = Idx.getInternalDocid(exId);
     features.docId = exId;
     features.qid = qid;
     features.relevance = relevance;
@@ -732,16 +769,19 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
   private static List<FeatureVector> processQueryFile(String queryFilePath, Map<String, String> parameters,
           String testingFeaVecFile, HashSet<Integer> disableFeatures) throws Exception {
       BufferedReader input = null;
-      HashMap<String, List<DocScore>> initialRank = new HashMap<String, List<DocScore>>();
+      Map<String, List<DocScore>> initialRank = new ConcurrentHashMap<String, List<DocScore>>();
 
       double k1 = Double.parseDouble(parameters.get("BM25:k_1"));
       double b = Double.parseDouble(parameters.get("BM25:b"));
       double k3 = Double.parseDouble(parameters.get("BM25:k_3"));
       RetrievalModel model = new RetrievalModelBM25(k1, k3, b);
+      model.setEvaluationOptions(parameters);
 //      List<String> exDocs = new ArrayList<String>();
-      List<FeatureVector> normalizedFeatures = null;
-      List<FeatureVector> originalFeatures = null;
       List<FeatureVector> finalFeatures = new ArrayList<FeatureVector>();
+      List<String> qids = new ArrayList<String>();
+      List<String> qLines = new ArrayList<String>();
+      List<String[]> qTerms = new ArrayList<String[]>();
+      List<Callable<List<FeatureVector>>> tasks = new ArrayList<Callable<List<FeatureVector>>>();
 //      List<DocScore> initialRank = new ArrayList<DocScore>();
       try {
           String qLine = null;
@@ -757,56 +797,66 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
                   ("Syntax error:  Missing ':' in query line.");
               }
 
-              printMemoryUsage(false);
-
               String qid = qLine.substring(0, d);
               String query = qLine.substring(d + 1);
+              String[] queryTerms = QryParser.tokenizeString(query);
 
-              System.out.println("Query " + qLine);
+              qids.add(qid);
+              qLines.add(qLine);
+              qTerms.add(queryTerms);
+              // Retrieval and feature extraction only read the index, so
+              // queries are evaluated by the executor.
+              tasks.add(() -> {
+                  ScoreList r = null;
 
-              ScoreList r = null;
+          //        System.out.println("query: " + query);
+                  r = processQuery(query, model, 100);
 
-      //        System.out.println("query: " + query);
-              r = processQuery(query, model);
-
-              List<DocScore> docScore = new ArrayList<DocScore>();
-              for (int i = 0; i < Math.min(100, r.size()); i++) {
-                  docScore.add(new DocScore(r.getDocid(i), r.getDocidScore(i)));
-              }
-              
-              String[] queryTerms = QryParser.tokenizeString(query);
-              System.out.println("After tokenizing the query: " + Arrays.toString(queryTerms));
+                  List<DocScore> docScore = new ArrayList<DocScore>();
+                  for (int i = 0; i < Math.min(100, r.size()); i++) {
+                      docScore.add(new DocScore(r.getDocid(i), r.getDocidScore(i)));
+                  }
               
-              // calculate query term frequency
-              HashMap<String, Integer> qtf = new HashMap<String, Integer>();
-              for (int i = 0; i < queryTerms.length; i++) {
-                  String term = queryTerms[i];
-                  qtf.put(term, qtf.getOrDefault(term, 0) + 1);
-              }
+                  // calculate query term frequency
+                  HashMap<String, Integer> qtf = new HashMap<String, Integer>();
+                  for (int i = 0; i < queryTerms.length; i++) {
+                      String term = queryTerms[i];
+                      qtf.put(term, qtf.getOrDefault(term, 0) + 1);
+                  }
 
-              initialRank.put(qid, docScore);
+                  initialRank.put(qid, docScore);
               
-              originalFeatures = new ArrayList<FeatureVector>();
+                  List<FeatureVector> originalFeatures = new ArrayList<FeatureVector>();
 //              List<String> externalDocs = new ArrayList<String>(); 
-              for (int i = 0; i < docScore.size(); i++) {
-                  DocScore doc = docScore.get(i);
-                  int internalDocId = doc.getDocID();
-                  String externalId = Idx.getExternalDocid(internalDocId);
-                  double score = doc.getDocScore();
+                  for (int i = 0; i < docScore.size(); i++) {
+                      DocScore doc = docScore.get(i);
+                      int internalDocId = doc.getDocID();
+                      String externalId = Idx.getExternalDocid(internalDocId);
+                      double score = doc.getDocScore();
 //                  System.out.println("docId: " + externalId + " score: " + score);
-                  String[] columns = new String[3];
-                  columns[1] = externalId;
-                  columns[2] = new String("0");
-                  FeatureVector features = calculateScores(columns, parameters, queryTerms, qid);
-                  features.docId = externalId;
-                  features.qid = qid;
-                  features.relevance = new String("0");
-                  originalFeatures.add(features);
-              }
-              normalizedFeatures = normalizeFeatures(originalFeatures, testingFeaVecFile, disableFeatures);
+                      String[] columns = new String[3];
+                      columns[1] = externalId;
+                      columns[2] = new String("0");
+                      FeatureVector features = calculateScores(columns, parameters, queryTerms, qid, internalDocId);
+                      features.docId = externalId;
+                      features.qid = qid;
+                      features.relevance = new String("0");
+                      originalFeatures.add(features);
+                  }
+                  return originalFeatures;
+              });
+          }
+
+          // Features are normalized and written in input order.
+          QueryBatchExecutor.fromParameters(parameters).run(qids, tasks, (n, originalFeatures) -> {
+              System.out.println("Query " + qLines.get(n));
+              System.out.println("After tokenizing the query: " + Arrays.toString(qTerms.get(n)));
+              printMemoryUsage(false);
+              List<FeatureVector> normalizedFeatures =
+                  normalizeFeatures(originalFeatures, testingFeaVecFile, disableFeatures);
               finalFeatures.addAll(normalizedFeatures);
 //              exDocs.addAll(externalDocs);
-          }
+          });
       } catch (Exception e) {
           e.printStackTrace();
       } finally {
@@ -957,6 +1007,8 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
       throw new IllegalArgumentException
         ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
     }
+
+    model.setEvaluationOptions (parameters);
       
     return model;
   }
@@ -981,7 +1033,7 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
   }
 
   /**
-   * Process one query.
+   * Process one query and keep every matching document.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
    * @return Search results
@@ -989,6 +1041,20 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, model, 0);
+  }
+
+  /**
+   * Process one query.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return, or 0 to return every
+   *          matching document.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
 //      System.out.println("processQuery:: query: " + qString);
 
     String defaultOp = model.defaultQrySopName ();
@@ -1001,12 +1067,33 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
+      //  Only the top k documents are kept, unless the caller asks
+      //  for all of them.
+
+      ScoreList r = null;
+      TopKCollector topK = null;
+
+      if (k > 0) {
+        topK = new TopKCollector (model.getIndexContext (), k);
+      } else {
+        r = new ScoreList (model.getIndexContext ());
+      }
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
+        //  Choose the order in which conjunctive operators visit their
+        //  arguments, so that rare arguments drive the iteration.
+
+        QryPlanner.plan (q, model);
         q.initialize (model);
 
+        //  The evaluator may skip documents that can't enter the top k.
+
+        if (topK != null) {
+          QryEvaluator.forQuery (q, model).evaluate ((QrySop) q, model, topK);
+          return topK.getScoreList ();
+        }
+
 //        System.out.println("QryIval processQuery");
         while (q.docIteratorHasMatch (model)) {
           int docid = q.docIteratorGetMatch ();   // QryIop
@@ -1019,6 +1106,11 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
           q.docIteratorAdvancePast (docid);
         }
       }
+
+      if (topK != null) {
+        return topK.getScoreList ();
+      }
+
       // changed. add sort method.
       r.sort();
 
@@ -1045,7 +1137,7 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
               queries.add(qid);
               
               ScoreList r = null;
-              r = processQuery(query, model);
+              r = processQuery(query, model, fbDocs);
               
               if (r != null) {
                   int count = 0;
@@ -1068,15 +1160,18 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
   }
   
   static void processExpandedQuery(String queryFilePath, ArrayList<String> expandedQuery, String trecEvalOutputPath, String trecEvalOutputLength, 
-          RetrievalModel model, double fbOrigWeight) throws IOException {
+          RetrievalModel model, double fbOrigWeight, QueryBatchExecutor executor) throws IOException {
       BufferedReader input = null;
       int index = 0;        // fetch ith expanded query composed of expanded terms
+      int outputLength = Integer.parseInt(trecEvalOutputLength);
+      List<String> qids = new ArrayList<String>();
+      List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
 
       try {
         String qLine = null;
         input = new BufferedReader(new FileReader(queryFilePath));
 
-        //  Each pass of the loop processes one query.
+        //  Each pass of the loop prepares one query.
         while ((qLine = input.readLine()) != null) {
           int d = qLine.indexOf(':');
 
@@ -1084,8 +1179,6 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
             throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
           }
 
-          printMemoryUsage(false);
-
           // obtain the expanded query
           String qid = qLine.substring(0, d);
           String query = qLine.substring(d + 1);
@@ -1103,16 +1196,21 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
           String expandedQ = sb.toString();
 //          System.out.println("processExpandedQuery:: expanded query: " + qid + " " + expandedQ);
 
-          ScoreList r = null;
+          qids.add(qid);
+          tasks.add(() -> processQuery(expandedQ, model, outputLength));
+          index++;
+        }
 
-          r = processQuery(expandedQ, model);
+        //  The queries are evaluated by the executor; results are
+        //  printed in input order.
+        executor.run(qids, tasks, (n, r) -> {
+          printMemoryUsage(false);
 
           if (r != null) {
-            printResults(qid, r, trecEvalOutputLength, trecEvalOutputPath);
+            printResults(qids.get(n), r, trecEvalOutputLength, trecEvalOutputPath);
             System.out.println();
           }
-          index++;
-        }
+        });
       } catch (IOException ex) {
         ex.printStackTrace();
       } finally {
@@ -1124,21 +1222,26 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
    *  Process the query file.
    *  @param queryFilePath
    *  @param model
+   *  @param executor Evaluates the queries.
    *  @throws IOException Error accessing the Lucene index.
    */
   // changed. The original one is static void processQF(String queryFilePath, RM model)
   static void processQueryFile(String queryFilePath, String trecEvalOutputPath, String trecEvalOutputLength, 
-                               RetrievalModel model)
+                               RetrievalModel model, QueryBatchExecutor executor)
       throws IOException {
 
     BufferedReader input = null;
+    List<String> qids = new ArrayList<String>();
+    List<String> qLines = new ArrayList<String>();
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
+    int outputLength = Integer.parseInt(trecEvalOutputLength);
 
     try {
       String qLine = null;
 
       input = new BufferedReader(new FileReader(queryFilePath));
 
-      //  Each pass of the loop processes one query.
+      //  Each pass of the loop prepares one query.
 
       while ((qLine = input.readLine()) != null) {
         int d = qLine.indexOf(':');
@@ -1148,23 +1251,27 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
             ("Syntax error:  Missing ':' in query line.");
         }
 
-        printMemoryUsage(false);
-
         String qid = qLine.substring(0, d);
         String query = qLine.substring(d + 1);
 
-        System.out.println("Query " + qLine);
+        qids.add(qid);
+        qLines.add(qLine);
+        tasks.add(() -> processQuery(query, model, outputLength));
+      }
 
-        ScoreList r = null;
+      //  The queries are evaluated by the executor; results are
+      //  printed in input order.
 
-//        System.out.println("query: " + query);
-        r = processQuery(query, model);
+      executor.run(qids, tasks, (n, r) -> {
+        printMemoryUsage(false);
+
+        System.out.println("Query " + qLines.get(n));
 
         if (r != null) {
-          printResults(qid, r, trecEvalOutputLength, trecEvalOutputPath);
+          printResults(qids.get(n), r, trecEvalOutputLength, trecEvalOutputPath);
           System.out.println();
         }
-      }
+      });
     } catch (IOException ex) {
       ex.printStackTrace();
     } finally {
@@ -1220,17 +1327,28 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
           throw new IllegalArgumentException("Cannot read " + fbInitialRankingFile);
       }
       
-      int prevId = 0;
-      int n = 0;
+      // Read the whole file first so that the external ids can be
+      // resolved in one batch.
+      List<String[]> lines = new ArrayList<String[]>();
+      List<String> externalIds = new ArrayList<String>();
       Scanner scan = new Scanner(initialFile);
       String line = null;
       do {
           line = scan.nextLine();
 //          System.out.println(line);
           String[] docInfo = line.split(" +");
+          lines.add(docInfo);
+          externalIds.add(docInfo[2]);
+      } while(scan.hasNext());
+      scan.close();
+      Map<String, Integer> internalIds = Idx.getInternalDocids(externalIds);
+
+      int prevId = 0;
+      int n = 0;
+      for (String[] docInfo : lines) {
           int queryId = Integer.parseInt(docInfo[0]);
 //          String exDocId = docInfo[2];
-          int docId = Idx.getInternalDocid(docInfo[2]);
+          int docId = internalIds.get(docInfo[2]);
           double score = Double.parseDouble(docInfo[4]);
 //          System.out.println("queryId: " + queryId + " exDocId: " + docId + " score: " + score);
           
@@ -1245,9 +1363,8 @@ private static HashMap<String, List<String>> getrelJudges(String trainQrelsFile)
               docs.add(new DocScore(docId, score));
               n++;
           }
-      } while(scan.hasNext());
+      }
       
-      scan.close();
       return initialDocs;
   }
   /**
@@ -0,0 +1,29 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  The default evaluator.  It moves through the documents that the
+ *  query matches, one document at a time, and scores each of them.
+ */
+public class QryEvaluatorDaat extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    while (q.docIteratorHasMatch (r)) {
+      int docid = q.docIteratorGetMatch ();
+      topK.collect (docid, q.getScore (r));
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+}
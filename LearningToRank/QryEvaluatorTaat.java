@@ -0,0 +1,176 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A term-at-a-time evaluator for short BM25 #SUM queries.  Each
+ *  argument's postings are read to the end, one argument after
+ *  another, and their scores are added into an accumulator that has
+ *  an entry for every docid; then the documents that have
+ *  accumulators are collected.  Arguments are added in query order,
+ *  which is the order in which QrySopSum adds them, so documents get
+ *  the same scores as they do from the default evaluator.
+ *  <p>
+ *  If the retrieval model's dynamicPruning parameter isn't "none",
+ *  and the arguments can bound their scores, the evaluator stops
+ *  adding documents once they can't enter the top k:  before each
+ *  argument, if the bounds of the remaining arguments add up to less
+ *  than the k'th best score so far, later arguments only add to the
+ *  documents that already have accumulators.  Scores are never
+ *  negative, so a partial score is a lower bound on a final score.
+ *  </p><p>
+ *  The accumulators come from the index context's
+ *  {@link AccumulatorPool}.  If every accumulator is in use, the
+ *  query is evaluated document-at-a-time instead.
+ *  {@link QryPlanner#useTermAtATime} decides which queries are
+ *  evaluated term-at-a-time.
+ *  </p>
+ */
+public class QryEvaluatorTaat extends QryEvaluator {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    AccumulatorPool pool = r.getIndexContext ().getAccumulatorPool ();
+    AccumulatorPool.Accumulators acc = pool.take ();
+
+    if (acc == null) {
+      QryEvaluator.forQueryDocumentAtATime (q, r).evaluate (q, r, topK);
+      return;
+    }
+
+    //  remaining[i] bounds the score that arguments i..n-1 add.
+
+    double[] bounds =
+      r.dynamicPruning.equals ("none") ? null : getArgBounds (q, r);
+    int n = q.args.size ();
+    double[] remaining = new double[n];
+
+    if (bounds != null) {
+      double sum = 0;
+
+      for (int i = n - 1; i >= 0; i--) {
+        sum += bounds[i];
+        remaining[i] = sum;
+      }
+    }
+
+    double[] scores = acc.scores;
+    long[] words = acc.words;
+    double maxScore = 0;
+    boolean addDocuments = true;
+
+    try {
+      for (int i = 0; i < n; i++) {
+        QrySop q_i = (QrySop) q.args.get (i);
+
+        //  Stop adding documents if a document that only later
+        //  arguments match can't enter the top k.  The k'th best
+        //  score is only computed when that might be true.
+
+        if ((bounds != null) && addDocuments && (i > 0) &&
+            belowThreshold (remaining[i], maxScore) &&
+            belowThreshold (remaining[i], kthScore (acc, topK.getK ()))) {
+          addDocuments = false;
+        }
+
+        while (q_i.docIteratorHasMatch (r)) {
+          int docid = q_i.docIteratorGetMatch ();
+          long bit = 1L << docid;
+
+          if ((words[docid >>> 6] & bit) != 0) {
+            scores[docid] += q_i.getScore (r);
+            maxScore = Math.max (maxScore, scores[docid]);
+          } else if (addDocuments) {
+            words[docid >>> 6] |= bit;
+            scores[docid] = 0.0 + q_i.getScore (r);
+            maxScore = Math.max (maxScore, scores[docid]);
+          }
+
+          q_i.docIteratorAdvancePast (docid);
+        }
+      }
+
+      //  Collect the documents, and clear their accumulators.
+
+      for (int j = 0; j < words.length; j++) {
+        for (long w = words[j]; w != 0; w &= w - 1) {
+          int docid = (j << 6) | Long.numberOfTrailingZeros (w);
+          topK.collect (docid, scores[docid]);
+          scores[docid] = 0;
+        }
+        words[j] = 0;
+      }
+    } catch (IOException | RuntimeException ex) {
+      pool.discard (acc);		// Not cleared
+      throw ex;
+    }
+
+    pool.release (acc);
+  }
+
+  /**
+   *  Get the k'th best accumulated score.
+   *  @return The score, or -Infinity if fewer than k documents have
+   *  scores.
+   */
+  private static double kthScore (AccumulatorPool.Accumulators acc, int k) {
+
+    //  A min-heap of the k best scores.
+
+    double[] heap = new double[k];
+    int size = 0;
+
+    for (int j = 0; j < acc.words.length; j++) {
+      for (long w = acc.words[j]; w != 0; w &= w - 1) {
+        double score = acc.scores[(j << 6) | Long.numberOfTrailingZeros (w)];
+
+        if (size < k) {
+          int i = size++;
+
+          while ((i > 0) && (heap[(i - 1) / 2] > score)) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+          }
+          heap[i] = score;
+        } else if (score > heap[0]) {
+          int i = 0;
+
+          while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= k) {
+              break;
+            }
+
+            if ((child + 1 < k) && (heap[child + 1] < heap[child])) {
+              child ++;
+            }
+
+            if (heap[child] >= score) {
+              break;
+            }
+
+            heap[i] = heap[child];
+            i = child;
+          }
+          heap[i] = score;
+        }
+      }
+    }
+
+    return (size < k) ? Double.NEGATIVE_INFINITY : heap[0];
+  }
+}
@@ -14,6 +14,12 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  The default scores that this operator has computed, or null if
+   *  they aren't cached; see {@link DefaultScoreCache}.
+   */
+  private DefaultScoreCache defaultScores = null;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -33,6 +39,57 @@ public abstract class QrySop extends Qry {
   public abstract double getDefaultScore(RetrievalModel r, long docid)
       throws IOException;
   
+  /**
+   *  Get an upper bound on the score that getScore can return for any
+   *  document.  Evaluators that prune documents use these bounds; see
+   *  {@link QryEvaluator}.  It is an error to call this method before
+   *  the object's initialize method is called.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The bound, or +Infinity if the operator can't bound its scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the score that getDefaultScore can return
+   *  for any document.  Only retrieval models that have default
+   *  scores (e.g., Indri) use it.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The bound, or +Infinity if the operator can't bound its scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getMaxDefaultScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get a score for a document without using this operator's own
+   *  docIterator.  Each argument's docIterator must be at the
+   *  document, or beyond it if the argument doesn't match it.
+   *  Evaluators that move the arguments themselves use this method.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScoreOf (RetrievalModel r, int docid) throws IOException {
+    throw new UnsupportedOperationException
+      (this.getClass().getName() + " doesn't support getScoreOf.");
+  }
+
+  /**
+   *  Get the score bounds of blocks of documents, which are at least
+   *  as tight as getMaxScore.  By default there is one block.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The block bounds, with a cursor at the first block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public BlockMaxScores getBlockMaxScores (RetrievalModel r) throws IOException {
+    return BlockMaxScores.single (this.getMaxScore (r));
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -45,5 +102,79 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.defaultScores = null;
+
+    if (r instanceof RetrievalModelIndri) {
+      String field = this.getDefaultScoreField ();
+
+      if (field != null) {
+        this.defaultScores = new DefaultScoreCache (
+          r.getIndexContext ().getDocLengthStore (), field);
+      }
+    }
+  }
+
+  /**
+   *  Copy an initialized query operator whose iterators haven't
+   *  moved.  The copy caches its own default scores.
+   *  @return The copy.
+   */
+  public Qry copyIterators () {
+
+    QrySop copy = (QrySop) super.copyIterators ();
+
+    if (this.defaultScores != null) {
+      copy.defaultScores = this.defaultScores.newEmptyCache ();
+    }
+
+    return copy;
+  }
+
+  /**
+   *  Get the field whose length alone determines this operator's
+   *  default scores, i.e., the field that every SCORE operator below
+   *  it matches.
+   *  @return The field, or null if there isn't one.
+   */
+  public String getDefaultScoreField () {
+
+    String field = null;
+
+    for (Qry q_i: this.args) {
+      String f = ((QrySop) q_i).getDefaultScoreField ();
+
+      if ((f == null) || ((field != null) && ! field.equals (f))) {
+        return null;
+      }
+
+      field = f;
+    }
+
+    return field;
+  }
+
+  /**
+   *  Get a default score that this operator cached for a document
+   *  that has the same field length.  If the score isn't cached, the
+   *  caller computes it and passes it to cacheDefaultScore.
+   *  @param docid The internal document id.
+   *  @return The score, or NaN if it isn't cached.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected double getCachedDefaultScore (long docid) throws IOException {
+    return (this.defaultScores == null) ?
+      Double.NaN : this.defaultScores.get (docid);
+  }
+
+  /**
+   *  Cache the default score of the document that
+   *  getCachedDefaultScore looked up last.
+   *  @param score The document's default score.
+   *  @return The score.
+   */
+  protected double cacheDefaultScore (double score) {
+    return (this.defaultScores == null) ?
+      score : this.defaultScores.put (score);
   }
 }
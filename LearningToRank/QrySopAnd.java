@@ -79,7 +79,22 @@ public class QrySopAnd extends QrySop {
       if (!this.docIteratorHasMatchCache()) {
           return 0.0;
       } else {
-          int docId = this.docIteratorGetMatch();
+          return this.getScoreOf(r, this.docIteratorGetMatch());
+      }
+  }
+
+  /**
+   *  Get the Indri score of a document whose arguments' docIterators
+   *  are at or beyond it.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docId The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScoreOf(RetrievalModel r, int docId) throws IOException {
+      if (!(r instanceof RetrievalModelIndri)) {
+          return super.getScoreOf(r, docId);
+      } else {
           double score = 1.0;
           double numOfChild = this.args.size();
           
@@ -101,15 +116,57 @@ public class QrySopAnd extends QrySop {
       }
   }
   
-  public double getDefaultScore(RetrievalModel r, long docId) throws IOException {
+  /**
+   *  Get an upper bound on the Indri score of any document:  the
+   *  score when each argument has its larger bound.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The bound, or +Infinity if the model isn't supported.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getMaxScore(RetrievalModel r) throws IOException {
+      if (r instanceof RetrievalModelIndri) {
+          double score = 1.0;
+          double numOfChild = this.args.size();
+          for (Qry q_i : this.args) {
+              score = score * Math.max(((QrySop)q_i).getMaxScore(r),
+                                       ((QrySop)q_i).getMaxDefaultScore(r));
+          }
+          return Math.pow(score, 1 / numOfChild);
+      }
+      return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the Indri default score of any document.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The bound, or +Infinity if the model isn't supported.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getMaxDefaultScore(RetrievalModel r) throws IOException {
       if (r instanceof RetrievalModelIndri) {
           double score = 1.0;
           double numOfChild = this.args.size();
+          for (Qry q_i : this.args) {
+              score = score * ((QrySop)q_i).getMaxDefaultScore(r);
+          }
+          return Math.pow(score, 1 / numOfChild);
+      }
+      return Double.POSITIVE_INFINITY;
+  }
+
+  public double getDefaultScore(RetrievalModel r, long docId) throws IOException {
+      if (r instanceof RetrievalModelIndri) {
+          double score = this.getCachedDefaultScore(docId);
+          if (!Double.isNaN(score)) {
+              return score;
+          }
+          score = 1.0;
+          double numOfChild = this.args.size();
           for (Qry q_i : this.args) {
               score = score * ((QrySop)q_i).getDefaultScore(r, docId);
           }
           score = Math.pow(score, 1 / numOfChild);
-          return score;
+          return this.cacheDefaultScore(score);
       } else {
           return 0.0;
       }
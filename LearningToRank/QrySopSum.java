@@ -37,6 +37,19 @@ public class QrySopSum extends QrySop {
         }
     }
 
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        // A document's score is at most the sum of its arguments' bounds.
+        if (r instanceof RetrievalModelBM25) {
+            double bound = 0.0;
+            for (Qry q_i : this.args) {
+                bound += ((QrySop)q_i).getMaxScore(r);
+            }
+            return bound;
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
         // TODO Auto-generated method stub
@@ -2,6 +2,39 @@ import java.io.IOException;
 
 public class QrySopWSum extends QrySop {
 
+    /**
+     *  The weights divided by their sum, computed by initialize.
+     */
+    private double[] normalizedWeights;
+
+    /**
+     *  Initialize the query operator and its arguments, and normalize
+     *  the weights so that scoring doesn't re-sum them.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        double sumWeights = 0.0;
+        for (int i = 0; i < this.args.size(); i++) {
+            sumWeights += this.weights.get(i);
+        }
+        this.normalizedWeights = new double[this.args.size()];
+        for (int i = 0; i < this.args.size(); i++) {
+            this.normalizedWeights[i] = this.weights.get(i) / sumWeights;
+        }
+    }
+
+    /**
+     *  Get the weights divided by their sum.  It is an error to call
+     *  this method before the object's initialize method is called.
+     *  @return The normalized weights, which must not be modified.
+     */
+    public double[] getNormalizedWeights() {
+        return this.normalizedWeights;
+    }
+
     @Override
     public double getScore(RetrievalModel r) throws IOException {
         // TODO Auto-generated method stub
@@ -15,16 +48,16 @@ public class QrySopWSum extends QrySop {
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
         // TODO Auto-generated method stub
         if (r instanceof RetrievalModelIndri) {
-            double sumWeights = 0.0;
-            for (int i = 0; i< this.args.size(); i++) {
-                sumWeights += this.weights.get(i);
+            double score = this.getCachedDefaultScore(docid);
+            if (!Double.isNaN(score)) {
+                return score;
             }
-            double score = 0.0;
+            score = 0.0;
             for (int i = 0; i< this.args.size(); i++) {
-                double weight = this.weights.get(i);
-                score += weight / sumWeights * ((QrySop)this.args.get(i)).getDefaultScore(r, docid);
+                double weight = this.normalizedWeights[i];
+                score += weight * ((QrySop)this.args.get(i)).getDefaultScore(r, docid);
             }
-            return score;
+            return this.cacheDefaultScore(score);
         }
         return 0;
     }
@@ -43,14 +76,10 @@ public class QrySopWSum extends QrySop {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;
         } else {
-            double sumWeights = 0.0;
-            for (int i = 0; i < this.args.size(); i++) {
-                sumWeights += this.weights.get(i);
-            }
             double score = 0.0;
             int docId = this.docIteratorGetMatch();
             for (int i = 0; i < this.args.size(); i++) {
-                double weight = this.weights.get(i);
+                double weight = this.normalizedWeights[i];
                 double currScore = 0.0;
                 QrySop q_i = (QrySop)this.args.get(i);
                 
@@ -61,7 +90,7 @@ public class QrySopWSum extends QrySop {
                 } else {
                     currScore = q_i.getDefaultScore(r, docId);
                 }
-                currScore = weight / sumWeights * currScore;
+                currScore = weight * currScore;
                 score += currScore;
             }
             return score;
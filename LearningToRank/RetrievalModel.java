@@ -1,6 +1,7 @@
-/** 
+/**
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
+import java.util.Map;
 
 /**
  *  The root class in the retrieval model hierarchy.  This hierarchy
@@ -10,10 +11,153 @@
  */
 public abstract class RetrievalModel {
 
+  /**
+   *  If true, TERM operators read Lucene postings as their docIterators
+   *  advance, instead of copying the whole inverted list into an
+   *  InvList when they are initialized.
+   */
+  protected boolean streamingPostings = false;
+
+  /**
+   *  How a top-k query skips documents that can't enter the top k:
+   *  "none" (score every matching document), "wand", "maxscore" or
+   *  "bmw" (Block-Max WAND).  Indri uses MaxScore for any value
+   *  other than "none".
+   *  Models that can't bound their scores ignore it; see
+   *  {@link QryEvaluator}.
+   */
+  protected String dynamicPruning = "none";
+
+  /**
+   *  If true, queries that no dynamic pruning evaluator handles are
+   *  compiled into a {@link CompiledQuery} before they are evaluated.
+   */
+  protected boolean compiledQueries = false;
+
+  /**
+   *  The number of threads that evaluate each query.  If it is more
+   *  than 1, queries that the default evaluator would evaluate are
+   *  split into docid ranges that are evaluated in parallel by
+   *  {@link QryEvaluatorParallel}.
+   */
+  protected int intraQueryThreads = 1;
+
+  /**
+   *  If true, Boolean queries are evaluated with set operations on
+   *  bitmaps and sorted arrays by {@link QryEvaluatorBoolean}.
+   */
+  protected boolean booleanBitsets = false;
+
+  /**
+   *  The index that queries are evaluated against, or null for the
+   *  current index of {@link Idx}.
+   */
+  private IndexContext indexContext = null;
+
   /**
    *  The name of the default query operator for the retrieval model.
    *  @return The name of the default query operator.
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get the collection statistics that the retrieval model scores
+   *  with.  Query operators call this when they are initialized and
+   *  keep the result, so that scoring doesn't touch the index reader.
+   *  @return The collection statistics of the current index.
+   */
+  public IndexStats getIndexStats () {
+    return this.getIndexContext ().getIndexStats ();
+  }
+
+  /**
+   *  Get the index that queries are evaluated against.  Query
+   *  operators call this when they are initialized and keep the
+   *  result, so queries that use different contexts can be evaluated
+   *  concurrently.
+   *  @return The index context.
+   */
+  public IndexContext getIndexContext () {
+    return (this.indexContext != null) ? this.indexContext : Idx.getIndexContext ();
+  }
+
+  /**
+   *  Create the scorer of a SCORE operator's argument.  The argument
+   *  must be initialized, so that its df and ctf are known.
+   *  @param q The initialized argument.
+   *  @param context The index that the argument was initialized with.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the
+   *          SCORE operator.
+   */
+  public TermScorer newTermScorer (QryIop q, IndexContext context) {
+    throw new IllegalArgumentException
+      (this.getClass().getName() + " doesn't support the SCORE operator.");
+  }
+
+  /**
+   *  True if the model scores an argument of a SCORE operator with
+   *  its df or ctf.  If it doesn't, positional operators can find
+   *  their matches lazily when postings are streamed.
+   *  @return True if the model uses term statistics.
+   */
+  public boolean usesTermStatistics () {
+    return true;
+  }
+
+  /**
+   *  Set the index that queries are evaluated against.  A model that
+   *  has a context doesn't follow {@link Idx#reopen}, which closes the
+   *  old context, so the caller must set the new one.
+   *  @param context The index context, or null for the current index.
+   */
+  public void setIndexContext (IndexContext context) {
+    this.indexContext = context;
+  }
+
+  /**
+   *  Set the options that control how queries are evaluated (but not
+   *  how documents are scored) from the parameter file.  Missing
+   *  parameters keep their default values.
+   *  @param parameters The parameters, in &lt;key, value&gt; format.
+   */
+  public void setEvaluationOptions (Map<String, String> parameters) {
+
+    if (parameters.containsKey ("streamingPostings")) {
+      this.streamingPostings =
+        Boolean.parseBoolean (parameters.get ("streamingPostings"));
+    }
+
+    if (parameters.containsKey ("compiledQueries")) {
+      this.compiledQueries =
+        Boolean.parseBoolean (parameters.get ("compiledQueries"));
+    }
+
+    if (parameters.containsKey ("booleanBitsets")) {
+      this.booleanBitsets =
+        Boolean.parseBoolean (parameters.get ("booleanBitsets"));
+    }
+
+    if (parameters.containsKey ("intraQueryThreads")) {
+      int threads = Integer.parseInt (parameters.get ("intraQueryThreads"));
+
+      if (threads < 1) {
+        throw new IllegalArgumentException
+          ("intraQueryThreads must be at least 1");
+      }
+      this.intraQueryThreads = threads;
+    }
+
+    if (parameters.containsKey ("dynamicPruning")) {
+      String pruning = parameters.get ("dynamicPruning").toLowerCase ();
+
+      if (! (pruning.equals ("none") || pruning.equals ("wand") ||
+             pruning.equals ("maxscore") || pruning.equals ("bmw"))) {
+        throw new IllegalArgumentException
+          ("Unknown dynamicPruning value: " + parameters.get ("dynamicPruning"));
+      }
+      this.dynamicPruning = pruning;
+    }
+  }
+
 }
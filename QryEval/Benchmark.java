@@ -0,0 +1,607 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Microbenchmarks for the query evaluation primitives.  Run it to
+ *  see a simple usage message.  Most benchmarks use synthetic data,
+ *  so they don't need an index; each one checks that the variants
+ *  that it compares agree before it reports their times.
+ */
+public class Benchmark {
+
+  static String usage =
+    "Usage:  java Benchmark BENCHMARK [options]\n\n" +
+    "where BENCHMARK is one of\n" +
+    "    advance [RARE_DF FREQUENT_DF]\n" +
+    "\t\t\tintersect a rare and a frequent cached inverted list,\n" +
+    "\t\t\tadvancing one posting at a time and by galloping;\n" +
+    "\t\t\twithout options, several df pairs are measured\n" +
+    "    positions [LISTS LENGTH]\n" +
+    "\t\t\tmerge the position lists of synthetic documents\n" +
+    "\t\t\tas #SYN and #WINDOW do, by sorting or scanning\n" +
+    "\t\t\tand with a PositionHeap; without options, several\n" +
+    "\t\t\tnumbers of lists are measured\n" +
+    "    indri INDEX_PATH QUERY_FILE [MU LAMBDA]\n" +
+    "\t\t\tevaluate the queries (one per line, optionally\n" +
+    "\t\t\tqid:query) with the Indri query operators, a\n" +
+    "\t\t\tcompiled query, and a log-domain compiled query\n" +
+    "    parallel INDEX_PATH QUERY_FILE [THREADS]\n" +
+    "\t\t\tevaluate the queries with BM25 on 1 thread and\n" +
+    "\t\t\ton THREADS intra-query threads (default: the\n" +
+    "\t\t\tnumber of processors), reporting the total and\n" +
+    "\t\t\tthe slowest query's time\n";
+
+  /**
+   *  The documents in a synthetic index.
+   */
+  private static final int MAX_DOC = 10000000;
+
+  /**
+   *  Runs of each measurement; the first half warm up the JIT.
+   */
+  private static final int RUNS = 40;
+
+  /**
+   *  Runs of each measurement that uses an index.
+   */
+  private static final int INDEX_RUNS = 10;
+
+  /**
+   *  The number of documents that each query returns.
+   */
+  private static final int TOP_K = 100;
+
+  /**
+   *  The synthetic documents whose position lists are merged.
+   */
+  private static final int DOCS = 2000;
+
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    if ("advance".equals (args[0])) {
+      if (args.length == 3) {
+        advance (Integer.parseInt (args[1]), Integer.parseInt (args[2]));
+      } else {
+        for (int rareDf : new int[] { 10, 100, 1000, 10000, 100000 }) {
+          advance (rareDf, 1000000);
+        }
+      }
+    } else if ("positions".equals (args[0])) {
+      if (args.length == 3) {
+        positions (Integer.parseInt (args[1]), Integer.parseInt (args[2]));
+      } else {
+        for (int lists : new int[] { 2, 5, 10, 20, 50 }) {
+          positions (lists, 20);
+        }
+      }
+    } else if ("indri".equals (args[0]) &&
+               ((args.length == 3) || (args.length == 5))) {
+      double mu = (args.length == 5) ? Double.parseDouble (args[3]) : 2500;
+      double lambda = (args.length == 5) ? Double.parseDouble (args[4]) : 0.4;
+      indri (args[1], args[2], mu, lambda);
+    } else if ("parallel".equals (args[0]) &&
+               ((args.length == 3) || (args.length == 4))) {
+      int threads = (args.length == 4) ?
+        Integer.parseInt (args[3]) : Runtime.getRuntime ().availableProcessors ();
+      parallel (args[1], args[2], threads);
+    } else {
+      System.err.println (usage);
+      System.exit (1);
+    }
+  }
+
+  //  --------------- advance ---------------------------------------
+
+  /**
+   *  Intersect two lists, as Qry.docIteratorHasMatchAll does, with
+   *  each way of advancing a cached inverted list.
+   */
+  private static void advance (int rareDf, int frequentDf) {
+
+    Random random = new Random (rareDf * 31L + frequentDf);
+    InvList rare = randomList (random, rareDf);
+    InvList frequent = randomList (random, frequentDf);
+
+    long linearNanos = Long.MAX_VALUE;
+    long gallopNanos = Long.MAX_VALUE;
+    int linearMatches = 0;
+    int gallopMatches = 0;
+
+    for (int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime ();
+      linearMatches = intersectLinear (rare, frequent);
+      long linear = System.nanoTime () - start;
+
+      start = System.nanoTime ();
+      gallopMatches = intersect (rare, frequent);
+      long gallop = System.nanoTime () - start;
+
+      if (run >= RUNS / 2) {
+        linearNanos = Math.min (linearNanos, linear);
+        gallopNanos = Math.min (gallopNanos, gallop);
+      }
+    }
+
+    if (linearMatches != gallopMatches) {
+      throw new IllegalStateException ("The intersections differ.");
+    }
+
+    System.out.println (String.format (
+      "advance  df %7d x %7d  matches %6d  linear %9.3f ms  galloping %9.3f ms  (%.1fx)",
+      rareDf, frequentDf, gallopMatches, linearNanos / 1e6, gallopNanos / 1e6,
+      (double) linearNanos / gallopNanos));
+  }
+
+  /**
+   *  A list of df distinct random docids, with tf 1.
+   */
+  private static InvList randomList (Random random, int df) {
+
+    BitSet docids = new BitSet (MAX_DOC);
+
+    for (int n = 0; n < df; ) {
+      int d = random.nextInt (MAX_DOC);
+
+      if (! docids.get (d)) {
+        docids.set (d);
+        n ++;
+      }
+    }
+
+    InvList list = new InvList ("body");
+    int[] positions = { 0 };
+
+    for (int d = docids.nextSetBit (0); d >= 0; d = docids.nextSetBit (d + 1)) {
+      list.appendPosting (d, positions, 1);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Intersect with InvList.findDocid, which docIteratorAdvanceTo uses.
+   */
+  private static int intersect (InvList a, InvList b) {
+
+    int i = 0;
+    int j = 0;
+    int matches = 0;
+
+    while (i < a.df) {
+      int docid = a.getDocid (i);
+
+      j = b.findDocid (j, docid);
+
+      if (j == b.df) {
+        break;
+      }
+
+      int docid1 = b.getDocid (j);
+
+      if (docid1 == docid) {
+        matches ++;
+        i ++;
+      } else {
+        i = a.findDocid (i, docid1);
+      }
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Intersect by moving forward one posting at a time.
+   */
+  private static int intersectLinear (InvList a, InvList b) {
+
+    int i = 0;
+    int j = 0;
+    int matches = 0;
+
+    while (i < a.df) {
+      int docid = a.getDocid (i);
+
+      while ((j < b.df) && (b.getDocid (j) < docid)) {
+        j ++;
+      }
+
+      if (j == b.df) {
+        break;
+      }
+
+      int docid1 = b.getDocid (j);
+
+      if (docid1 == docid) {
+        matches ++;
+        i ++;
+      } else {
+        while ((i < a.df) && (a.getDocid (i) < docid1)) {
+          i ++;
+        }
+      }
+    }
+
+    return matches;
+  }
+
+  //  --------------- positions -------------------------------------
+
+  /**
+   *  Merge the position lists of synthetic documents, as #SYN and
+   *  #WINDOW do, with the old methods and with a PositionHeap.
+   */
+  private static void positions (int lists, int length) {
+
+    Random random = new Random (lists * 31L + length);
+    int[][][] docs = new int[DOCS][lists][];
+    int docLength = 2 * lists * length;
+    int distance = 2 * lists;
+
+    for (int d = 0; d < DOCS; d++) {
+      for (int i = 0; i < lists; i++) {
+        docs[d][i] = randomPositions (random, length, docLength);
+      }
+    }
+
+    int[] result = new int[lists * length];
+    PositionHeap heap = new PositionHeap ();
+    long[] nanos = new long[4];
+    long[] checksums = new long[4];
+
+    Arrays.fill (nanos, Long.MAX_VALUE);
+
+    for (int run = 0; run < RUNS; run++) {
+      long[] times = new long[4];
+
+      Arrays.fill (checksums, 0);
+
+      for (int variant = 0; variant < 4; variant++) {
+        long start = System.nanoTime ();
+
+        for (int d = 0; d < DOCS; d++) {
+          int count;
+
+          if (variant == 0) {
+            count = mergeSort (docs[d], result);
+          } else if (variant == 1) {
+            count = windowScan (docs[d], distance, result);
+          } else {
+            heap.clear ();
+
+            for (int[] list : docs[d]) {
+              heap.add (list, list.length);
+            }
+
+            count = (variant == 2) ?
+              heap.merge (result) : heap.window (distance, result);
+          }
+
+          for (int i = 0; i < count; i++) {
+            checksums[variant] = 31 * checksums[variant] + result[i];
+          }
+        }
+
+        times[variant] = System.nanoTime () - start;
+      }
+
+      if (run >= RUNS / 2) {
+        for (int variant = 0; variant < 4; variant++) {
+          nanos[variant] = Math.min (nanos[variant], times[variant]);
+        }
+      }
+    }
+
+    if ((checksums[0] != checksums[2]) || (checksums[1] != checksums[3])) {
+      throw new IllegalStateException ("The merged positions differ.");
+    }
+
+    System.out.println (String.format (
+      "positions  %2d lists x %3d  #syn sort %8.3f ms  heap %8.3f ms  (%.1fx)" +
+      "  #window scan %8.3f ms  heap %8.3f ms  (%.1fx)",
+      lists, length,
+      nanos[0] / 1e6, nanos[2] / 1e6, (double) nanos[0] / nanos[2],
+      nanos[1] / 1e6, nanos[3] / 1e6, (double) nanos[1] / nanos[3]));
+  }
+
+  /**
+   *  length distinct sorted random positions less than docLength.
+   */
+  private static int[] randomPositions (Random random, int length, int docLength) {
+
+    BitSet positions = new BitSet (docLength);
+
+    for (int n = 0; n < length; ) {
+      int p = random.nextInt (docLength);
+
+      if (! positions.get (p)) {
+        positions.set (p);
+        n ++;
+      }
+    }
+
+    return positions.stream ().toArray ();
+  }
+
+  /**
+   *  Merge lists by concatenating and sorting them.
+   */
+  private static int mergeSort (int[][] lists, int[] result) {
+
+    int count = 0;
+
+    for (int[] list : lists) {
+      System.arraycopy (list, 0, result, count, list.length);
+      count += list.length;
+    }
+
+    Arrays.sort (result, 0, count);
+    return count;
+  }
+
+  /**
+   *  Find windows by rescanning every list's current position for the
+   *  minimum and maximum at each step.
+   */
+  private static int windowScan (int[][] lists, int distance, int[] result) {
+
+    int[] offsets = new int[lists.length];
+    int count = 0;
+
+    while (true) {
+      int min = Integer.MAX_VALUE;
+      int max = 0;
+      int minList = 0;
+
+      for (int i = 0; i < lists.length; i++) {
+        int p = lists[i][offsets[i]];
+
+        max = Math.max (max, p);
+
+        if (p < min) {
+          min = p;
+          minList = i;
+        }
+      }
+
+      if (max - min < distance) {
+        result[count++] = max;
+
+        for (int i = 0; i < lists.length; i++) {
+          if (++ offsets[i] == lists[i].length) {
+            return count;
+          }
+        }
+      } else if (++ offsets[minList] == lists[minList].length) {
+        return count;
+      }
+    }
+  }
+
+  //  --------------- indri -----------------------------------------
+
+  /**
+   *  Evaluate a query file with the Indri model in each scoring mode,
+   *  and compare the rankings with the query operators' rankings.
+   */
+  private static void indri (String indexPath, String queryFilePath,
+                             double mu, double lambda) throws Exception {
+
+    Idx.open (indexPath);
+
+    List<String> queries = readQueries (queryFilePath);
+    String[] modes = { "operators", "compiled", "log-domain" };
+    long[] nanos = new long[modes.length];
+    List<List<Integer>> reference = null;
+
+    Arrays.fill (nanos, Long.MAX_VALUE);
+
+    for (int mode = 0; mode < modes.length; mode++) {
+      List<List<Integer>> rankings = null;
+
+      for (int run = 0; run < INDEX_RUNS; run++) {
+        long start = System.nanoTime ();
+        rankings = new ArrayList<List<Integer>> ();
+
+        for (String query : queries) {
+          rankings.add (indriRanking (query, mode, mu, lambda));
+        }
+
+        if (run >= INDEX_RUNS / 2) {
+          nanos[mode] = Math.min (nanos[mode], System.nanoTime () - start);
+        }
+      }
+
+      int different = 0;
+
+      if (reference == null) {
+        reference = rankings;
+      } else {
+        for (int i = 0; i < queries.size (); i++) {
+          if (! rankings.get (i).equals (reference.get (i))) {
+            different ++;
+          }
+        }
+      }
+
+      System.out.println (String.format (
+        "indri  %-10s  %d queries  %9.3f ms  (%.2fx)  different rankings %d",
+        modes[mode], queries.size (), nanos[mode] / 1e6,
+        (double) nanos[0] / nanos[mode], different));
+    }
+  }
+
+  /**
+   *  Evaluate a query with the Indri model and get the internal docids
+   *  of its top documents, in rank order.
+   *  @param mode 0 for the query operators, 1 for a compiled query, or
+   *         2 for a log-domain compiled query.
+   */
+  private static List<Integer> indriRanking (String query, int mode,
+                                             double mu, double lambda)
+    throws IOException {
+
+    RetrievalModelIndri model = new RetrievalModelIndri (mu, lambda);
+    Map<String, String> options = new HashMap<String, String> ();
+
+    if (mode == 1) {
+      options.put ("compiledQueries", "true");
+    } else if (mode == 2) {
+      options.put ("Indri:logDomain", "true");
+    }
+
+    model.setEvaluationOptions (options);
+
+    Qry q = QryParser.getQuery (model.defaultQrySopName () + "(" + query + ")");
+    List<Integer> ranking = new ArrayList<Integer> ();
+
+    if (! (q instanceof QrySop)) {
+      return ranking;
+    }
+
+    QryPlanner.plan (q, model);
+    q.initialize (model);
+
+    TopKCollector topK = new TopKCollector (model.getIndexContext (), TOP_K);
+    QryEvaluator.forQuery (q, model).evaluate ((QrySop) q, model, topK);
+
+    ScoreList r = topK.getScoreList ();
+
+    for (int i = 0; i < r.size (); i++) {
+      ranking.add (r.getDocid (i));
+    }
+
+    return ranking;
+  }
+
+  /**
+   *  Read a query file:  one query per line, optionally qid:query.
+   */
+  private static List<String> readQueries (String queryFilePath)
+    throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+
+    try (BufferedReader input = new BufferedReader (new FileReader (queryFilePath))) {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int d = line.indexOf (':');
+        String query = (d >= 0) ? line.substring (d + 1).trim () : line.trim ();
+
+        if (query.length () > 0) {
+          queries.add (query);
+        }
+      }
+    }
+
+    return queries;
+  }
+
+  //  --------------- parallel --------------------------------------
+
+  /**
+   *  Evaluate a query file with the BM25 model on one thread and on
+   *  several intra-query threads, which also build the #NEAR, #WINDOW
+   *  and #SYN inverted lists a range of docids at a time, and compare
+   *  the rankings.
+   */
+  private static void parallel (String indexPath, String queryFilePath,
+                                int threads) throws Exception {
+
+    Idx.open (indexPath);
+
+    List<String> queries = readQueries (queryFilePath);
+    int[] modes = { 1, threads };
+    long[] nanos = new long[modes.length];
+    long[] slowest = new long[modes.length];
+    List<List<Integer>> reference = null;
+
+    Arrays.fill (nanos, Long.MAX_VALUE);
+    Arrays.fill (slowest, Long.MAX_VALUE);
+
+    for (int mode = 0; mode < modes.length; mode++) {
+      List<List<Integer>> rankings = null;
+
+      for (int run = 0; run < INDEX_RUNS; run++) {
+        long start = System.nanoTime ();
+        long max = 0;
+        rankings = new ArrayList<List<Integer>> ();
+
+        for (String query : queries) {
+          long queryStart = System.nanoTime ();
+
+          rankings.add (bm25Ranking (query, modes[mode]));
+          max = Math.max (max, System.nanoTime () - queryStart);
+        }
+
+        if (run >= INDEX_RUNS / 2) {
+          nanos[mode] = Math.min (nanos[mode], System.nanoTime () - start);
+          slowest[mode] = Math.min (slowest[mode], max);
+        }
+      }
+
+      int different = 0;
+
+      if (reference == null) {
+        reference = rankings;
+      } else {
+        for (int i = 0; i < queries.size (); i++) {
+          if (! rankings.get (i).equals (reference.get (i))) {
+            different ++;
+          }
+        }
+      }
+
+      System.out.println (String.format (
+        "parallel  %2d threads  %d queries  %9.3f ms  (%.2fx)  slowest %8.3f ms  (%.2fx)  different rankings %d",
+        modes[mode], queries.size (), nanos[mode] / 1e6,
+        (double) nanos[0] / nanos[mode], slowest[mode] / 1e6,
+        (double) slowest[0] / slowest[mode], different));
+    }
+  }
+
+  /**
+   *  Evaluate a query with the BM25 model and get the internal docids
+   *  of its top documents, in rank order.
+   *  @param threads The number of intra-query threads.
+   */
+  private static List<Integer> bm25Ranking (String query, int threads)
+    throws IOException {
+
+    RetrievalModelBM25 model = new RetrievalModelBM25 (1.2, 0, 0.75);
+    Map<String, String> options = new HashMap<String, String> ();
+
+    options.put ("intraQueryThreads", Integer.toString (threads));
+    model.setEvaluationOptions (options);
+
+    Qry q = QryParser.getQuery (model.defaultQrySopName () + "(" + query + ")");
+    List<Integer> ranking = new ArrayList<Integer> ();
+
+    if (! (q instanceof QrySop)) {
+      return ranking;
+    }
+
+    QryPlanner.plan (q, model);
+    q.initialize (model);
+
+    TopKCollector topK = new TopKCollector (model.getIndexContext (), TOP_K);
+    QryEvaluator.forQuery (q, model).evaluate ((QrySop) q, model, topK);
+
+    ScoreList r = topK.getScoreList ();
+
+    for (int i = 0; i < r.size (); i++) {
+      ranking.add (r.getDocid (i));
+    }
+
+    return ranking;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The score bounds of consecutive docid ranges (blocks) of a query
+ *  argument, with a cursor that moves forward through the blocks as
+ *  an evaluator moves forward through the documents.  Block b covers
+ *  the docids after the last docid of block b-1, up to and including
+ *  its own last docid.  Documents after the last block don't match.
+ */
+public final class BlockMaxScores {
+
+  //  --------------- Constants and variables -----------------------
+
+  private final int[] lastDocids;
+  private final double[] maxScores;
+  private int block = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param lastDocids The last docid of each block, in ascending order.
+   *  @param maxScores The score bound of each block.
+   */
+  public BlockMaxScores (int[] lastDocids, double[] maxScores) {
+    this.lastDocids = lastDocids;
+    this.maxScores = maxScores;
+  }
+
+  /**
+   *  Get bounds that have one block, which covers every document.
+   *  @param maxScore The score bound of the block.
+   *  @return The bounds.
+   */
+  public static BlockMaxScores single (double maxScore) {
+    return new BlockMaxScores (new int[] { Integer.MAX_VALUE },
+                               new double[] { maxScore });
+  }
+
+  /**
+   *  Move the cursor to the block that covers a document, and get its
+   *  bound.  The cursor doesn't move backwards.
+   *  @param docid An internal document id.
+   *  @return The score bound of the block.
+   */
+  public double getMaxScore (int docid) {
+
+    while ((this.block < this.lastDocids.length) &&
+           (this.lastDocids[this.block] < docid)) {
+      this.block ++;
+    }
+
+    return (this.block < this.lastDocids.length) ? this.maxScores[this.block] : 0.0;
+  }
+
+  /**
+   *  Get the last docid of the block that the cursor points to.
+   *  @return The internal document id, or Integer.MAX_VALUE after the
+   *          last block.
+   */
+  public int getLastDocid () {
+    return (this.block < this.lastDocids.length) ?
+      this.lastDocids[this.block] : Integer.MAX_VALUE;
+  }
+}
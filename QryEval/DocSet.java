@@ -0,0 +1,445 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A DocSet is a set of internal docids, optionally with an integer
+ *  score for each document, that the Boolean retrieval models combine
+ *  with set operations instead of document-at-a-time iterators.
+ *  <p>
+ *  Like a Roaring bitmap container, a set is stored in one of two
+ *  ways, chosen by its cardinality.  A <i>sparse</i> set is a sorted
+ *  array of docids.  A <i>dense</i> set is a bitmap of one bit per
+ *  document, which #AND and #OR combine a 64-bit word at a time; a
+ *  set is dense when it has more than one document per DENSE_RATIO
+ *  docids, which is where the bitmap becomes smaller than the array.
+ *  Each operation estimates the cardinality of its result before it
+ *  chooses how to compute and store it.
+ *  </p><p>
+ *  Scores are kept in a side array, in docid order, for the
+ *  RankedBoolean model:  a term's score is its tf, #AND's score is
+ *  the minimum of its arguments' scores and #OR's is the maximum.  A
+ *  dense set finds a document's score by counting the bits before
+ *  it, with a per-word rank table.  UnrankedBoolean sets have no
+ *  scores; every document scores 1.
+ *  </p>
+ */
+public final class DocSet {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  A set is dense if it has more than maxDoc / DENSE_RATIO
+   *  documents.  A sparse set uses 32 bits per document, and a dense
+   *  set uses one bit per docid.
+   */
+  private static final int DENSE_RATIO = 32;
+
+  private final int maxDoc;
+  private int size;
+
+  /**
+   *  Sparse sets:  the docids, in ascending order.
+   */
+  private int[] docids;
+
+  /**
+   *  Dense sets:  the bitmap, and the number of documents in the
+   *  words before each word.
+   */
+  private long[] words;
+  private int[] ranks;
+
+  /**
+   *  The score of each document, in docid order, or null if the set
+   *  isn't scored.
+   */
+  private int[] scores;
+
+  //  --------------- Methods ---------------------------------------
+
+  private DocSet (int maxDoc) {
+    this.maxDoc = maxDoc;
+  }
+
+  /**
+   *  Create a set from sorted docids, stored densely or sparsely
+   *  depending on its size.  The arrays are owned by the set.
+   *  @param maxDoc The number of docids in the index.
+   *  @param docids The docids, in ascending order, without duplicates.
+   *  @param scores The documents' scores, or null if they aren't scored.
+   *  @param size The number of documents.
+   *  @return The set.
+   */
+  public static DocSet of (int maxDoc, int[] docids, int[] scores, int size) {
+
+    DocSet s = new DocSet (maxDoc);
+
+    s.size = size;
+    s.scores = scores;
+
+    if (! isDense (maxDoc, size)) {
+      s.docids = docids;
+      return s;
+    }
+
+    s.words = new long[(maxDoc + 63) >>> 6];
+
+    for (int i = 0; i < size; i++) {
+      s.words[docids[i] >>> 6] |= 1L << docids[i];
+    }
+
+    s.buildRanks ();
+    return s;
+  }
+
+  /**
+   *  Get the number of documents in the set.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Is the set stored as a bitmap?
+   *  @return True if the set is dense.
+   */
+  public boolean isDense () {
+    return (this.words != null);
+  }
+
+  /**
+   *  The intersection of sets, as #AND computes it.  Scores are the
+   *  minimum of the sets' scores.
+   *  @param sets The sets, which are all scored or all unscored.
+   *  @return The intersection.
+   */
+  public static DocSet and (DocSet[] sets) {
+
+    //  The smallest set bounds the result.  If it is dense, every
+    //  set is, and the bitmaps are intersected a word at a time.
+    //  Otherwise the smallest set's documents are looked up in the
+    //  others.
+
+    sets = sets.clone ();
+    Arrays.sort (sets, (a, b) -> Integer.compare (a.size, b.size));
+
+    DocSet first = sets[0];
+    boolean scored = (first.scores != null);
+
+    if (first.isDense ()) {
+      DocSet s = new DocSet (first.maxDoc);
+
+      s.words = first.words.clone ();
+
+      for (int i = 1; i < sets.length; i++) {
+        long[] w = sets[i].words;
+
+        for (int j = 0; j < s.words.length; j++) {
+          s.words[j] &= w[j];
+        }
+      }
+
+      s.buildRanks ();
+
+      if (scored) {
+        s.scores = new int[s.size];
+        s.foldScores (sets, true);
+      }
+
+      return s.adapt ();
+    }
+
+    int[] docids = new int[first.size];
+    int[] scores = scored ? new int[first.size] : null;
+    int[] cursors = new int[sets.length];
+    int size = 0;
+
+    candidates:
+    for (int i = 0; i < first.size; i++) {
+      int docid = first.docids[i];
+      int score = scored ? first.scores[i] : 0;
+
+      for (int j = 1; j < sets.length; j++) {
+        int n = sets[j].find (cursors[j], docid);
+
+        if (n < 0) {
+          cursors[j] = -n - 1;
+          continue candidates;
+        }
+
+        cursors[j] = n;
+
+        if (scored) {
+          score = Math.min (score, sets[j].scores[n]);
+        }
+      }
+
+      docids[size] = docid;
+
+      if (scored) {
+        scores[size] = score;
+      }
+
+      size ++;
+    }
+
+    return of (first.maxDoc, docids, scores, size);
+  }
+
+  /**
+   *  The union of sets, as #OR computes it.  Scores are the maximum
+   *  of the sets' scores.
+   *  @param sets The sets, which are all scored or all unscored.
+   *  @return The union.
+   */
+  public static DocSet or (DocSet[] sets) {
+
+    int maxDoc = sets[0].maxDoc;
+    boolean scored = (sets[0].scores != null);
+    long estimate = 0;
+
+    for (DocSet s : sets) {
+      estimate += s.size;
+    }
+
+    //  A small union is merged as sorted (docid, score) pairs.  The
+    //  pairs of a docid are adjacent after the sort, and the last one
+    //  has the maximum score.
+
+    if (! isDense (maxDoc, (int) Math.min (estimate, maxDoc))) {
+      long[] pairs = new long[(int) estimate];
+      int n = 0;
+
+      for (DocSet s : sets) {
+        for (int i = 0; i < s.size; i++) {
+          pairs[n++] = ((long) s.docids[i] << 32) | (scored ? s.scores[i] : 0);
+        }
+      }
+
+      Arrays.sort (pairs);
+
+      int[] docids = new int[n];
+      int[] scores = scored ? new int[n] : null;
+      int size = 0;
+
+      for (int i = 0; i < n; i++) {
+        int docid = (int) (pairs[i] >>> 32);
+
+        if ((size > 0) && (docids[size - 1] == docid)) {
+          size --;
+        }
+
+        docids[size] = docid;
+
+        if (scored) {
+          scores[size] = (int) pairs[i];
+        }
+
+        size ++;
+      }
+
+      return of (maxDoc, docids, scores, size);
+    }
+
+    //  A large union is a bitmap.
+
+    DocSet s = new DocSet (maxDoc);
+
+    s.words = new long[(maxDoc + 63) >>> 6];
+
+    for (DocSet t : sets) {
+      if (t.isDense ()) {
+        for (int j = 0; j < s.words.length; j++) {
+          s.words[j] |= t.words[j];
+        }
+      } else {
+        for (int i = 0; i < t.size; i++) {
+          s.words[t.docids[i] >>> 6] |= 1L << t.docids[i];
+        }
+      }
+    }
+
+    s.buildRanks ();
+
+    if (scored) {
+      s.scores = new int[s.size];
+      s.foldScores (sets, false);
+    }
+
+    return s.adapt ();
+  }
+
+  /**
+   *  Offer every document in the set to a collector.  Documents of
+   *  unscored sets score 1.
+   *  @param topK The collector.
+   */
+  public void collect (TopKCollector topK) {
+
+    if (! this.isDense ()) {
+      for (int i = 0; i < this.size; i++) {
+        topK.collect (this.docids[i],
+                      (this.scores != null) ? this.scores[i] : 1.0);
+      }
+      return;
+    }
+
+    int n = 0;
+
+    for (int j = 0; j < this.words.length; j++) {
+      for (long w = this.words[j]; w != 0; w &= w - 1) {
+        int docid = (j << 6) | Long.numberOfTrailingZeros (w);
+        topK.collect (docid, (this.scores != null) ? this.scores[n] : 1.0);
+        n ++;
+      }
+    }
+  }
+
+  /**
+   *  True if a set of size documents should be dense.
+   */
+  private static boolean isDense (int maxDoc, int size) {
+    return ((long) size * DENSE_RATIO > maxDoc);
+  }
+
+  /**
+   *  Find a document.  Sparse sets search forward from a position,
+   *  first one posting at a time and then by galloping, like
+   *  {@link InvList#findDocid}, so the caller's lookups must be in
+   *  ascending docid order.
+   *  @param from The position to search from; dense sets ignore it.
+   *  @param docid The document.
+   *  @return The document's position (the index of its score), or,
+   *  if the set doesn't have it, (-(p) - 1), where p is the position
+   *  of the next document.  Dense sets return -1.
+   */
+  private int find (int from, int docid) {
+
+    if (this.isDense ()) {
+      int j = docid >>> 6;
+      long bit = 1L << docid;
+
+      if ((this.words[j] & bit) == 0) {
+        return -1;
+      }
+
+      return this.ranks[j] + Long.bitCount (this.words[j] & (bit - 1));
+    }
+
+    int[] d = this.docids;
+    int n = from;
+    int end = Math.min (n + 8, this.size);
+
+    while ((n < end) && (d[n] < docid)) {
+      n ++;
+    }
+
+    if ((n == end) && (n < this.size)) {
+
+      //  Gallop, then binary search.  d[lo] < docid.
+
+      int lo = n - 1;
+      int step = 1;
+
+      while ((lo + step < this.size) && (d[lo + step] < docid)) {
+        lo += step;
+        step <<= 1;
+      }
+
+      int hi = Math.min (lo + step, this.size);
+
+      while (lo + 1 < hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (d[mid] < docid) {
+          lo = mid;
+        } else {
+          hi = mid;
+        }
+      }
+
+      n = hi;
+    }
+
+    return ((n < this.size) && (d[n] == docid)) ? n : -n - 1;
+  }
+
+  /**
+   *  Count the documents before each word of the bitmap, and the size.
+   */
+  private void buildRanks () {
+
+    this.ranks = new int[this.words.length];
+
+    int n = 0;
+
+    for (int j = 0; j < this.words.length; j++) {
+      this.ranks[j] = n;
+      n += Long.bitCount (this.words[j]);
+    }
+
+    this.size = n;
+  }
+
+  /**
+   *  Set the scores of a dense set's documents to the minimum (for
+   *  #AND) or maximum (for #OR) of the scores that they have in the
+   *  sets that contain them.
+   */
+  private void foldScores (DocSet[] sets, boolean min) {
+
+    int[] cursors = new int[sets.length];
+    int n = 0;
+
+    for (int j = 0; j < this.words.length; j++) {
+      for (long w = this.words[j]; w != 0; w &= w - 1, n++) {
+        int docid = (j << 6) | Long.numberOfTrailingZeros (w);
+        int score = min ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+
+        for (int i = 0; i < sets.length; i++) {
+          int m = sets[i].find (cursors[i], docid);
+
+          if (m < 0) {
+            cursors[i] = -m - 1;
+            continue;
+          }
+
+          cursors[i] = m;
+          score = min ?
+            Math.min (score, sets[i].scores[m]) : Math.max (score, sets[i].scores[m]);
+        }
+
+        this.scores[n] = score;
+      }
+    }
+  }
+
+  /**
+   *  Convert a bitmap that turned out to be small to a sparse set.
+   *  @return This set.
+   */
+  private DocSet adapt () {
+
+    if (isDense (this.maxDoc, this.size)) {
+      return this;
+    }
+
+    this.docids = new int[this.size];
+
+    int n = 0;
+
+    for (int j = 0; j < this.words.length; j++) {
+      for (long w = this.words[j]; w != 0; w &= w - 1) {
+        this.docids[n++] = (j << 6) | Long.numberOfTrailingZeros (w);
+      }
+    }
+
+    this.words = null;
+    this.ranks = null;
+    return this;
+  }
+}
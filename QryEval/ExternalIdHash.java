@@ -0,0 +1,315 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  ExternalIdHash is an optional, memory-mapped minimal perfect hash
+ *  from external docids to internal docids.  It is built offline
+ *  and saved in a sidecar file in the index directory:
+ *  <pre>
+ *    java ExternalIdHash indexPath
+ *  </pre>
+ *  <p>
+ *  If the sidecar file exists when {@link Idx} opens the index, an
+ *  external id is resolved with one bucket lookup, one slot lookup,
+ *  and a comparison against {@link ExternalIdStore} that rejects ids
+ *  that aren't in the index.
+ *  </p><p>
+ *  The hash uses hash-and-displace construction.  Keys are grouped
+ *  into buckets of about BUCKET_SIZE keys.  Buckets are placed
+ *  largest first, and each one gets the first seed that sends all
+ *  of its keys to free slots.  Single-key buckets are placed last,
+ *  directly into the remaining free slots; their bucket entry stores
+ *  -(slot+1) instead of a seed.
+ *  </p>
+ */
+public class ExternalIdHash {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.externalIdHash";
+
+  private static final int MAGIC = 0x51454844;		// "QEHD"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 4;
+  private static final int BUCKET_SIZE = 4;
+
+  /*
+   *  Layout after the header:  int[numBuckets] seeds, int[numKeys]
+   *  internal docids indexed by slot.
+   */
+  private ByteBuffer buffer;
+  private int numKeys;
+  private int numBuckets;
+  private int docidsStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  private ExternalIdHash (ByteBuffer b) {
+    this.buffer = b;
+    this.numKeys = b.getInt (16);
+    this.numBuckets = b.getInt (20);
+    this.docidsStart = HEADER_LENGTH + 4 * this.numBuckets;
+  }
+
+  /**
+   *  Build the sidecar file for an index.
+   *  @param args The only argument is the index path.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length != 1) {
+      System.err.println ("Usage:  java ExternalIdHash indexPath");
+      System.exit (1);
+    }
+
+    Idx.open (args[0]);
+    build (Idx.INDEXREADER, args[0], Idx.getExternalIdStore ());
+    System.out.println ("Wrote " + Paths.get (args[0], FILE_NAME));
+  }
+
+  /**
+   *  Build the hash for an index and save it in the index directory.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @param ids The external id table of the index.
+   *  @throws IOException Error accessing or writing the index.
+   */
+  public static void build (IndexReader reader, String indexPath,
+                            ExternalIdStore ids) throws IOException {
+
+    //  External ids must be unique.  Ordinals sort like external
+    //  ids, so duplicates have adjacent ordinals.
+
+    int maxDoc = ids.size ();
+    int[] byOrdinal = new int[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      byOrdinal[ids.getOrdinal (docid)] = docid;
+    }
+
+    for (int i = 1; i < maxDoc; i++) {
+      if (ids.getExternalDocid (byOrdinal[i - 1]).equals (
+            ids.getExternalDocid (byOrdinal[i]))) {
+        throw new IOException ("Multiple matches for external id " +
+                               ids.getExternalDocid (byOrdinal[i]));
+      }
+    }
+
+    int n = maxDoc;
+    int m = Math.max (1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    long[] hashes = new long[n];
+    int[] bucketSizes = new int[m];
+
+    for (int docid = 0; docid < n; docid++) {
+      hashes[docid] = hash (ids.getExternalDocid (docid));
+      bucketSizes[bucket (hashes[docid], m)] ++;
+    }
+
+    //  Group the keys by bucket.
+
+    int[] bucketStarts = new int[m + 1];
+    for (int b = 0; b < m; b++) {
+      bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+    }
+
+    int[] keys = new int[n];
+    int[] fill = Arrays.copyOf (bucketStarts, m);
+    for (int docid = 0; docid < n; docid++) {
+      keys[fill[bucket (hashes[docid], m)] ++] = docid;
+    }
+
+    //  Place buckets largest first.
+
+    Integer[] order = new Integer[m];
+    for (int b = 0; b < m; b++) {
+      order[b] = b;
+    }
+    Arrays.sort (order, (a, b) -> Integer.compare (bucketSizes[b], bucketSizes[a]));
+
+    int[] seeds = new int[m];
+    int[] slots = new int[n];
+    Arrays.fill (slots, -1);
+    int[] trial = new int[BUCKET_SIZE * 8];
+    int nextFree = 0;
+
+    for (Integer b : order) {
+      int size = bucketSizes[b];
+      int start = bucketStarts[b];
+
+      if (size == 0) {
+        continue;
+      }
+
+      if (size == 1) {
+        while (slots[nextFree] != -1) {
+          nextFree ++;
+        }
+        slots[nextFree] = keys[start];
+        seeds[b] = -(nextFree + 1);
+        continue;
+      }
+
+      if (trial.length < size) {
+        trial = new int[size];
+      }
+
+      for (int seed = 0; ; seed++) {
+        boolean placed = true;
+
+        for (int i = 0; (i < size) && placed; i++) {
+          int slot = slot (hashes[keys[start + i]], seed, n);
+
+          if (slots[slot] != -1) {
+            placed = false;
+          }
+          for (int j = 0; (j < i) && placed; j++) {
+            if (trial[j] == slot) {
+              placed = false;
+            }
+          }
+          trial[i] = slot;
+        }
+
+        if (placed) {
+          for (int i = 0; i < size; i++) {
+            slots[trial[i]] = keys[start + i];
+          }
+          seeds[b] = seed;
+          break;
+        }
+      }
+    }
+
+    //  Save the hash.
+
+    long indexVersion = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+    ByteBuffer out =
+      ByteBuffer.allocate (HEADER_LENGTH + 4 * m + 4 * n);
+    out.putInt (MAGIC).putInt (FORMAT_VERSION).putLong (indexVersion);
+    out.putInt (n).putInt (m);
+    for (int b = 0; b < m; b++) {
+      out.putInt (seeds[b]);
+    }
+    for (int s = 0; s < n; s++) {
+      out.putInt (slots[s]);
+    }
+    out.flip ();
+
+    Path tmp = Paths.get (indexPath, FILE_NAME + ".tmp");
+    try (FileChannel channel =
+           FileChannel.open (tmp, StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (out.hasRemaining ()) {
+        channel.write (out);
+      }
+    }
+    Files.move (tmp, Paths.get (indexPath, FILE_NAME),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   *  Open the sidecar file of an index, if it exists and matches the
+   *  index.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The hash, or null if there is no usable sidecar file.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  public static ExternalIdHash open (IndexReader reader, String indexPath)
+    throws IOException {
+
+    Path path = Paths.get (indexPath, FILE_NAME);
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    long indexVersion = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      ByteBuffer mapped =
+        channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((mapped.capacity () < HEADER_LENGTH) ||
+          (mapped.getInt (0) != MAGIC) ||
+          (mapped.getInt (4) != FORMAT_VERSION) ||
+          (mapped.getLong (8) != indexVersion) ||
+          (mapped.getInt (16) != reader.maxDoc ())) {
+        return null;
+      }
+
+      return new ExternalIdHash (mapped);
+    }
+  }
+
+  /**
+   *  Get the only internal docid that could have an external id.
+   *  The caller must confirm that the docid's external id matches.
+   *  @param externalId An external docid.
+   *  @return A candidate internal docid, or -1 if the hash is empty.
+   */
+  public int getCandidateDocid (String externalId) {
+
+    if (this.numKeys == 0) {
+      return -1;
+    }
+
+    long h = hash (externalId);
+    int seed = this.buffer.getInt (HEADER_LENGTH + 4 * bucket (h, this.numBuckets));
+    int slot = (seed < 0) ? -(seed + 1) : slot (h, seed, this.numKeys);
+
+    return this.buffer.getInt (this.docidsStart + 4 * slot);
+  }
+
+  /**
+   *  64-bit FNV-1a hash of the UTF-8 bytes of a string.
+   */
+  private static long hash (String s) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : s.getBytes (StandardCharsets.UTF_8)) {
+      h ^= (b & 0xFF);
+      h *= 0x100000001b3L;
+    }
+    return mix (h);
+  }
+
+  private static int bucket (long h, int numBuckets) {
+    return (int) Long.remainderUnsigned (h, numBuckets);
+  }
+
+  private static int slot (long h, int seed, int numKeys) {
+    return (int) Long.remainderUnsigned (
+      mix (h + (seed + 1) * 0x9E3779B97F4A7C15L), numKeys);
+  }
+
+  /**
+   *  The MurmurHash3 64-bit finalizer.
+   */
+  private static long mix (long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53e2b73L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  ExternalIdStore is a columnar table that maps internal docids to
+ *  external docids without reading stored Lucene documents.  It also
+ *  assigns each document an ordinal, which is the rank of its external
+ *  id in sorted order, so that results can be tie-broken by comparing
+ *  ints instead of strings.
+ *  <p>
+ *  The table is built from the index the first time that it is needed
+ *  and saved in a sidecar file in the index directory.  Later runs
+ *  memory-map the sidecar file.  If the sidecar file can't be written,
+ *  the table is kept in memory.
+ *  </p>
+ */
+public class ExternalIdStore {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.externalIds";
+
+  private static final int MAGIC = 0x51455844;		// "QEXD"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4;
+
+  /*
+   *  Layout after the header:  int[maxDoc] ordinals,
+   *  int[maxDoc+1] offsets into the id bytes, UTF-8 id bytes.
+   *  All reads use absolute positions, so one buffer can be shared
+   *  by several threads.
+   */
+  private ByteBuffer buffer;
+  private int maxDoc;
+  private int ordinalsStart;
+  private int offsetsStart;
+  private int bytesStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the external id table for an index, building and saving it
+   *  if the sidecar file is missing or out of date.
+   *  @param reader IndexReader object created in {@link Idx}.
+   *  @param indexPath The directory that contains the index.
+   *  @param externalIdField The stored field that has external ids.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ExternalIdStore (IndexReader reader, String indexPath,
+                          String externalIdField) throws IOException {
+
+    long indexVersion = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : 0;
+    Path path = Paths.get (indexPath, FILE_NAME);
+
+    if (Files.isReadable (path)) {
+      try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+        ByteBuffer mapped =
+          channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+        if ((mapped.capacity () >= HEADER_LENGTH) &&
+            (mapped.getInt (0) == MAGIC) &&
+            (mapped.getInt (4) == FORMAT_VERSION) &&
+            (mapped.getLong (8) == indexVersion) &&
+            (mapped.getInt (16) == reader.maxDoc ())) {
+          this.setBuffer (mapped);
+          return;
+        }
+      }
+    }
+
+    ByteBuffer built = build (reader, externalIdField, indexVersion);
+    this.setBuffer (built);
+
+    try {
+      Path tmp = Paths.get (indexPath, FILE_NAME + ".tmp");
+      try (FileChannel channel =
+             FileChannel.open (tmp, StandardOpenOption.CREATE,
+                               StandardOpenOption.WRITE,
+                               StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer out = built.duplicate ();
+        out.clear ();
+        while (out.hasRemaining ()) {
+          channel.write (out);
+        }
+      }
+      Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      System.err.println ("Warning: Can't save " + path + ": " + ex.getMessage ());
+    }
+  }
+
+  /**
+   *  Read every external id from the stored documents and build the
+   *  table in memory.
+   */
+  private static ByteBuffer build (IndexReader reader, String externalIdField,
+                                   long indexVersion) throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    String[] ids = new String[maxDoc];
+    Set<String> fields = Collections.singleton (externalIdField);
+    long idBytes = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      String id = reader.document (docid, fields).get (externalIdField);
+      ids[docid] = (id == null) ? "" : id;
+      idBytes += ids[docid].getBytes (StandardCharsets.UTF_8).length;
+    }
+
+    long length = HEADER_LENGTH + 4L * maxDoc + 4L * (maxDoc + 1) + idBytes;
+
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException ("The external id table is too large.");
+    }
+
+    //  Ordinals are ranks in String.compareTo order, which is the
+    //  order that ScoreList has always used to break ties.
+
+    Integer[] sorted = new Integer[maxDoc];
+    for (int i = 0; i < maxDoc; i++) {
+      sorted[i] = i;
+    }
+    Arrays.sort (sorted, (a, b) -> ids[a].compareTo (ids[b]));
+
+    ByteBuffer b = ByteBuffer.allocate ((int) length);
+    b.putInt (MAGIC).putInt (FORMAT_VERSION).putLong (indexVersion).putInt (maxDoc);
+
+    int ordinalsStart = HEADER_LENGTH;
+    for (int rank = 0; rank < maxDoc; rank++) {
+      b.putInt (ordinalsStart + 4 * sorted[rank], rank);
+    }
+
+    b.position (ordinalsStart + 4 * maxDoc);
+    int offset = 0;
+    for (int docid = 0; docid < maxDoc; docid++) {
+      b.putInt (offset);
+      offset += ids[docid].getBytes (StandardCharsets.UTF_8).length;
+    }
+    b.putInt (offset);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      b.put (ids[docid].getBytes (StandardCharsets.UTF_8));
+    }
+
+    return b;
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid The internal docid in the lucene index.
+   *  @return The external document id.
+   */
+  public String getExternalDocid (int docid) {
+    int start = this.buffer.getInt (this.offsetsStart + 4 * docid);
+    int end = this.buffer.getInt (this.offsetsStart + 4 * (docid + 1));
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = this.buffer.get (this.bytesStart + start + i);
+    }
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the rank of a document's external id among all external
+   *  ids.  Comparing ordinals gives the same order as comparing
+   *  external ids.
+   *  @param docid The internal docid in the lucene index.
+   *  @return The ordinal of the document's external id.
+   */
+  public int getOrdinal (int docid) {
+    return this.buffer.getInt (this.ordinalsStart + 4 * docid);
+  }
+
+  /**
+   *  Get the number of documents in the table.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.maxDoc;
+  }
+
+  private void setBuffer (ByteBuffer b) {
+    this.buffer = b;
+    this.maxDoc = b.getInt (16);
+    this.ordinalsStart = HEADER_LENGTH;
+    this.offsetsStart = this.ordinalsStart + 4 * this.maxDoc;
+    this.bytesStart = this.offsetsStart + 4 * (this.maxDoc + 1);
+  }
+}
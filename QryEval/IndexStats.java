@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+
+/**
+ *  IndexStats is an immutable snapshot of the corpus-level statistics
+ *  that retrieval models use, e.g., the number of documents and the
+ *  average length of each field.  The statistics are read from the
+ *  IndexReader once, when {@link Idx} opens an index, so that query
+ *  operators don't call IndexReader aggregate methods while scoring.
+ *  A snapshot describes one reader; {@link Idx#reopen} replaces it
+ *  when the index changes.
+ */
+public final class IndexStats {
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The statistics of one field.
+   */
+  public static final class FieldStats {
+
+    /**
+     *  The field name.
+     */
+    public final String field;
+
+    /**
+     *  The number of documents that contain the field.
+     */
+    public final int docCount;
+
+    /**
+     *  The total number of term occurrences in all instances of the
+     *  field (the sum of the field lengths).
+     */
+    public final long sumOfLengths;
+
+    /**
+     *  The average length of the field, sumOfLengths / docCount.
+     */
+    public final double avgLength;
+
+    private FieldStats (String field, int docCount, long sumOfLengths) {
+      this.field = field;
+      this.docCount = docCount;
+      this.sumOfLengths = sumOfLengths;
+      this.avgLength = (double) sumOfLengths / (double) docCount;
+    }
+  }
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of documents in the corpus (N).
+   */
+  public final long numDocs;
+
+  /**
+   *  The largest internal docid in the corpus, plus one.
+   */
+  public final int maxDoc;
+
+  private final Map<String, FieldStats> fields;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Read the statistics of every indexed field.
+   *  @param reader IndexReader object created in {@link Idx}.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public IndexStats (IndexReader reader) throws IOException {
+
+    this.numDocs = reader.numDocs ();
+    this.maxDoc = reader.maxDoc ();
+
+    Map<String, FieldStats> fields = new HashMap<String, FieldStats> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      fields.put (field,
+                  new FieldStats (field,
+                                  reader.getDocCount (field),
+                                  reader.getSumTotalTermFreq (field)));
+    }
+
+    this.fields = Collections.unmodifiableMap (fields);
+  }
+
+  /**
+   *  Get the statistics of a field.  A field that isn't in the index
+   *  has no documents and no term occurrences.
+   *  @param field The field name.
+   *  @return The statistics of the field.
+   */
+  public FieldStats getFieldStats (String field) {
+    FieldStats stats = this.fields.get (field);
+    return (stats != null) ? stats : new FieldStats (field, 0, 0);
+  }
+}
@@ -13,11 +13,31 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in packed primitive arrays rather than as one
+ *  object per posting.  Document ids and term frequencies are kept in
+ *  parallel int arrays so that they can be accessed randomly by the
+ *  docIterators.  Positions are delta encoded within each posting and
+ *  written as variable-byte integers into a single byte array; they
+ *  are decoded into a caller-supplied int buffer on demand.
+ *  </p>
+ *  <p>
+ *  Operators whose positions nobody reads (e.g., a term that is only
+ *  scored) may build a list without positions, which stores only
+ *  docids and term frequencies and reads the term's Lucene postings
+ *  without decoding positions.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The number of postings that findDocid checks one at a time
+   *  before it gallops.
+   */
+  private static final int LINEAR_SCAN = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -36,50 +56,34 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal document ids of the postings, in ascending order.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids = new int[8];
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  The term frequency of each posting.
    */
-  public class DocPosting {
+  private int[] tfs = new int[8];
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The offset of each posting's encoded positions in positionBytes.
+   */
+  private int[] positionOffsets = new int[8];
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  Delta + variable-byte encoded positions for all postings.
+   */
+  private byte[] positionBytes = new byte[32];
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The number of bytes of positionBytes that are in use.
+   */
+  private int positionBytesLength = 0;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  False if the list stores only docids and term frequencies.
+   */
+  private boolean hasPositions = true;
 
   //  --------------- Methods ---------------------------------------
 
@@ -97,6 +101,17 @@ public class InvList {
     this.field = new String (fieldString);
   }
 
+  /**
+   *  Get an empty inverted list that may not store positions.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions False if the list stores only docids and term
+   *  frequencies.
+   */
+  public InvList(String fieldString, boolean positions) {
+    this.field = new String (fieldString);
+    this.hasPositions = positions;
+  }
+
   /**
    *  Get an inverted list from the index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
@@ -104,40 +119,93 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, Idx.getIndexContext());
+  }
+
+  /**
+   *  Get an inverted list from an index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param context The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, IndexContext context)
+    throws IOException {
+    this(termString, fieldString, context, true);
+  }
+
+  /**
+   *  Get an inverted list from an index, with or without positions.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param context The index.
+   *  @param positions False if only docids and term frequencies are
+   *  read.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, IndexContext context,
+                 boolean positions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.hasPositions = positions;
 
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = context.getIndexReader().docFreq(term);
+
+    if (termDf < 1)
       return;
 
-    //  Lookup the inverted list.
+    //  The df is known in advance, so the posting arrays can be
+    //  allocated once.
 
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, fieldString, termBytes); 
+    this.docids = new int[termDf];
+    this.tfs = new int[termDf];
+    this.positionOffsets = new int[termDf];
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
     //  operators such as #SYN and #NEAR/n to be insulated from the
     //  details of Lucene inverted list implementations.
+    //
+    //  The inverted list is read one index segment (leaf) at a time.
+    //  Leaves hold consecutive ranges of docids, so the postings are
+    //  appended in docid order.
+
+    LeafPostings leaves = context.getLeafPostings();
+    int flags = positions ? PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+    int[] locations = new int[16];
+
+    for (int leaf = 0; leaf < leaves.size(); leaf++) {
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      PostingsEnum iList =
+        leaves.postings(leaf, fieldString, termBytes, flags);
 
-      int tf = iList.freq();
-      int[] positions = new int[tf];
+      if (iList == null)
+        continue;
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+      int docBase = leaves.getDocBase(leaf);
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+        int tf = iList.freq();
+
+        if (positions) {
+          if (locations.length < tf)
+            locations = new int[ArrayUtil.oversize(tf, Integer.BYTES)];
+
+          for (int j = 0; j < tf; j++)
+            locations[j] = iList.nextPosition();
+        }
+
+        this.appendPosting(docBase + iList.docID(), locations, tf);
+      }
     }
   }
 
@@ -145,23 +213,108 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param positions An array of positions where the term occurs,
+   *  in ascending order.  It isn't read (and may be null) if the list
+   *  doesn't store positions.
+   *  @param count The number of positions in the array to append.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] positions, int count) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    if (this.df == this.docids.length) {
+      int size = ArrayUtil.oversize(this.df + 1, Integer.BYTES);
+      this.docids = Arrays.copyOf(this.docids, size);
+      this.tfs = Arrays.copyOf(this.tfs, size);
+      this.positionOffsets = Arrays.copyOf(this.positionOffsets, size);
+    }
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = count;
+    this.positionOffsets[this.df] = this.positionBytesLength;
+
+    if (! this.hasPositions) {
+      this.df ++;
+      this.ctf += count;
+      return true;
+    }
+
+    //  Each position needs at most 5 bytes.
+
+    if (this.positionBytes.length < this.positionBytesLength + 5 * count) {
+      this.positionBytes = ArrayUtil.grow(this.positionBytes,
+                                          this.positionBytesLength + 5 * count);
+    }
+
+    int prev = 0;
+
+    for (int i = 0; i < count; i++) {
+      this.writeVInt(positions[i] - prev);
+      prev = positions[i];
+    }
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += count;
+    return true;
+  }
+
+  /**
+   *  Append the postings of another inverted list, e.g., one that was
+   *  built for a later range of docids.  Its first docid must be
+   *  greater than this list's last docid, and the lists must both
+   *  store positions or both not store them.
+   *  @param list The inverted list to append.
+   *  @return true if the postings were added successfully, otherwise false.
+   */
+  public boolean appendList (InvList list) {
+
+    if (list.hasPositions != this.hasPositions)
+      return false;
+
+    if (list.df == 0)
+      return true;
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= list.docids[0]))
+      return false;
+
+    int df = this.df + list.df;
+
+    if (this.docids.length < df) {
+      int size = ArrayUtil.oversize(df, Integer.BYTES);
+      this.docids = Arrays.copyOf(this.docids, size);
+      this.tfs = Arrays.copyOf(this.tfs, size);
+      this.positionOffsets = Arrays.copyOf(this.positionOffsets, size);
+    }
+
+    System.arraycopy(list.docids, 0, this.docids, this.df, list.df);
+    System.arraycopy(list.tfs, 0, this.tfs, this.df, list.df);
+
+    //  Positions are delta encoded within each posting, so their bytes
+    //  are copied as they are, and only their offsets move.
+
+    for (int i = 0; i < list.df; i++) {
+      this.positionOffsets[this.df + i] =
+        this.positionBytesLength + list.positionOffsets[i];
+    }
+
+    if (this.hasPositions) {
+      this.positionBytes = ArrayUtil.grow(this.positionBytes,
+                                          this.positionBytesLength +
+                                          list.positionBytesLength);
+      System.arraycopy(list.positionBytes, 0, this.positionBytes,
+                       this.positionBytesLength, list.positionBytesLength);
+      this.positionBytesLength += list.positionBytesLength;
+    }
+
+    this.df = df;
+    this.ctf += list.ctf;
     return true;
   }
 
@@ -171,7 +324,106 @@ public class InvList {
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+    return this.docids[docid];
+  }
+
+  /**
+   *  Find the first posting, at or after the n'th, whose docid is at
+   *  least the specified docid.  A few postings are checked one at a
+   *  time, because intersections of lists with similar df usually
+   *  move a short distance; then the search gallops forward in steps
+   *  of 1, 2, 4, ... and does a binary search in the last step, so
+   *  skipping over m postings costs O(log m) instead of O(m).
+   *  @param n The index of the posting to start from.
+   *  @param docid An internal document id.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int n, int docid) {
+
+    if ((n >= this.df) || (this.docids[n] >= docid))
+      return n;
+
+    //  Short scan.
+
+    int end = Math.min(n + LINEAR_SCAN, this.df);
+
+    for (n++; n < end; n++)
+      if (this.docids[n] >= docid)
+        return n;
+
+    if (n >= this.df)
+      return n;
+
+    //  Gallop.  Invariant:  docids[lo] < docid.
+
+    int lo = n - 1;
+    int step = 1;
+
+    while ((step < this.df - lo) && (this.docids[lo + step] < docid)) {
+      lo += step;
+      step <<= 1;
+    }
+
+    //  Binary search.  docid is in (docids[lo], docids[hi]], or hi is df.
+
+    int hi = Math.min(lo + step, this.df);
+
+    while (lo + 1 < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Decode the positions of the n'th posting into a buffer.  The
+   *  buffer is replaced by a larger one if it is too small to hold
+   *  the positions, so callers must use the returned array.
+   *  @param n The index of the requested posting.
+   *  @param buffer An array that may be used to hold the positions.
+   *  @return An array whose first getTf(n) elements are the positions.
+   */
+  public int[] getPositions(int n, int[] buffer) {
+
+    if (! this.hasPositions)
+      throw new IllegalStateException("The inverted list has no positions.");
+
+    int tf = this.tfs[n];
+
+    if (buffer.length < tf)
+      buffer = new int[ArrayUtil.oversize(tf, Integer.BYTES)];
+
+    byte[] bytes = this.positionBytes;
+    int offset = this.positionOffsets[n];
+    int position = 0;
+
+    for (int i = 0; i < tf; i++) {
+      byte b = bytes[offset++];
+      int gap = b & 0x7F;
+
+      for (int shift = 7; b < 0; shift += 7) {
+        b = bytes[offset++];
+        gap |= (b & 0x7F) << shift;
+      }
+
+      position += gap;
+      buffer[i] = position;
+    }
+
+    return buffer;
+  }
+
+  /**
+   *  Does the list store positions?
+   *  @return False if the list stores only docids and term frequencies.
+   */
+  public boolean hasPositions() {
+    return this.hasPositions;
   }
 
   /**
@@ -180,7 +432,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
   /**
@@ -190,15 +442,37 @@ public class InvList {
 
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
+    int[] positions = new int[16];
+
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      if (! this.hasPositions) {
+        System.out.println();
+        continue;
+      }
+
+      positions = this.getPositions(i, positions);
+
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(positions[j] + " ");
       }
 
       System.out.println();
     }
   }
+
+  /**
+   *  Append a variable-byte encoded integer to positionBytes.  The
+   *  caller must ensure that there is room for 5 bytes.
+   *  @param value A non-negative integer.
+   */
+  private void writeVInt(int value) {
+    while ((value & ~0x7F) != 0) {
+      this.positionBytes[this.positionBytesLength++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    this.positionBytes[this.positionBytesLength++] = (byte) value;
+  }
 }
@@ -66,7 +66,7 @@ import java.util.*;
  *  query evaluation, which reduces computational efficiency.
  *  </p>
  */
-public abstract class Qry {
+public abstract class Qry implements Cloneable {
 
   //  --------------- Constants and variables ---------------------
 
@@ -99,6 +99,12 @@ public abstract class Qry {
    */
   private int docIteratorMatchCache = Qry.INVALID_DOCID;
   
+  /**
+   *  The order in which docIteratorFindMatchAll visits the arguments,
+   *  or null to visit them in argument order.  See {@link QryPlanner}.
+   */
+  private int[] argOrder = null;
+
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
@@ -124,6 +130,8 @@ public abstract class Qry {
         ("The TERM operator has no arguments.");
     }
 
+    this.argOrder = null;		// The arguments are changing
+
     //  SCORE operators can have only a single argument of type QryIop.
     
     if (this instanceof QrySopScore) {
@@ -182,6 +190,35 @@ public abstract class Qry {
        this.getClass().getName());
   }
 
+  /**
+   *  Copy an initialized query whose iterators haven't moved.  The
+   *  copy has its own iterators, so it can be evaluated at the same
+   *  time as the original, e.g., over a different range of docids
+   *  (see {@link QryEvaluatorParallel}).  Inverted lists and other
+   *  values that don't change during evaluation are shared.
+   *  @return The copy.
+   */
+  public Qry copyIterators () {
+
+    Qry copy;
+
+    try {
+      copy = (Qry) this.clone ();
+    } catch (CloneNotSupportedException ex) {
+      throw new IllegalStateException (ex);
+    }
+
+    copy.args = new ArrayList<Qry> (this.args.size ());
+
+    for (Qry q_i: this.args) {
+      copy.args.add (q_i.copyIterators ());
+    }
+
+    copy.docIteratorMatchCache = Qry.INVALID_DOCID;
+    copy.matchStored = false;
+    return copy;
+  }
+
   /**
    *  Advance the internal document iterator beyond the specified
    *  document.
@@ -249,7 +286,29 @@ public abstract class Qry {
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
 
+    int docid = this.docIteratorFindMatchAll (r);
+
+    if (docid == Qry.INVALID_DOCID) {
+      return false;
+    }
+
+    docIteratorSetMatchCache (docid);
+    return true;
+  }
+
+  /**
+   *  Advance the arguments' docIterators to the first document that
+   *  all of them match.  The arguments are visited in the order that
+   *  setArgOrder chose, so the first one drives the iteration and the
+   *  others skip to its documents.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal document id, or INVALID_DOCID if there are
+   *          no more documents that match all arguments.
+   */
+  protected int docIteratorFindMatchAll (RetrievalModel r) {
+
     boolean matchFound = false;
+    int docid_0 = Qry.INVALID_DOCID;
 
     // Keep trying until a match is found or no match is possible.
 
@@ -257,13 +316,13 @@ public abstract class Qry {
 
       // Get the docid of the first query argument.
       
-      Qry q_1st = this.args.get (0);
+      Qry q_1st = this.args.get (this.getArgOrder (0));
 
       if (! q_1st.docIteratorHasMatch (r)) {
-          return false;
+          return Qry.INVALID_DOCID;
       }
 
-      int docid_0 = q_1st.docIteratorGetMatch ();
+      docid_0 = q_1st.docIteratorGetMatch ();
 
       // Other query arguments must match the docid of the first query
       // argument.
@@ -271,12 +330,12 @@ public abstract class Qry {
       matchFound = true;
 
       for (int i=1; i<this.args.size(); i++) {
-          Qry q_i = this.args.get(i);
+          Qry q_i = this.args.get(this.getArgOrder (i));
 
           q_i.docIteratorAdvanceTo (docid_0);
 
           if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
-        	  return false;				// there are no more matches.
+        	  return Qry.INVALID_DOCID;		// there are no more matches.
           }
         
           int docid_i = q_i.docIteratorGetMatch ();
@@ -287,12 +346,9 @@ public abstract class Qry {
     	      break;
     	  }
       }
-          if (matchFound) {
-              docIteratorSetMatchCache (docid_0);
-          }
-      }
+    }
 
-      return true;
+    return docid_0;
   }
 
   /**
@@ -375,6 +431,15 @@ public abstract class Qry {
     return ((QryIop) this.args.get(i));
   }
 
+  /**
+   *  Get the argument that docIteratorFindMatchAll visits i'th.
+   *  @param i A position in the visiting order.
+   *  @return The index of the argument.
+   */
+  protected int getArgOrder (int i) {
+    return (this.argOrder == null) ? i : this.argOrder[i];
+  }
+
   /**
    *  Every operator has a display name that can be used by
    *  toString for debugging or other user feedback.  
@@ -399,8 +464,41 @@ public abstract class Qry {
    */
   public void removeArg (int i) {
     this.args.remove(i);
+    this.argOrder = null;
   };
 
+  /**
+   *  Set the order in which docIteratorFindMatchAll visits the
+   *  arguments.  The order affects only how fast matches are found,
+   *  not which documents match or how they are scored.
+   *  @param order A permutation of the argument indexes, or null to
+   *         visit the arguments in argument order.
+   *  @throws IllegalArgumentException order isn't a permutation of
+   *          the argument indexes.
+   */
+  public void setArgOrder (int[] order) {
+
+    if (order != null) {
+      boolean[] seen = new boolean[this.args.size ()];
+
+      if (order.length != seen.length) {
+        throw new IllegalArgumentException
+          ("The argument order has " + order.length + " elements; " +
+           seen.length + " were expected.");
+      }
+
+      for (int i : order) {
+        if ((i < 0) || (i >= seen.length) || seen[i]) {
+          throw new IllegalArgumentException
+            ("The argument order isn't a permutation of the arguments.");
+        }
+        seen[i] = true;
+      }
+    }
+
+    this.argOrder = order;
+  }
+
   /**
    *  Every operator must have a display name that can be used by
    *  toString for debugging or other user feedback.  
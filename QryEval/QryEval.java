@@ -9,6 +9,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -68,6 +69,7 @@ public class QryEval {
 
     Idx.open (parameters.get ("indexPath"));
     RetrievalModel model = initializeRetrievalModel (parameters);
+    QueryBatchExecutor executor = QueryBatchExecutor.fromParameters (parameters);
 
     //  Perform experiments.
     // if feedback(fb) is missing from the parameter file or fb is set to false, use
@@ -75,7 +77,7 @@ public class QryEval {
 //    System.out.println("fb: " + parameters.get("fb"));
     if (!parameters.containsKey("fb") || parameters.get("fb").equals("false")) {
         processQueryFile(parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), 
-                parameters.get("trecEvalOutputLength"), model);
+                parameters.get("trecEvalOutputLength"), model, executor);
     } else {
         // query expansion.
         String initialDocFile = null;
@@ -96,7 +98,7 @@ public class QryEval {
         int fbMu = Integer.parseInt(parameters.get("fbMu"));
         ArrayList<String> expandedQuery = queryExpansion(fbExpansionQueryFile, fbTerms, fbMu, fbOrigWeight, initialDocs, queryID);
         processExpandedQuery(parameters.get("queryFilePath"), expandedQuery, parameters.get("trecEvalOutputPath"), 
-                parameters.get("trecEvalOutputLength"), model, fbOrigWeight);
+                parameters.get("trecEvalOutputLength"), model, fbOrigWeight, executor);
     }
     
 
@@ -246,6 +248,8 @@ public class QryEval {
       throw new IllegalArgumentException
         ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
     }
+
+    model.setEvaluationOptions (parameters);
       
     return model;
   }
@@ -270,7 +274,7 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query and keep every matching document.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
    * @return Search results
@@ -278,6 +282,20 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, model, 0);
+  }
+
+  /**
+   * Process one query.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return, or 0 to return every
+   *          matching document.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
 //      System.out.println("processQuery:: query: " + qString);
 
     String defaultOp = model.defaultQrySopName ();
@@ -290,12 +308,33 @@ public class QryEval {
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
+      //  Only the top k documents are kept, unless the caller asks
+      //  for all of them.
+
+      ScoreList r = null;
+      TopKCollector topK = null;
+
+      if (k > 0) {
+        topK = new TopKCollector (model.getIndexContext (), k);
+      } else {
+        r = new ScoreList (model.getIndexContext ());
+      }
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
+        //  Choose the order in which conjunctive operators visit their
+        //  arguments, so that rare arguments drive the iteration.
+
+        QryPlanner.plan (q, model);
         q.initialize (model);
 
+        //  The evaluator may skip documents that can't enter the top k.
+
+        if (topK != null) {
+          QryEvaluator.forQuery (q, model).evaluate ((QrySop) q, model, topK);
+          return topK.getScoreList ();
+        }
+
 //        System.out.println("QryIval processQuery");
         while (q.docIteratorHasMatch (model)) {
           int docid = q.docIteratorGetMatch ();   // QryIop
@@ -305,6 +344,11 @@ public class QryEval {
           q.docIteratorAdvancePast (docid);
         }
       }
+
+      if (topK != null) {
+        return topK.getScoreList ();
+      }
+
       // changed. add sort method.
       r.sort();
 
@@ -331,7 +375,7 @@ public class QryEval {
               queries.add(qid);
               
               ScoreList r = null;
-              r = processQuery(query, model);
+              r = processQuery(query, model, fbDocs);
               
               if (r != null) {
                   int count = 0;
@@ -354,15 +398,18 @@ public class QryEval {
   }
   
   static void processExpandedQuery(String queryFilePath, ArrayList<String> expandedQuery, String trecEvalOutputPath, String trecEvalOutputLength, 
-          RetrievalModel model, double fbOrigWeight) throws IOException {
+          RetrievalModel model, double fbOrigWeight, QueryBatchExecutor executor) throws IOException {
       BufferedReader input = null;
       int index = 0;        // fetch ith expanded query composed of expanded terms
+      int outputLength = Integer.parseInt(trecEvalOutputLength);
+      List<String> qids = new ArrayList<String>();
+      List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
 
       try {
         String qLine = null;
         input = new BufferedReader(new FileReader(queryFilePath));
 
-        //  Each pass of the loop processes one query.
+        //  Each pass of the loop prepares one query.
         while ((qLine = input.readLine()) != null) {
           int d = qLine.indexOf(':');
 
@@ -370,8 +417,6 @@ public class QryEval {
             throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
           }
 
-          printMemoryUsage(false);
-
           // obtain the expanded query
           String qid = qLine.substring(0, d);
           String query = qLine.substring(d + 1);
@@ -389,16 +434,21 @@ public class QryEval {
           String expandedQ = sb.toString();
 //          System.out.println("processExpandedQuery:: expanded query: " + qid + " " + expandedQ);
 
-          ScoreList r = null;
+          qids.add(qid);
+          tasks.add(() -> processQuery(expandedQ, model, outputLength));
+          index++;
+        }
 
-          r = processQuery(expandedQ, model);
+        //  The queries are evaluated by the executor; results are
+        //  printed in input order.
+        executor.run(qids, tasks, (n, r) -> {
+          printMemoryUsage(false);
 
           if (r != null) {
-            printResults(qid, r, trecEvalOutputLength, trecEvalOutputPath);
+            printResults(qids.get(n), r, trecEvalOutputLength, trecEvalOutputPath);
             System.out.println();
           }
-          index++;
-        }
+        });
       } catch (IOException ex) {
         ex.printStackTrace();
       } finally {
@@ -410,21 +460,26 @@ public class QryEval {
    *  Process the query file.
    *  @param queryFilePath
    *  @param model
+   *  @param executor Evaluates the queries.
    *  @throws IOException Error accessing the Lucene index.
    */
   // changed. The original one is static void processQF(String queryFilePath, RM model)
   static void processQueryFile(String queryFilePath, String trecEvalOutputPath, String trecEvalOutputLength, 
-                               RetrievalModel model)
+                               RetrievalModel model, QueryBatchExecutor executor)
       throws IOException {
 
     BufferedReader input = null;
+    List<String> qids = new ArrayList<String>();
+    List<String> qLines = new ArrayList<String>();
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
+    int outputLength = Integer.parseInt(trecEvalOutputLength);
 
     try {
       String qLine = null;
 
       input = new BufferedReader(new FileReader(queryFilePath));
 
-      //  Each pass of the loop processes one query.
+      //  Each pass of the loop prepares one query.
 
       while ((qLine = input.readLine()) != null) {
         int d = qLine.indexOf(':');
@@ -434,23 +489,27 @@ public class QryEval {
             ("Syntax error:  Missing ':' in query line.");
         }
 
-        printMemoryUsage(false);
-
         String qid = qLine.substring(0, d);
         String query = qLine.substring(d + 1);
 
-        System.out.println("Query " + qLine);
+        qids.add(qid);
+        qLines.add(qLine);
+        tasks.add(() -> processQuery(query, model, outputLength));
+      }
+
+      //  The queries are evaluated by the executor; results are
+      //  printed in input order.
 
-        ScoreList r = null;
+      executor.run(qids, tasks, (n, r) -> {
+        printMemoryUsage(false);
 
-//        System.out.println("query: " + query);
-        r = processQuery(query, model);
+        System.out.println("Query " + qLines.get(n));
 
         if (r != null) {
-          printResults(qid, r, trecEvalOutputLength, trecEvalOutputPath);
+          printResults(qids.get(n), r, trecEvalOutputLength, trecEvalOutputPath);
           System.out.println();
         }
-      }
+      });
     } catch (IOException ex) {
       ex.printStackTrace();
     } finally {
@@ -506,17 +565,28 @@ public class QryEval {
           throw new IllegalArgumentException("Cannot read " + fbInitialRankingFile);
       }
       
-      int prevId = 0;
-      int n = 0;
+      // Read the whole file first so that the external ids can be
+      // resolved in one batch.
+      List<String[]> lines = new ArrayList<String[]>();
+      List<String> externalIds = new ArrayList<String>();
       Scanner scan = new Scanner(initialFile);
       String line = null;
       do {
           line = scan.nextLine();
 //          System.out.println(line);
           String[] docInfo = line.split(" +");
+          lines.add(docInfo);
+          externalIds.add(docInfo[2]);
+      } while(scan.hasNext());
+      scan.close();
+      Map<String, Integer> internalIds = Idx.getInternalDocids(externalIds);
+
+      int prevId = 0;
+      int n = 0;
+      for (String[] docInfo : lines) {
           int queryId = Integer.parseInt(docInfo[0]);
 //          String exDocId = docInfo[2];
-          int docId = Idx.getInternalDocid(docInfo[2]);
+          int docId = internalIds.get(docInfo[2]);
           double score = Double.parseDouble(docInfo[4]);
 //          System.out.println("queryId: " + queryId + " exDocId: " + docId + " score: " + score);
           
@@ -531,9 +601,8 @@ public class QryEval {
               docs.add(new DocScore(docId, score));
               n++;
           }
-      } while(scan.hasNext());
+      }
       
-      scan.close();
       return initialDocs;
   }
   /**
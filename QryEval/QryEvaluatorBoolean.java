@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  An evaluator for the Boolean retrieval models that computes the
+ *  documents that a query matches with set operations instead of
+ *  document-at-a-time iterators.  Each SCORE operator's postings
+ *  become a {@link DocSet}, #AND intersects its arguments' sets and
+ *  #OR unites them, and the query's set is collected.  Sets keep the
+ *  term frequencies of RankedBoolean queries, and their minimum and
+ *  maximum, so documents get the same scores as they do from the
+ *  default evaluator.
+ *  <p>
+ *  The retrieval model's booleanBitsets parameter chooses this
+ *  evaluator.  Queries that have other score operators are evaluated
+ *  by the default evaluator.
+ *  </p>
+ */
+public class QryEvaluatorBoolean extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    if (! isSetQuery (q)) {
+      new QryEvaluatorDaat ().evaluate (q, r, topK);
+      return;
+    }
+
+    boolean scored = (r instanceof RetrievalModelRankedBoolean);
+    int maxDoc = r.getIndexStats ().maxDoc;
+
+    getDocSet (q, scored, maxDoc).collect (topK);
+  }
+
+  /**
+   *  True if a query operator and its descendants can be evaluated
+   *  as sets.
+   */
+  private static boolean isSetQuery (Qry q) {
+
+    if (q instanceof QrySopScore) {
+      return true;
+    }
+
+    if (! ((q instanceof QrySopAnd) || (q instanceof QrySopOr)) ||
+        (q.args.size () == 0)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! isSetQuery (q_i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Get the documents that a query operator matches.
+   *  @param q The query operator.
+   *  @param scored True if the documents' RankedBoolean scores are kept.
+   *  @param maxDoc The number of docids in the index.
+   *  @return The documents.
+   */
+  private static DocSet getDocSet (Qry q, boolean scored, int maxDoc) {
+
+    if (q instanceof QrySopScore) {
+      return getPostings ((QryIop) q.args.get (0), scored, maxDoc);
+    }
+
+    DocSet[] sets = new DocSet[q.args.size ()];
+
+    for (int i = 0; i < sets.length; i++) {
+      sets[i] = getDocSet (q.args.get (i), scored, maxDoc);
+    }
+
+    return (q instanceof QrySopAnd) ? DocSet.and (sets) : DocSet.or (sets);
+  }
+
+  /**
+   *  Get the documents of an initialized QryIop operator's postings,
+   *  scored by their term frequencies.  Cached inverted lists are
+   *  read directly; streaming operators are read by their docIterator.
+   */
+  private static DocSet getPostings (QryIop q, boolean scored, int maxDoc) {
+
+    InvList list = q.invertedList;
+
+    if (list != null) {
+      int[] docids = new int[list.df];
+      int[] tfs = scored ? new int[list.df] : null;
+
+      for (int i = 0; i < list.df; i++) {
+        docids[i] = list.getDocid (i);
+
+        if (scored) {
+          tfs[i] = list.getTf (i);
+        }
+      }
+
+      return DocSet.of (maxDoc, docids, tfs, list.df);
+    }
+
+    int[] docids = new int[Math.max (16, q.getDf ())];
+    int[] tfs = scored ? new int[docids.length] : null;
+    int size = 0;
+
+    while (q.docIteratorHasMatch (null)) {
+      int docid = q.docIteratorGetMatch ();
+
+      if (size == docids.length) {
+        docids = Arrays.copyOf (docids, 2 * size);
+
+        if (scored) {
+          tfs = Arrays.copyOf (tfs, 2 * size);
+        }
+      }
+
+      docids[size] = docid;
+
+      if (scored) {
+        tfs[size] = q.docIteratorGetMatchTf ();
+      }
+
+      size ++;
+      q.docIteratorAdvancePast (docid);
+    }
+
+    return DocSet.of (maxDoc, docids, tfs, size);
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  An evaluator that scores every document that the query matches,
+ *  as the default evaluator does, with a {@link CompiledQuery}.
+ *  Queries that can't be compiled are evaluated by the default
+ *  evaluator.
+ */
+public class QryEvaluatorCompiled extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    CompiledQuery c = CompiledQuery.compile (q, r);
+
+    if (c == null) {
+      new QryEvaluatorDaat ().evaluate (q, r, topK);
+      return;
+    }
+
+    c.evaluate (topK);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The MaxScore evaluator for #SUM queries.  The arguments are sorted
+ *  by score bound.  The arguments with the smallest bounds are
+ *  <i>non-essential</i> while their bounds add up to less than the
+ *  top-k threshold:  a document that matches only non-essential
+ *  arguments can't enter the top k.  Candidates come from the
+ *  essential arguments, and the non-essential arguments are checked,
+ *  largest bound first, only while the candidate can still enter the
+ *  top k.
+ */
+public class QryEvaluatorMaxScore extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    double[] bounds = getArgBounds (q, r);
+
+    if (bounds == null) {
+      new QryEvaluatorDaat ().evaluate (q, r, topK);
+      return;
+    }
+
+    int n = bounds.length;
+    int[] docs = new int[n];
+    double[] scores = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      docs[i] = docid (q.args.get (i), r);
+    }
+
+    //  Sort the arguments by bound.  prefix[j] bounds the score of a
+    //  document that matches only arguments order[0..j].
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, (a, b) -> Double.compare (bounds[a], bounds[b]));
+
+    int[] order = new int[n];
+    double[] prefix = new double[n];
+    double sum = 0;
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      sum += bounds[order[j]];
+      prefix[j] = sum;
+    }
+
+    int firstEssential = 0;
+
+    while (true) {
+
+      //  The threshold only rises, so arguments only become
+      //  non-essential.
+
+      double threshold = topK.getThreshold ();
+
+      while ((firstEssential < n) &&
+             belowThreshold (prefix[firstEssential], threshold)) {
+        firstEssential ++;
+      }
+
+      if (firstEssential == n) {
+        break;				// No document can enter the top k
+      }
+
+      //  The candidate is the next document of an essential argument.
+
+      int candidate = NO_MORE_DOCS;
+
+      for (int j = firstEssential; j < n; j++) {
+        candidate = Math.min (candidate, docs[order[j]]);
+      }
+
+      if (candidate == NO_MORE_DOCS) {
+        break;
+      }
+
+      double score = 0;
+
+      for (int j = firstEssential; j < n; j++) {
+        if (docs[order[j]] == candidate) {
+          scores[order[j]] = ((QrySop) q.args.get (order[j])).getScore (r);
+          score += scores[order[j]];
+        }
+      }
+
+      //  Check the non-essential arguments while the candidate can
+      //  still enter the top k.
+
+      boolean competitive = true;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (belowThreshold (score + prefix[j], threshold)) {
+          competitive = false;
+          break;
+        }
+
+        int i = order[j];
+        Qry q_i = q.args.get (i);
+
+        if (docs[i] < candidate) {
+          q_i.docIteratorAdvanceTo (candidate);
+          docs[i] = docid (q_i, r);
+        }
+
+        if (docs[i] == candidate) {
+          scores[i] = ((QrySop) q_i).getScore (r);
+          score += scores[i];
+        }
+      }
+
+      if (competitive) {
+        topK.collect (candidate, sumScores (docs, scores, candidate));
+      }
+
+      for (int j = firstEssential; j < n; j++) {
+        if (docs[order[j]] == candidate) {
+          Qry q_i = q.args.get (order[j]);
+          q_i.docIteratorAdvancePast (candidate);
+          docs[order[j]] = docid (q_i, r);
+        }
+      }
+    }
+  }
+}
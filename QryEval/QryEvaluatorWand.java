@@ -0,0 +1,99 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  The WAND evaluator for #SUM queries.  The arguments are kept in
+ *  docid order.  The <i>pivot</i> is the first argument at which the
+ *  sum of the score bounds of the arguments up to it reaches the
+ *  top-k threshold; a document before the pivot's document can only
+ *  match arguments whose bounds add up to less than the threshold,
+ *  so those arguments skip ahead to the pivot's document.  A document
+ *  is scored only when every argument before the pivot matches it.
+ */
+public class QryEvaluatorWand extends QryEvaluator {
+
+  /**
+   *  Evaluate an initialized query and collect its top k documents.
+   *  @param q The query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the top k documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void evaluate (QrySop q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    double[] bounds = getArgBounds (q, r);
+
+    if (bounds == null) {
+      new QryEvaluatorDaat ().evaluate (q, r, topK);
+      return;
+    }
+
+    int n = bounds.length;
+    int[] docs = new int[n];
+    double[] scores = new double[n];
+    int[] order = new int[n];		// Arguments, in docid order
+
+    for (int i = 0; i < n; i++) {
+      docs[i] = docid (q.args.get (i), r);
+      order[i] = i;
+    }
+
+    sortByDocid (order, docs);
+
+    while (true) {
+
+      //  Find the pivot.
+
+      double threshold = topK.getThreshold ();
+      double bound = 0;
+      int pivot = -1;
+
+      for (int p = 0; (p < n) && (docs[order[p]] != NO_MORE_DOCS); p++) {
+        bound += bounds[order[p]];
+
+        if (! belowThreshold (bound, threshold)) {
+          pivot = p;
+          break;
+        }
+      }
+
+      if (pivot < 0) {
+        break;				// No document can enter the top k
+      }
+
+      int pivotDoc = docs[order[pivot]];
+
+      if (docs[order[0]] == pivotDoc) {
+
+        //  Every argument before the pivot matches pivotDoc, so score it.
+
+        for (int p = 0; (p < n) && (docs[order[p]] == pivotDoc); p++) {
+          scores[order[p]] = ((QrySop) q.args.get (order[p])).getScore (r);
+        }
+
+        topK.collect (pivotDoc, sumScores (docs, scores, pivotDoc));
+
+        for (int p = 0; (p < n) && (docs[order[p]] == pivotDoc); p++) {
+          Qry q_i = q.args.get (order[p]);
+          q_i.docIteratorAdvancePast (pivotDoc);
+          docs[order[p]] = docid (q_i, r);
+        }
+      } else {
+
+        //  Skip the arguments before the pivot to pivotDoc.
+
+        for (int p = 0; docs[order[p]] < pivotDoc; p++) {
+          Qry q_i = q.args.get (order[p]);
+          q_i.docIteratorAdvanceTo (pivotDoc);
+          docs[order[p]] = docid (q_i, r);
+        }
+      }
+
+      sortByDocid (order, docs);
+    }
+  }
+}
@@ -4,6 +4,11 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
@@ -16,6 +21,24 @@ public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  In streaming mode, the Lucene postings that the docIterator
+   *  reads, one index segment (leaf) at a time.  postings is null
+   *  until the docIterator reaches the leaf, and if the leaf doesn't
+   *  have the term.
+   */
+  private LeafPostings leaves = null;
+  private BytesRef termBytes = null;
+  private int leaf = 0;
+  private int leafDocBase = 0;
+  private int leafDocEnd = 0;		// The next leaf's docBase
+  private PostingsEnum postings = null;
+
+  /**
+   *  The index that the term is evaluated against.
+   */
+  private IndexContext context = null;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -41,7 +64,168 @@ public class QryIopTerm extends QryIop {
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    if (! this.streaming) {
+      this.invertedList =
+        new InvList(this.term, this.field, this.context, this.positionsNeeded);
+      return;
+    }
+
+    //  Streaming mode.  The statistics come from the term dictionary,
+    //  and the postings are read as the docIterator advances, which
+    //  lets Lucene use its skip data in docIteratorAdvanceTo.
+
+    this.termBytes = new BytesRef (this.term);
+    Term t = new Term (this.field, this.termBytes);
+
+    IndexReader reader = this.context.getIndexReader ();
+
+    this.streamDf = reader.docFreq (t);
+    this.streamCtf = (int) reader.totalTermFreq (t);
+    this.leaves = this.context.getLeafPostings ();
+    this.leaf = (this.streamDf > 0) ? -1 : this.leaves.size ();
+    this.nextLeaf ();
+
+    this.streamDocid = -1;
+    this.streamAdvanceTo (0);
+  }
+
+  /**
+   *  Copy an initialized term whose iterators haven't moved.  A
+   *  streaming copy opens its own postings when it is advanced.
+   *  @return The copy.
+   */
+  public Qry copyIterators () {
+
+    QryIopTerm copy = (QryIopTerm) super.copyIterators ();
+
+    if (this.streaming) {
+      copy.leaves = this.context.getLeafPostings ();
+      copy.leaf = (this.streamDf > 0) ? -1 : copy.leaves.size ();
+      copy.nextLeaf ();
+    }
+
+    return copy;
+  }
+
+  /**
+   *  Move the streaming docIterator to the next leaf.  Its postings
+   *  are opened when the docIterator needs them.
+   */
+  private void nextLeaf () {
+
+    this.leaf ++;
+    this.postings = null;
+
+    if (this.leaf < this.leaves.size ()) {
+      this.leafDocBase = this.leaves.getDocBase (this.leaf);
+      this.leafDocEnd = (this.leaf + 1 < this.leaves.size ()) ?
+        this.leaves.getDocBase (this.leaf + 1) : Integer.MAX_VALUE;
+    }
+  }
+
+  /**
+   *  Get the impact statistics of the term, which the index context
+   *  caches across queries.
+   *  @param context The index that the term was initialized with.
+   *  @return The impact statistics of the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ImpactStats getImpactStats (IndexContext context) throws IOException {
+    return context.getImpactStats (this.field, this.term);
+  }
+
+  /**
+   *  Get the blocks of the term's postings in the index's block-max
+   *  table.
+   *  @param context The index that the term was initialized with.
+   *  @return The blocks, or null if the postings are a single block.
+   */
+  public BlockMaxIndex.TermBlocks getTermBlocks (IndexContext context) {
+    BlockMaxIndex blockMax = context.getBlockMaxIndex ();
+    return (blockMax == null) ? null : blockMax.getTermBlocks (this.field, this.term);
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Initialize the query operator, including its internal iterators.
+   *  The retrieval model determines whether the term streams its
+   *  postings or caches a full inverted list.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+    this.streaming = (r != null) && r.streamingPostings;
+    this.context = (r != null) ? r.getIndexContext () : Idx.getIndexContext ();
+    super.initialize (r);
+  }
+
+  /**
+   *  Move the Lucene postings to the first document whose docid is at
+   *  least the specified docid.  Leaves that end before the docid
+   *  are skipped without reading their postings.  Positions are not
+   *  read.
+   *  @param docid The document's internal document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void streamAdvanceTo (int docid) throws IOException {
+
+    while (this.leaf < this.leaves.size ()) {
+
+      if (docid < this.leafDocEnd) {
+        if (this.postings == null) {
+          this.postings =
+            this.leaves.newPostings (this.leaf, this.field, this.termBytes, null,
+                                     this.positionsNeeded ?
+                                     PostingsEnum.POSITIONS : PostingsEnum.FREQS);
+        }
+
+        if (this.postings != null) {
+          int d = this.postings.advance (Math.max (0, docid - this.leafDocBase));
+
+          if (d != DocIdSetIterator.NO_MORE_DOCS) {
+            this.streamDocid = this.leafDocBase + d;
+            this.streamTf = this.postings.freq ();
+            return;
+          }
+        }
+      }
+
+      this.nextLeaf ();
+    }
+
+    this.streamDocid = QryIop.STREAM_EXHAUSTED;
+  }
+
+  /**
+   *  Read the positions of the current document from the Lucene
+   *  postings.
+   *  @param buffer An array that may be used to hold the positions.
+   *  @return An array whose first streamTf elements are the positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected int[] streamGetPositions (int[] buffer) throws IOException {
+
+    if (! this.positionsNeeded) {
+      throw new IllegalStateException ("The postings have no positions.");
+    }
+
+    if (buffer.length < this.streamTf) {
+      buffer = new int[ArrayUtil.oversize (this.streamTf, Integer.BYTES)];
+    }
+
+    for (int i = 0; i < this.streamTf; i++) {
+      buffer[i] = this.postings.nextPosition ();
+    }
+
+    return buffer;
   }
 
   /**
@@ -1,120 +1,166 @@
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 public class QryIopWindow extends QryIop {
 
     private int distance;
+
+    /**
+     *  The locations that matchLocations found in the current document.
+     */
+    private int[] locations = new int[16];
+
+    private PositionHeap heap = new PositionHeap();
     
     QryIopWindow(int distance) {
         this.distance = distance;
     }
     
+    /**
+     *  Initialize the operator and its arguments.  With streaming
+     *  postings, the operator finds its matches lazily, as #NEAR does,
+     *  if nothing needs its df and ctf.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        this.streaming = (r != null) && r.streamingPostings &&
+            (this.nestedArgument || !r.usesTermStatistics());
+        super.initialize(r);
+    }
+
     @Override
     protected void evaluate() throws IOException {
         // TODO Auto-generated method stub
-        this.invertedList = new InvList();
-        if (this.args.size() == 0) {
+        if (this.streaming) {
+            this.streamDf = -1;         // Unknown
+            this.streamCtf = -1;
+            this.streamDocid = -1;
+            this.streamAdvanceTo(0);
             return;
         }
-        
+        this.invertedList = this.evaluateRange(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     *  Evaluate the operator for the documents in a range of docids.
+     *  @param start The first docid of the range.
+     *  @param end One past the last docid of the range.
+     *  @return An inverted list of the range's postings.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    protected InvList evaluateRange(int start, int end) throws IOException {
+        InvList result = new InvList();
+        if (this.args.size() == 0) {
+            return result;
+        }
+        for (Qry q_i : this.args) {
+            q_i.docIteratorAdvanceTo(start);
+        }
+
         while (true) {
-            // find the min docId
-            int minDocId = Integer.MAX_VALUE;
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null)) {
-                    int docId = q_i.docIteratorGetMatch();
-                    minDocId = Math.min(minDocId, docId);
-                }
-            }
-            if (minDocId == Integer.MAX_VALUE) {
+            // Find the next document that every argument matches. The
+            // arguments are checked in the order that the planner chose,
+            // which lets a rare argument skip over a frequent one's list.
+            int minDocId = this.docIteratorFindMatchAll(null);
+            if ((minDocId == Qry.INVALID_DOCID) || (minDocId >= end)) {
                 break;
             }
-//            System.out.println("minDocId: " + minDocId);
-            boolean isSameDoc = true;
-            int minQueryIndex = Integer.MIN_VALUE;
-            for (int i = 0; i < this.args.size(); i++) {
-                Qry q_i = this.args.get(i);
-                if (q_i.docIteratorHasMatch(null)) {
-                    if (q_i.docIteratorGetMatch() != minDocId) {
-                        isSameDoc = false;
-                    } else {
-                        minQueryIndex = i;
-                    }
-                } else {
-                    isSameDoc = false;
-                    break;
-                }
-            }
-            if (minQueryIndex == Integer.MIN_VALUE) {
-                break;
+
+            // same document, deal with position requirements.
+            int count = this.matchLocations();
+            if (count > 0) {
+                result.appendPosting(minDocId, this.locations, count);
             }
             
-            if (!isSameDoc) {
-                this.args.get(minQueryIndex).docIteratorAdvancePast(minDocId);
-            } else {
-                // same document, deal with position requirements.
-                List<Integer> positions = new ArrayList<Integer>();
-                boolean isEnd = false;
-                while (!isEnd) {
-                    boolean isMatched = false;
-                    int maxLoc = 0;
-                    int minLoc = Integer.MAX_VALUE;
-                    int minLocIndex = Integer.MIN_VALUE;
-                    
-                    for (int i = 0; i < this.args.size(); i++) {
-                        QryIop query = (QryIop)this.args.get(i);
-                        if (query.locIteratorHasMatch()) {
-                            int position = query.locIteratorGetMatch();
-                            maxLoc = Math.max(maxLoc, position);
-                            if (position < minLoc) {
-                                minLoc = position;
-                                minLocIndex = i;
-                            }
+            for (Qry q_i : this.args) {
+                ((QryIop)q_i).docIteratorAdvancePast(minDocId);
+            }
+        }
+        return result;
+    }
 
-                            if (maxLoc - minLoc >= distance) {
-                                // do not match. Advance the iterator of the minimum location.
-                                ((QryIop)this.args.get(minLocIndex)).locIteratorAdvance();
-                                if (!((QryIop)this.args.get(minLocIndex)).locIteratorHasMatch()) {
-                                    isEnd = true;
-                                }
-                                isMatched = false;
-                                break;
-                            } else {
-                                // match.
-                                isMatched = true;
-                            }
+    /**
+     *  Copy an initialized operator whose iterators haven't moved.
+     *  The copy finds locations with its own buffer and heap.
+     *  @return The copy.
+     */
+    @Override
+    public Qry copyIterators() {
+        QryIopWindow copy = (QryIopWindow) super.copyIterators();
+        copy.locations = new int[this.locations.length];
+        copy.heap = new PositionHeap();
+        return copy;
+    }
 
-                        } else {
-                            isEnd = true;
-                            isMatched = false;
-                        }
-                    }
-                    
-                    if (isMatched) {
-//                        System.out.println("min loc: " + minLoc + " max loc: " + maxLoc);
-                        positions.add(maxLoc);
-//                        System.out.println();
-                        for (Qry q_i : this.args) {
-                            ((QryIop)q_i).locIteratorAdvance();
-                            if (!((QryIop)q_i).locIteratorHasMatch()) {
-                                isEnd = true;
-                            }
-                        }
-                    }
-//                    System.out.println("positions are: " + Arrays.toString(positions.toArray()));
-                     
-                }
-                if (!positions.isEmpty()) {
-                    this.invertedList.appendPosting(minDocId, positions);
-                }
-                
-                for (Qry q_i : this.args) {
-                    ((QryIop)q_i).docIteratorAdvancePast(minDocId);
-                }
+    /**
+     *  In streaming mode, find the next document that every argument
+     *  matches within the window, starting at the specified docid.
+     *  @param docid The document's internal document id
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    protected void streamAdvanceTo(int docid) throws IOException {
+        if (this.args.size() == 0) {
+            this.streamDocid = QryIop.STREAM_EXHAUSTED;
+            return;
+        }
+        for (Qry q_i : this.args) {
+            q_i.docIteratorAdvanceTo(docid);
+        }
+        while (true) {
+            int minDocId = this.docIteratorFindMatchAll(null);
+            if (minDocId == Qry.INVALID_DOCID) {
+                this.streamDocid = QryIop.STREAM_EXHAUSTED;
+                return;
+            }
+            int count = this.matchLocations();
+            if (count > 0) {
+                this.streamDocid = minDocId;
+                this.streamTf = count;
+                return;
             }
+            for (Qry q_i : this.args) {
+                q_i.docIteratorAdvancePast(minDocId);
+            }
+        }
+    }
+
+    /**
+     *  In streaming mode, get the locations of the current document,
+     *  which matchLocations found when the document was matched.
+     *  @param buffer An array that may be used to hold the positions.
+     *  @return An array whose first streamTf elements are the positions.
+     */
+    @Override
+    protected int[] streamGetPositions(int[] buffer) {
+        if (buffer.length < this.streamTf) {
+            buffer = new int[this.locations.length];
+        }
+        System.arraycopy(this.locations, 0, buffer, 0, this.streamTf);
+        return buffer;
+    }
+
+    /**
+     *  Find the locations where the arguments match within the window
+     *  in the document that every argument matches now.  The
+     *  arguments' position lists are merged by a PositionHeap, which
+     *  finds the argument with the minimum location in O(log k) time.
+     *  @return The number of locations, which are stored in locations.
+     */
+    private int matchLocations() {
+        this.heap.clear();
+        for (Qry q_i : this.args) {
+            QryIop query = (QryIop)q_i;
+            this.heap.add(query.docIteratorGetMatchPositions(),
+                query.docIteratorGetMatchTf());
+        }
+        int minTf = this.heap.getMinLength();
+        if (this.locations.length < minTf) {
+            this.locations = new int[2 * minTf];
         }
-        
+        return this.heap.window(this.distance, this.locations);
     }
 
 }
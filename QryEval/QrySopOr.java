@@ -83,12 +83,16 @@ public class QrySopOr extends QrySop {
 public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
     // TODO Auto-generated method stub
     if (r instanceof RetrievalModelIndri) {
-        double score = 1.0;
+        double score = this.getCachedDefaultScore(docid);
+        if (!Double.isNaN(score)) {
+            return score;
+        }
+        score = 1.0;
         for (Qry q_i : this.args) {
             score = score * (1 - ((QrySop)q_i).getDefaultScore(r, docid));
         }
         score = 1 - score;
-        return score;
+        return this.cacheDefaultScore(score);
     }
     return 0.0;
 }
@@ -3,7 +3,6 @@
  */
 
 import java.io.*;
-import java.lang.IllegalArgumentException;
 
 /**
  *  The SCORE operator for all retrieval models.
@@ -12,9 +11,16 @@ public class QrySopScore extends QrySop {
 
   /**
    *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  The retrieval model's scorer holds those of the argument.
    */
-  
+  private TermScorer scorer;
+
+  /**
+   *  The argument, and the index that it was initialized with.
+   */
+  private QryIop arg;
+  private IndexContext context;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -32,130 +38,119 @@ public class QrySopScore extends QrySop {
    */
   public double getScore (RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
-    }
-    else if (r instanceof RetrievalModelRankedBoolean) {
-        return this.getScoreRankedBoolean(r);
-    } else if (r instanceof RetrievalModelBM25) {
-        return this.getScoreBM25(r);
-    } else if (r instanceof RetrievalModelIndri) {
-        return this.getScoreIndri(r);
-    }
-    else {
-      throw new IllegalArgumentException
-        (r.getClass().getName() + " doesn't support the SCORE operator.");
+    if (! this.docIteratorHasMatchCache ()) {
+      return 0.0;
     }
+
+    return this.scorer.getScore (this.docIteratorGetMatch (),
+                                 this.arg.docIteratorGetMatchTf ());
   }
-  
+
   /**
-   *  getScore for the Unranked retrieval model.
+   *  Get a default score for a document that the argument doesn't
+   *  match.  Only some retrieval models (e.g., Indri) have them.
    *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal document id.
    *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  @throws IOException Error accessing the Lucene index.
    */
-  public double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-        return 1.0;
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return this.scorer.getDefaultScore ((int) docid);
+  }
+
+  /**
+   *  Get an upper bound on the score of any document, from the
+   *  argument's impact statistics.  For BM25, the bound is the RSJ
+   *  weight times the largest tf weight that the statistics allow.
+   *  For Indri, it is the score of a document that has the largest tf
+   *  and the smallest length.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The bound, or +Infinity if the model isn't supported.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+
+    ImpactStats impacts = this.arg.getImpactStats (this.context);
+
+    if (impacts == null) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    return this.scorer.getMaxScore (impacts.maxTf, impacts.maxTfRatio,
+                                    impacts.minLength);
+  }
+
+  /**
+   *  Get the score bounds of the blocks of the argument's postings in
+   *  the index's block-max table.  Each block's bound is computed from
+   *  its statistics the same way as getMaxScore.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The block bounds, with a cursor at the first block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public BlockMaxScores getBlockMaxScores (RetrievalModel r) throws IOException {
+
+    BlockMaxIndex.TermBlocks blocks = this.arg.getTermBlocks (this.context);
+
+    if (blocks == null) {
+      return super.getBlockMaxScores (r);
     }
+
+    int[] lastDocids = new int[blocks.size ()];
+    double[] maxScores = new double[blocks.size ()];
+
+    for (int i = 0; i < lastDocids.length; i++) {
+      lastDocids[i] = blocks.getLastDocid (i);
+      maxScores[i] = this.scorer.getMaxScore (blocks.getMaxTf (i),
+                                              blocks.getMaxTfRatio (i),
+                                              blocks.getMinLength (i));
+    }
+
+    return new BlockMaxScores (lastDocids, maxScores);
   }
-  
-  public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-      if (!this.docIteratorHasMatchCache()) {
-          return 0.0;
-      } else {
-          
-          InvList.DocPosting postings = ((QryIop)this.args.get(0)).docIteratorGetMatchPosting();
-          double score = postings.tf;
-//          System.out.println(this.args.get(0).toString() + "  " + score);
-          return score;
-      }
+
+  /**
+   *  Get an upper bound on the default score of any document.  For
+   *  Indri, the bound is the default score of an empty document.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The bound, or +Infinity if the model isn't supported.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getMaxDefaultScore (RetrievalModel r) throws IOException {
+    return this.scorer.getMaxDefaultScore ();
   }
 
-  public double getScoreBM25(RetrievalModel r) throws IOException {
-      if (!this.docIteratorHasMatchCache()) {
-          return 0.0;
-      } else {
-          // In order to calculate score, number of documents(N), document frequency(df), term frequency(tf),
-          // document length(doclen), average document length(avg_doclen) and query term frequency(qtf = 1) are needed.
-          
-          // term frequency
-          InvList.DocPosting postings = ((QryIop)this.args.get(0)).docIteratorGetMatchPosting();
-          double tf = postings.tf;
-          // document frequency
-          double df = (double)((QryIop)this.args.get(0)).getDf();
-          
-          int docId = this.docIteratorGetMatch();
-          String field = ((QryIop)this.args.get(0)).field;
-          // document length
-          double doclen = (double)Idx.getFieldLength(field, docId);
-          // average document length
-          double avg_doclen = (double)Idx.getSumOfFieldLengths(field) / (double)Idx.getDocCount(field);
-          
-          // number of documents
-          double N = Idx.getNumDocs();
-          
-          double k1 = ((RetrievalModelBM25)r).k1;
-//          double k3 = ((RetrievalModelBM25)r).k3;
-          double b = ((RetrievalModelBM25)r).b;
-          
-          double RSJweight = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
-          double tfWeight = tf / (tf + k1 * (1 - b + b * doclen / avg_doclen));
-//          System.out.println(this.args.get(0) + " score is: " + RSJweight * tfWeight);
-          return RSJweight * tfWeight;
-      }
+  /**
+   *  Copy an initialized SCORE operator whose iterators haven't
+   *  moved.  The copy shares the scorer.
+   *  @return The copy.
+   */
+  public Qry copyIterators () {
+
+    QrySopScore copy = (QrySopScore) super.copyIterators ();
+
+    copy.arg = (QryIop) copy.args.get (0);
+    return copy;
   }
 
-  public double getScoreIndri(RetrievalModel r) throws IOException {
-
-//      System.out.println("get score indri");
-      if (!this.docIteratorHasMatchCache()) {
-          return 0.0;
-      } else {
-          double ctf = ((QryIop)this.args.get(0)).invertedList.ctf;
-          String field = ((QryIop)this.args.get(0)).field;
-          double colleLength = (double)Idx.getSumOfFieldLengths(field);
-          double mu = ((RetrievalModelIndri)r).mu;
-          double lambda = ((RetrievalModelIndri)r).lambda;
-          double pMLEc = ctf / colleLength;
-
-          int docId = this.docIteratorGetMatch();
-          double tf = (double)((QryIop)this.args.get(0)).docIteratorGetMatchPosting().tf;
-          double docLen = Idx.getFieldLength(field, docId);
-          double bayesSmooth = (tf + mu * pMLEc) / (docLen + mu);
-          double score = (1 - lambda) * bayesSmooth + lambda * pMLEc;
-          return score;
-      }
+  /**
+   *  Get the field that the argument matches.  Its default scores
+   *  depend only on the length of that field.
+   *  @return The field.
+   */
+  public String getDefaultScoreField () {
+    return ((QryIop) this.args.get (0)).getField ();
   }
-  
-  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-//      System.out.println("QrySopScore get default score");
-      if (r instanceof RetrievalModelIndri) {
-          double ctf = ((QryIop)this.args.get(0)).invertedList.ctf;
-//          System.out.println("ctf: " + ctf);
-          String field = ((QryIop)this.args.get(0)).field;
-          double colleLength = (double)Idx.getSumOfFieldLengths(field);
-//          System.out.println("collection length: " + colleLength);
-          double docLen = (double)Idx.getFieldLength(field, (int)docid);
-//          System.out.println("document length: " + docLen);
-          int tf = 0;
-          double mu = ((RetrievalModelIndri)r).mu;
-//          System.out.println("mu: " + mu);
-          double lambda = ((RetrievalModelIndri)r).lambda;
-//          System.out.println("lambda: " + lambda);
-          double pMLEc = ctf / colleLength;
-//          System.out.println("pMLE collection: " + pMLEc);
-          double bayesSmooth = (tf + mu * pMLEc) / (docLen + mu);
-//          System.out.println("bayes smoothing: " + bayesSmooth);
-          double score = (1 - lambda) * bayesSmooth + lambda * pMLEc;
-//          System.out.println("get default score: " + score);
-          return score;
-      } else {
-          return 0.0;
-      }
+
+  /**
+   *  Get the scorer of the argument.  It is an error to call this
+   *  method before the object's initialize method is called.
+   *  @return The scorer.
+   */
+  public TermScorer getTermScorer () {
+    return this.scorer;
   }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -166,8 +161,11 @@ public class QrySopScore extends QrySop {
    */
   public void initialize (RetrievalModel r) throws IOException {
 
-    Qry q = this.args.get (0);
-    q.initialize (r);
+    this.arg = (QryIop) this.args.get (0);
+    this.arg.initialize (r);
+
+    this.context = r.getIndexContext ();
+    this.scorer = r.newTermScorer (this.arg, this.context);
   }
 
 }
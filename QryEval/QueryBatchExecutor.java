@@ -0,0 +1,234 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  QueryBatchExecutor evaluates a batch of queries on a pool of
+ *  worker threads and hands the results to a sink in input order, so
+ *  output files are the same as when queries are evaluated one after
+ *  another.  It reports the latency of each query and the throughput
+ *  of the batch.
+ *  <p>
+ *  The parameter file controls the pool:
+ *  </p>
+ *  <ul>
+ *  <li> batchThreads:  The number of queries that are evaluated at
+ *       once.  The default, 1, evaluates queries in the calling
+ *       thread.
+ *  <li> batchVirtualThreads:  If true, each query runs in its own
+ *       virtual thread (Java 21 and later).  On older JVMs, platform
+ *       threads are used.
+ *  </ul>
+ *  <p>
+ *  Tasks must only read shared state; see {@link IndexContext}.  The
+ *  sink runs in the calling thread, so it may write files and update
+ *  shared data structures.
+ *  </p>
+ */
+public class QueryBatchExecutor {
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Consumes the result of each query, in input order.
+   *  @param <T> The type of a query's result.
+   */
+  public interface Sink<T> {
+
+    /**
+     *  Consume the result of the n'th query.
+     *  @param n The index of the query in the batch.
+     *  @param result The result of the query.
+     *  @throws IOException Error writing the result.
+     */
+    void accept (int n, T result) throws IOException;
+  }
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  Executors.newVirtualThreadPerTaskExecutor, or null if the JVM
+   *  doesn't have virtual threads.
+   */
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor ();
+
+  private final int threads;
+  private final boolean virtualThreads;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an executor.
+   *  @param threads The number of queries that are evaluated at once.
+   *  @param virtualThreads If true, use virtual threads if the JVM has them.
+   */
+  public QueryBatchExecutor (int threads, boolean virtualThreads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException ("batchThreads must be at least 1");
+    }
+    if (virtualThreads && (NEW_VIRTUAL_THREAD_EXECUTOR == null)) {
+      System.err.println ("Warning: Virtual threads aren't available; " +
+                          "using platform threads.");
+      virtualThreads = false;
+    }
+    this.threads = threads;
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   *  Create an executor that is configured by the parameter file.
+   *  @param parameters The parameters, in &lt;key, value&gt; format.
+   *  @return The executor.
+   */
+  public static QueryBatchExecutor fromParameters (Map<String, String> parameters) {
+
+    int threads = 1;
+    boolean virtualThreads = false;
+
+    if (parameters.containsKey ("batchThreads")) {
+      threads = Integer.parseInt (parameters.get ("batchThreads"));
+    }
+
+    if (parameters.containsKey ("batchVirtualThreads")) {
+      virtualThreads = Boolean.parseBoolean (parameters.get ("batchVirtualThreads"));
+    }
+
+    return new QueryBatchExecutor (threads, virtualThreads);
+  }
+
+  /**
+   *  Evaluate a batch of queries.  Results are passed to the sink in
+   *  the order of the tasks.  If a task fails, the remaining tasks
+   *  are cancelled and the failure is thrown.
+   *  @param qids The query ids, for reporting.
+   *  @param tasks One task per query.
+   *  @param sink Consumes the results.
+   *  @param <T> The type of a query's result.
+   *  @throws IOException A task or the sink failed.
+   */
+  public <T> void run (List<String> qids, List<Callable<T>> tasks, Sink<T> sink)
+    throws IOException {
+
+    long start = System.nanoTime ();
+    long[] latencies = new long[tasks.size ()];
+
+    if ((this.threads == 1) && ! this.virtualThreads) {
+      for (int n = 0; n < tasks.size (); n++) {
+        T result;
+
+        try {
+          result = timed (tasks.get (n), latencies, n).call ();
+        } catch (IOException | RuntimeException ex) {
+          throw ex;
+        } catch (Exception ex) {
+          throw new IOException (ex);
+        }
+        report (qids.get (n), latencies[n]);
+        sink.accept (n, result);
+      }
+    } else {
+      ExecutorService pool = this.newPool ();
+
+      //  At most 'window' queries are submitted but not yet consumed,
+      //  so results don't pile up when the sink is slow.
+
+      int window = this.virtualThreads ? this.threads : 2 * this.threads;
+      List<Future<T>> futures = new ArrayList<Future<T>> (tasks.size ());
+
+      try {
+        for (int n = 0; n < tasks.size (); n++) {
+          while (futures.size () < Math.min (tasks.size (), n + window)) {
+            int i = futures.size ();
+            futures.add (pool.submit (timed (tasks.get (i), latencies, i)));
+          }
+
+          T result = get (futures.get (n));
+          futures.set (n, null);
+          report (qids.get (n), latencies[n]);
+          sink.accept (n, result);
+        }
+      } finally {
+        for (Future<T> f : futures) {
+          if (f != null) {
+            f.cancel (true);
+          }
+        }
+        pool.shutdownNow ();
+      }
+    }
+
+    double seconds = (System.nanoTime () - start) / 1e9;
+
+    System.out.println (String.format (
+      "Evaluated %d queries in %.3f s (%.1f queries/s, %d %s threads)",
+      tasks.size (), seconds, tasks.size () / seconds, this.threads,
+      this.virtualThreads ? "virtual" : "platform"));
+  }
+
+  /**
+   *  Wrap a task so that it records its own latency.
+   */
+  private static <T> Callable<T> timed (Callable<T> task, long[] latencies, int n) {
+    return () -> {
+      long t = System.nanoTime ();
+      try {
+        return task.call ();
+      } finally {
+        latencies[n] = System.nanoTime () - t;
+      }
+    };
+  }
+
+  /**
+   *  Get the result of a task, rethrowing its failure.
+   */
+  private static <T> T get (Future<T> future) throws IOException {
+    try {
+      return future.get ();
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while evaluating queries");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException (cause);
+    }
+  }
+
+  private ExecutorService newPool () {
+
+    if (this.virtualThreads) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke (null);
+      } catch (ReflectiveOperationException ex) {
+        throw new IllegalStateException ("Can't create virtual threads", ex);
+      }
+    }
+
+    return Executors.newFixedThreadPool (this.threads);
+  }
+
+  private static Method findVirtualThreadExecutor () {
+    try {
+      return Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException ex) {
+      return null;
+    }
+  }
+
+  private static void report (String qid, long latency) {
+    System.out.println (String.format ("Query %s latency: %.3f ms", qid, latency / 1e6));
+  }
+}
@@ -1,3 +1,5 @@
+import java.util.Map;
+
 /**
  *  An object that stores parameters for the BM25
  *  retrieval model and indicates to the query
@@ -8,6 +10,12 @@ public class RetrievalModelBM25 extends RetrievalModel {
     protected double k1;
     protected double k3;
     protected double b;
+
+    /**
+     *  If true, the query planner may choose to evaluate short #SUM
+     *  queries term-at-a-time; see {@link QryEvaluatorTaat}.
+     */
+    protected boolean termAtATime = false;
     
     public RetrievalModelBM25() {
         
@@ -25,4 +33,25 @@ public class RetrievalModelBM25 extends RetrievalModel {
         return new String("#sum");
     }
 
+    /**
+     *  Set the evaluation options, including BM25:termAtATime.
+     *  @param parameters The parameters, in &lt;key, value&gt; format.
+     */
+    @Override
+    public void setEvaluationOptions(Map<String, String> parameters) {
+        super.setEvaluationOptions(parameters);
+        if (parameters.containsKey("BM25:termAtATime")) {
+            this.termAtATime = Boolean.parseBoolean(parameters.get("BM25:termAtATime"));
+        }
+    }
+
+    @Override
+    public TermScorer newTermScorer(QryIop q, IndexContext context) {
+        IndexStats stats = context.getIndexStats();
+        return new TermScorer.BM25(context.getDocLengthStore(), q.getField(),
+                                   stats.numDocs, q.getDf(),
+                                   stats.getFieldStats(q.getField()).avgLength,
+                                   this.k1, this.b);
+    }
+
 }
@@ -9,4 +9,14 @@ public class RetrievalModelRankedBoolean extends RetrievalModel{
     public String defaultQrySopName(){
         return new String("#or");
     }
+
+    @Override
+    public TermScorer newTermScorer(QryIop q, IndexContext context) {
+        return new TermScorer.RankedBoolean(context.getDocLengthStore(), q.getField());
+    }
+
+    @Override
+    public boolean usesTermStatistics() {
+        return false;
+    }
 }
@@ -0,0 +1,207 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  TopKCollector keeps the k best documents of a query in a bounded
+ *  min-heap, so that a query that matches many documents doesn't
+ *  need a full ScoreList and a sort.  Documents are ranked the way
+ *  that {@link ScoreList#sort} ranks them:  by score, then by
+ *  external docid.
+ *  <p>
+ *  The heap is stored in parallel primitive arrays.  Its root is the
+ *  worst document collected so far, which is the document that the
+ *  next competitive document replaces.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables -----------------------
+
+  private final IndexContext context;
+  private final int k;
+  private int size = 0;
+
+  private final int[] docids;
+  private final int[] ordinals;
+  private final double[] scores;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty collector.
+   *  @param context The index that the docids refer to.
+   *  @param k The number of documents to keep.
+   */
+  public TopKCollector (IndexContext context, int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException ("k must be at least 1");
+    }
+    this.context = context;
+
+    //  No query returns more documents than the index has.
+
+    this.k = Math.max (1, Math.min (k, context.getIndexStats ().maxDoc));
+    this.docids = new int[this.k];
+    this.ordinals = new int[this.k];
+    this.scores = new double[this.k];
+  }
+
+  /**
+   *  Offer a document to the collector.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  public void collect (int docid, double score) {
+
+    if (this.size < this.k) {
+      this.docids[this.size] = docid;
+      this.ordinals[this.size] = this.context.getExternalDocidOrdinal (docid);
+      this.scores[this.size] = score;
+      this.upHeap (this.size++);
+      return;
+    }
+
+    //  Most documents lose to the root on score alone, which avoids
+    //  an ordinal lookup.
+
+    if (score < this.scores[0]) {
+      return;
+    }
+
+    int ordinal = this.context.getExternalDocidOrdinal (docid);
+
+    if (! worse (this.scores[0], this.ordinals[0], score, ordinal)) {
+      return;
+    }
+
+    this.docids[0] = docid;
+    this.ordinals[0] = ordinal;
+    this.scores[0] = score;
+    this.downHeap (0);
+  }
+
+  /**
+   *  Offer the documents of another collector to this one, e.g., to
+   *  merge the top k documents of several docid ranges.
+   *  @param that A collector of documents from the same index.
+   */
+  public void collectAll (TopKCollector that) {
+    for (int i = 0; i < that.size; i++) {
+      this.collect (that.docids[i], that.scores[i]);
+    }
+  }
+
+  /**
+   *  Get the number of documents that the collector keeps.
+   *  @return k, or the number of documents in the index if it is smaller.
+   */
+  public int getK () {
+    return this.k;
+  }
+
+  /**
+   *  Get the lowest score that a document must have to enter the
+   *  collector.  A document with exactly this score enters only if
+   *  its external docid sorts before the worst document's.
+   *  @return The threshold, or -Infinity if the collector isn't full.
+   */
+  public double getThreshold () {
+    return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+  }
+
+  /**
+   *  Get the number of documents collected so far, at most k.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the collected documents as a sorted ScoreList.  This empties
+   *  the collector.
+   *  @return The collected documents, best first.
+   */
+  public ScoreList getScoreList () {
+
+    int n = this.size;
+    int[] sortedDocids = new int[n];
+    double[] sortedScores = new double[n];
+
+    //  Pop the worst document until the heap is empty.
+
+    for (int i = n - 1; i >= 0; i--) {
+      sortedDocids[i] = this.docids[0];
+      sortedScores[i] = this.scores[0];
+
+      this.size --;
+      this.docids[0] = this.docids[this.size];
+      this.ordinals[0] = this.ordinals[this.size];
+      this.scores[0] = this.scores[this.size];
+      this.downHeap (0);
+    }
+
+    ScoreList r = new ScoreList (this.context);
+
+    for (int i = 0; i < n; i++) {
+      r.add (sortedDocids[i], sortedScores[i]);
+    }
+
+    return r;
+  }
+
+  /**
+   *  True if document a ranks below document b.
+   */
+  private static boolean worse (double scoreA, int ordinalA,
+                                double scoreB, int ordinalB) {
+    return (scoreA < scoreB) || ((scoreA == scoreB) && (ordinalA > ordinalB));
+  }
+
+  private boolean worse (int a, int b) {
+    return worse (this.scores[a], this.ordinals[a], this.scores[b], this.ordinals[b]);
+  }
+
+  private void upHeap (int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (! this.worse (i, parent)) {
+        break;
+      }
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  private void downHeap (int i) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= this.size) {
+        break;
+      }
+      if ((child + 1 < this.size) && this.worse (child + 1, child)) {
+        child ++;
+      }
+      if (! this.worse (child, i)) {
+        break;
+      }
+      this.swap (i, child);
+      i = child;
+    }
+  }
+
+  private void swap (int a, int b) {
+    int d = this.docids[a];
+    this.docids[a] = this.docids[b];
+    this.docids[b] = d;
+
+    int o = this.ordinals[a];
+    this.ordinals[a] = this.ordinals[b];
+    this.ordinals[b] = o;
+
+    double s = this.scores[a];
+    this.scores[a] = this.scores[b];
+    this.scores[b] = s;
+  }
+}